@@ -1,32 +1,72 @@
 package net.beaconcontroller.core.internal;
 
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import net.beaconcontroller.core.EchoStatistics;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFMessageListener.Command;
 import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.OFMessageInterest.DestinationClass;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.PacketInStatistics;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.OFWritePriority;
+import net.beaconcontroller.core.io.internal.IOLoop;
+import net.beaconcontroller.core.io.internal.OFStream;
 import net.beaconcontroller.core.test.MockBeaconProvider;
+import net.beaconcontroller.packet.Ethernet;
 import net.beaconcontroller.test.BeaconTestCase;
 
+import org.easymock.Capture;
 import org.junit.Test;
+import org.openflow.example.SelectListener;
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFEchoReply;
+import org.openflow.protocol.OFError;
 import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGetConfigReply;
+import org.openflow.protocol.OFHello;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFStatisticsReply;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.factory.BasicFactory;
 import org.openflow.protocol.statistics.OFFlowStatisticsReply;
 import org.openflow.protocol.statistics.OFStatistics;
 import org.openflow.protocol.statistics.OFStatisticsType;
@@ -128,6 +168,7 @@ public class ControllerTest extends BeaconTestCase {
 
         IOFSwitch sw = createMock(IOFSwitch.class);
         expect(sw.getFeaturesReply()).andReturn(new OFFeaturesReply()).anyTimes();
+        expect(sw.getOutputStream()).andReturn(mockOutputStream(true)).anyTimes();
         OFPacketIn pi = new OFPacketIn();
         IOFMessageListener test1 = createMock(IOFMessageListener.class);
         expect(test1.getName()).andReturn("test1").anyTimes();
@@ -146,11 +187,217 @@ public class ControllerTest extends BeaconTestCase {
         reset(test1, test2, sw);
         expect(test1.receive(sw, pi)).andReturn(Command.STOP);
         expect(sw.getFeaturesReply()).andReturn(new OFFeaturesReply()).anyTimes();
+        expect(sw.getOutputStream()).andReturn(mockOutputStream(true)).anyTimes();
         replay(test1, test2, sw);
         controller.handleMessages(sw, Arrays.asList(new OFMessage[] {pi}));
         verify(test1, test2, sw);
     }
 
+    protected OFMessageSafeOutStream mockOutputStream(boolean writable) {
+        OFMessageSafeOutStream stream = createMock(OFMessageSafeOutStream.class);
+        expect(stream.isWritable()).andReturn(writable).anyTimes();
+        replay(stream);
+        return stream;
+    }
+
+    /**
+     * Verify that listeners are only called with messages matching their
+     * declared interest
+     * @throws Exception
+     */
+    @Test
+    public void testMessageInterest() throws Exception {
+        Controller controller = getController();
+        controller.getMessageListeners().remove(OFType.PACKET_IN);
+
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getFeaturesReply()).andReturn(new OFFeaturesReply()).anyTimes();
+        expect(sw.getOutputStream()).andReturn(mockOutputStream(true)).anyTimes();
+        expect(sw.getId()).andReturn(1L).anyTimes();
+
+        // LLDP to a multicast address, ARP to broadcast
+        byte[] lldpData = new byte[60];
+        System.arraycopy(new byte[] {0x01, (byte) 0x80, (byte) 0xc2, 0, 0, 0x0e},
+                0, lldpData, 0, 6);
+        lldpData[12] = (byte) 0x88;
+        lldpData[13] = (byte) 0xcc;
+        OFPacketIn lldp = new OFPacketIn();
+        lldp.setPacketData(lldpData);
+        byte[] arpData = new byte[60];
+        Arrays.fill(arpData, 0, 6, (byte) 0xff);
+        arpData[12] = 0x08;
+        arpData[13] = 0x06;
+        OFPacketIn arp = new OFPacketIn();
+        arp.setPacketData(arpData);
+
+        IOFMessageListener lldpListener = createMock(IOFMessageListener.class);
+        expect(lldpListener.getName()).andReturn("lldp").anyTimes();
+        expect(lldpListener.receive(sw, lldp)).andReturn(Command.CONTINUE);
+        IOFMessageListener broadcastListener = createMock(IOFMessageListener.class);
+        expect(broadcastListener.getName()).andReturn("broadcast").anyTimes();
+        expect(broadcastListener.receive(sw, arp)).andReturn(Command.CONTINUE);
+        IOFMessageListener unicastListener = createMock(IOFMessageListener.class);
+        expect(unicastListener.getName()).andReturn("unicast").anyTimes();
+        IOFMessageListener otherSwitchListener = createMock(IOFMessageListener.class);
+        expect(otherSwitchListener.getName()).andReturn("otherSwitch").anyTimes();
+
+        replay(sw, lldpListener, broadcastListener, unicastListener,
+                otherSwitchListener);
+        controller.addOFMessageListener(OFType.PACKET_IN, lldpListener,
+                new OFMessageInterest().setEtherTypes(Ethernet.TYPE_LLDP));
+        controller.addOFMessageListener(OFType.PACKET_IN, broadcastListener,
+                new OFMessageInterest().setDestinationClasses(
+                        DestinationClass.BROADCAST));
+        controller.addOFMessageListener(OFType.PACKET_IN, unicastListener,
+                new OFMessageInterest().setDestinationClasses(
+                        DestinationClass.UNICAST));
+        controller.addOFMessageListener(OFType.PACKET_IN, otherSwitchListener,
+                new OFMessageInterest().setSwitchIds(
+                        Collections.singleton(2L)));
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {lldp, arp}));
+        verify(sw, lldpListener, broadcastListener, unicastListener,
+                otherSwitchListener);
+
+        controller.removeOFMessageListener(OFType.PACKET_IN, lldpListener);
+        controller.removeOFMessageListener(OFType.PACKET_IN, broadcastListener);
+        controller.removeOFMessageListener(OFType.PACKET_IN, unicastListener);
+        controller.removeOFMessageListener(OFType.PACKET_IN, otherSwitchListener);
+    }
+
+    /**
+     * Verify that listeners in a chain share one PacketContext per PACKET_IN,
+     * and that it is reset once dispatch completes
+     * @throws Exception
+     */
+    @Test
+    public void testPacketContextShared() throws Exception {
+        Controller controller = getController();
+        controller.getMessageListeners().remove(OFType.PACKET_IN);
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getFeaturesReply()).andReturn(new OFFeaturesReply()).anyTimes();
+        expect(sw.getOutputStream()).andReturn(mockOutputStream(true)).anyTimes();
+        replay(sw);
+
+        final List<PacketContext> contexts = new ArrayList<PacketContext>();
+        IOFMessageListener listener = new IOFMessageListener() {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg) {
+                contexts.add(PacketContext.get((OFPacketIn) msg));
+                return Command.CONTINUE;
+            }
+
+            @Override
+            public String getName() {
+                return "context";
+            }
+        };
+        IOFMessageListener listener2 = new IOFMessageListener() {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg) {
+                contexts.add(PacketContext.get((OFPacketIn) msg));
+                return Command.CONTINUE;
+            }
+
+            @Override
+            public String getName() {
+                return "context2";
+            }
+        };
+        controller.addOFMessageListener(OFType.PACKET_IN, listener);
+        controller.addOFMessageListener(OFType.PACKET_IN, listener2);
+        OFPacketIn pi = new OFPacketIn();
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {pi}));
+        assertEquals(2, contexts.size());
+        assertSame(contexts.get(0), contexts.get(1));
+        // the thread's context is reset, not replaced, for the next PACKET_IN
+        assertNull(contexts.get(0).getPacketIn());
+        assertSame(contexts.get(0), PacketContext.get(pi));
+        assertSame(pi, contexts.get(0).getPacketIn());
+        PacketContext.clear();
+        verify(sw);
+
+        controller.removeOFMessageListener(OFType.PACKET_IN, listener);
+        controller.removeOFMessageListener(OFType.PACKET_IN, listener2);
+    }
+
+    /**
+     * Verify that PACKET_INs over a port's rate limit are dropped or sampled
+     * before reaching listeners, and are counted
+     * @throws Exception
+     */
+    @Test
+    public void testPacketInAdmission() throws Exception {
+        Controller controller = getController();
+        controller.getMessageListeners().remove(OFType.PACKET_IN);
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getFeaturesReply()).andReturn(new OFFeaturesReply()).anyTimes();
+        expect(sw.getOutputStream()).andReturn(mockOutputStream(true)).anyTimes();
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+
+        final List<OFMessage> received = new ArrayList<OFMessage>();
+        IOFMessageListener listener = new IOFMessageListener() {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg) {
+                received.add(msg);
+                return Command.CONTINUE;
+            }
+
+            @Override
+            public String getName() {
+                return "admission";
+            }
+        };
+        controller.addOFMessageListener(OFType.PACKET_IN, listener);
+
+        // burst of 2, refilling too slowly to matter, sample every 4th excess
+        PacketInAdmission admission = new PacketInAdmission();
+        admission.setPortRate(1);
+        admission.setPortBurst(2);
+        admission.setSampleInterval(4);
+        controller.setPacketInAdmission(admission);
+        try {
+            List<OFMessage> msgs = new ArrayList<OFMessage>();
+            for (int i = 0; i < 10; ++i) {
+                OFPacketIn pi = new OFPacketIn();
+                pi.setInPort((short) 1);
+                msgs.add(pi);
+            }
+            controller.handleMessages(sw, msgs);
+            assertEquals(4, received.size());
+            assertSame(msgs.get(0), received.get(0));
+            assertSame(msgs.get(1), received.get(1));
+            assertSame(msgs.get(5), received.get(2));
+            assertSame(msgs.get(9), received.get(3));
+
+            assertEquals(1, controller.getPacketInStatistics().size());
+            PacketInStatistics stats = controller.getPacketInStatistics().get(0);
+            assertEquals(1L, stats.getSwitchId());
+            assertEquals(2, stats.getAdmitted());
+            assertEquals(2, stats.getSampled());
+            assertEquals(6, stats.getDropped());
+            assertEquals(0, stats.getShed());
+
+            // nothing is admitted while the switch is not draining its output
+            IOFSwitch unwritable = createMock(IOFSwitch.class);
+            expect(unwritable.getId()).andReturn(2L).anyTimes();
+            expect(unwritable.getOutputStream()).andReturn(mockOutputStream(false)).anyTimes();
+            replay(unwritable);
+            controller.handleMessages(unwritable, Arrays.asList(new OFMessage[] {
+                    new OFPacketIn()}));
+            assertEquals(4, received.size());
+            assertEquals(2, controller.getPacketInStatistics().size());
+            for (PacketInStatistics s : controller.getPacketInStatistics()) {
+                assertEquals(s.getSwitchId() == 2L ? 1 : 0, s.getShed());
+            }
+            verify(unwritable);
+        } finally {
+            controller.setPacketInAdmission(new PacketInAdmission());
+            controller.removeOFMessageListener(OFType.PACKET_IN, listener);
+        }
+        verify(sw);
+    }
+
     public class FutureFetcher<E> implements Runnable {
         public E value;
         public Future<E> future;
@@ -190,53 +437,61 @@ public class ControllerTest extends BeaconTestCase {
     @Test
     public void testOFStatisticsFuture() throws Exception {
         // Test for a single stats reply
+        Controller controller = getController();
         MockBeaconProvider mbp = new MockBeaconProvider();
-        IOFSwitch sw = createMock(IOFSwitch.class);
+        OFSwitchImpl sw = new OFSwitchImpl();
         OFStatisticsFuture sf = new OFStatisticsFuture(mbp, sw, 1);
-        mbp.addOFMessageListener(OFType.STATS_REPLY, sf);
-        mbp.addOFSwitchListener(sf);
+        sw.addPendingReply(1, sf);
 
-        replay(sw);
         List<OFStatistics> stats;
         FutureFetcher<List<OFStatistics>> ff = new FutureFetcher<List<OFStatistics>>(sf);
         Thread t = new Thread(ff);
         t.start();
-        mbp.dispatchMessage(sw, getStatisticsReply(1, 10, false));
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {
+                getStatisticsReply(1, 10, false)}));
 
         t.join();
         stats = ff.getValue();
-        verify(sw);
         assertEquals(10, stats.size());
-        assertEquals(0, mbp.getListeners().get(OFType.STATS_REPLY).size());
-        assertEquals(0, mbp.getSwitchListeners().size());
+        assertEquals(0, sw.getPendingReplies().size());
 
         // Test multiple stats replies
-        reset(sw);
         sf = new OFStatisticsFuture(mbp, sw, 1);
-        mbp.addOFMessageListener(OFType.STATS_REPLY, sf);
-        mbp.addOFSwitchListener(sf);
+        sw.addPendingReply(1, sf);
 
-        replay(sw);
         ff = new FutureFetcher<List<OFStatistics>>(sf);
         t = new Thread(ff);
         t.start();
-        mbp.dispatchMessage(sw, getStatisticsReply(1, 10, true));
-        mbp.dispatchMessage(sw, getStatisticsReply(1, 5, false));
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {
+                getStatisticsReply(1, 10, true)}));
+        assertEquals(1, sw.getPendingReplies().size());
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {
+                getStatisticsReply(1, 5, false)}));
         t.join();
 
         stats = sf.get();
-        verify(sw);
         assertEquals(15, stats.size());
-        assertEquals(0, mbp.getListeners().get(OFType.STATS_REPLY).size());
-        assertEquals(0, mbp.getSwitchListeners().size());
+        assertEquals(0, sw.getPendingReplies().size());
+
+        // Test a reply for a different transaction is not delivered
+        sf = new OFStatisticsFuture(mbp, sw, 2);
+        sw.addPendingReply(2, sf);
+        assertEquals(Command.CONTINUE, controller.callPendingReply(sw,
+                new LazyOFMessage(getStatisticsReply(1, 5, false))));
+        assertEquals(false, sf.isDone());
+
+        // Test an error completes the future
+        OFError error = new OFError();
+        error.setXid(2);
+        assertEquals(Command.CONTINUE, sf.receive(sw, error));
+        stats = sf.get();
+        assertEquals(0, stats.size());
+        assertEquals(0, sw.getPendingReplies().size());
 
         // Test cancellation
-        reset(sw);
         sf = new OFStatisticsFuture(mbp, sw, 1);
-        mbp.addOFMessageListener(OFType.STATS_REPLY, sf);
-        mbp.addOFSwitchListener(sf);
+        sw.addPendingReply(1, sf);
 
-        replay(sw);
         ff = new FutureFetcher<List<OFStatistics>>(sf);
         t = new Thread(ff);
         t.start();
@@ -244,27 +499,345 @@ public class ControllerTest extends BeaconTestCase {
         t.join();
 
         stats = sf.get();
-        verify(sw);
         assertEquals(0, stats.size());
-        assertEquals(0, mbp.getListeners().get(OFType.STATS_REPLY).size());
-        assertEquals(0, mbp.getSwitchListeners().size());
+        assertEquals(0, sw.getPendingReplies().size());
 
         // Test self timeout
-        reset(sw);
         sf = new OFStatisticsFuture(mbp, sw, 1, 3, TimeUnit.SECONDS);
-        mbp.addOFMessageListener(OFType.STATS_REPLY, sf);
-        mbp.addOFSwitchListener(sf);
+        sw.addPendingReply(1, sf);
 
-        replay(sw);
         ff = new FutureFetcher<List<OFStatistics>>(sf);
         t = new Thread(ff);
         t.start();
         t.join(5000);
 
         stats = sf.get();
-        verify(sw);
         assertEquals(0, stats.size());
-        assertEquals(0, mbp.getListeners().get(OFType.STATS_REPLY).size());
-        assertEquals(0, mbp.getSwitchListeners().size());
+        assertEquals(0, sw.getPendingReplies().size());
+        mbp.shutDown();
+    }
+
+    /**
+     * Verify a batch future collects errors for its messages and completes
+     * when its barrier is answered
+     * @throws Exception
+     */
+    @Test
+    public void testOFBatchFuture() throws Exception {
+        Controller controller = getController();
+        MockBeaconProvider mbp = new MockBeaconProvider();
+        OFSwitchImpl sw = new OFSwitchImpl();
+        sw.setBeaconProvider(mbp);
+        OFMessageSafeOutStream out = createMock(OFMessageSafeOutStream.class);
+        Capture<List<OFMessage>> written = new Capture<List<OFMessage>>();
+        out.write(capture(written), eq(OFWritePriority.FLOW_SETUP));
+        replay(out);
+        sw.setOutputStream(out);
+
+        OFFlowMod fm1 = new OFFlowMod();
+        OFFlowMod fm2 = new OFFlowMod();
+        Future<List<OFError>> future = sw.sendBatch(
+                Arrays.asList(new OFMessage[] {fm1, fm2}));
+        verify(out);
+        List<OFMessage> batch = written.getValue();
+        assertEquals(3, batch.size());
+        assertSame(fm1, batch.get(0));
+        assertSame(fm2, batch.get(1));
+        assertEquals(OFType.BARRIER_REQUEST, batch.get(2).getType());
+        assertEquals(3, sw.getPendingReplies().size());
+
+        // an error for a batched message does not complete the future
+        OFError error = new OFError();
+        error.setXid(fm2.getXid());
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {error}));
+        assertFalse(future.isDone());
+
+        OFBarrierReply reply = new OFBarrierReply();
+        reply.setXid(batch.get(2).getXid());
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {reply}));
+        assertTrue(future.isDone());
+        assertEquals(1, future.get().size());
+        assertSame(error, future.get().get(0));
+        assertEquals(0, sw.getPendingReplies().size());
+        mbp.shutDown();
+    }
+
+    /**
+     * Verify the handshake pipelines its requests after the switch's HELLO
+     * and completes once features and config are received
+     * @throws Exception
+     */
+    @Test
+    public void testSwitchHandshake() throws Exception {
+        Controller controller = getController();
+        MockBeaconProvider mbp = new MockBeaconProvider();
+        OFSwitchImpl sw = new OFSwitchImpl();
+        OFMessageSafeOutStream out = createMock(OFMessageSafeOutStream.class);
+        out.write((OFMessage) anyObject());
+        Capture<List<OFMessage>> written = new Capture<List<OFMessage>>();
+        out.write(capture(written), eq(OFWritePriority.CONTROL));
+        replay(out);
+        sw.setOutputStream(out);
+
+        HandshakeMonitor monitor = new HandshakeMonitor();
+        SwitchHandshake handshake = new SwitchHandshake(sw, new BasicFactory(),
+                mbp.getScheduler(), monitor, 60000, 60000);
+        sw.getAttributes().put(Controller.SWITCH_HANDSHAKE_KEY, handshake);
+        handshake.start();
+        assertEquals(1, monitor.getInProgress());
+
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {new OFHello()}));
+        assertEquals(SwitchHandshake.State.WAIT_FEATURES, handshake.getState());
+        List<OFMessage> msgs = written.getValue();
+        assertEquals(4, msgs.size());
+        assertEquals(OFType.FEATURES_REQUEST, msgs.get(0).getType());
+        assertEquals(OFType.SET_CONFIG, msgs.get(1).getType());
+        assertEquals(OFType.GET_CONFIG_REQUEST, msgs.get(2).getType());
+        assertEquals(OFType.FLOW_MOD, msgs.get(3).getType());
+
+        // config may be confirmed before the features reply is processed
+        OFGetConfigReply cr = new OFGetConfigReply();
+        cr.setMissSendLength((short) 0xffff);
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {cr}));
+        assertEquals(SwitchHandshake.State.WAIT_FEATURES, handshake.getState());
+        handshake.featuresReceived();
+        assertEquals(SwitchHandshake.State.COMPLETE, handshake.getState());
+        assertEquals(1, monitor.getCompleted());
+        assertEquals(0, monitor.getInProgress());
+
+        handshake.close();
+        assertEquals(0, monitor.getInProgress());
+        verify(out);
+        mbp.shutDown();
+    }
+
+    /**
+     * Verify echo keepalives time answered probes and count missed ones
+     * @throws Exception
+     */
+    @Test
+    public void testEchoKeepalive() throws Exception {
+        Controller controller = getController();
+        OFSwitchImpl sw = new OFSwitchImpl();
+        OFFeaturesReply fr = new OFFeaturesReply();
+        fr.setDatapathId(1L);
+        fr.setPorts(new ArrayList<OFPhysicalPort>());
+        sw.setFeaturesReply(fr);
+        OFMessageSafeOutStream out = createMock(OFMessageSafeOutStream.class);
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        out.write(capture(written));
+        expectLastCall().times(3);
+        replay(out);
+        sw.setOutputStream(out);
+
+        EchoKeepalive keepalive = new EchoKeepalive(controller, 60000, 2);
+        keepalive.probe(sw);
+        assertEquals(OFType.ECHO_REQUEST, written.getValue().getType());
+        OFEchoReply reply = new OFEchoReply();
+        reply.setXid(written.getValue().getXid());
+        controller.handleMessages(sw, Arrays.asList(new OFMessage[] {reply}));
+        assertEquals(0, sw.getPendingReplies().size());
+
+        EchoStatistics stats = keepalive.getStatistics().get(0);
+        assertEquals(1L, stats.getSwitchId());
+        long answered = 0;
+        for (long count : stats.getHistogram())
+            answered += count;
+        assertEquals(1, answered);
+
+        // the answered probe is not a miss, the unanswered one is
+        keepalive.probe(sw);
+        assertEquals(0, stats.getMissed());
+        keepalive.probe(sw);
+        assertEquals(3, stats.getSent());
+        assertEquals(1, stats.getMissed());
+        assertEquals(1, stats.getConsecutiveMissed());
+        assertEquals(1, sw.getPendingReplies().size());
+        keepalive.removeSwitch(sw);
+        assertEquals(0, sw.getPendingReplies().size());
+        verify(out);
+    }
+
+    /**
+     * Verify a flow mod written without a buffer id reaches the wire ahead of
+     * the packet out written after it
+     * @throws Exception
+     */
+    @Test
+    public void testWriteOrder() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel accepted = server.accept();
+        try {
+            IOLoop loop = new IOLoop(null, 0);
+            OFStream stream = new OFStream(client, new BasicFactory(), null, loop);
+
+            OFFlowMod fm = new OFFlowMod();
+            fm.setBufferId(OFPacketOut.BUFFER_ID_NONE)
+                .setLengthU(OFFlowMod.MINIMUM_LENGTH);
+            OFPacketOut po = new OFPacketOut()
+                .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+                .setInPort(OFPort.OFPP_NONE.getValue())
+                .setActions(new ArrayList<OFAction>())
+                .setActionsLength((short) 0);
+            po.setLengthU(OFPacketOut.MINIMUM_LENGTH);
+            stream.write(fm);
+            stream.write(po);
+            stream.flush();
+            assertFalse(stream.needsFlush());
+
+            ByteBuffer received = ByteBuffer.allocate(fm.getLengthU() + po.getLengthU());
+            while (received.hasRemaining())
+                accepted.read(received);
+            assertEquals(OFType.FLOW_MOD.getTypeValue(), received.get(1));
+            assertEquals(OFType.PACKET_OUT.getTypeValue(), received.get(fm.getLengthU() + 1));
+        } finally {
+            client.close();
+            accepted.close();
+            server.close();
+        }
+    }
+
+    /**
+     * @param connections
+     * @param rate
+     * @return an IO loop reporting the given load
+     * @throws IOException
+     */
+    protected IOLoop getLoadedIOLoop(final int connections, final long rate)
+            throws IOException {
+        return new IOLoop(null, 0) {
+            @Override
+            public int getConnectionCount() {
+                return connections;
+            }
+
+            @Override
+            public long getMessageRate() {
+                return rate;
+            }
+        };
+    }
+
+    /**
+     * Verify new connections go to the loop with the fewest connections, and
+     * of those to the one with the lowest message rate
+     * @throws Exception
+     */
+    @Test
+    public void testSelectIOLoop() throws Exception {
+        Controller controller = new Controller();
+        IOLoop busy = getLoadedIOLoop(2, 10);
+        IOLoop loaded = getLoadedIOLoop(1, 500);
+        IOLoop idle = getLoadedIOLoop(1, 0);
+        controller.switchIOLoops = new ArrayList<IOLoop>(
+                Arrays.asList(busy, loaded, idle));
+        assertSame(idle, controller.selectIOLoop());
+
+        IOLoop empty = getLoadedIOLoop(0, 1000);
+        controller.switchIOLoops.add(0, empty);
+        assertSame(empty, controller.selectIOLoop());
+    }
+
+    /**
+     * Verify a stream migrated to another loop while it has output queued
+     * delivers everything written before, during and after the move, in
+     * order
+     * @throws Exception
+     */
+    @Test
+    public void testMigrateStream() throws Exception {
+        // flushes and keeps the interest ops current, as the controller does
+        SelectListener flusher = new SelectListener() {
+            @Override
+            public void handleEvent(SelectionKey key, Object arg)
+                    throws IOException {
+                OFStream stream = (OFStream) arg;
+                if (key.isWritable())
+                    stream.flush();
+                stream.updateInterestOps();
+            }
+        };
+        final IOLoop from = new IOLoop(flusher, 100);
+        final IOLoop to = new IOLoop(flusher, 100);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final IOLoop loop : Arrays.asList(from, to)) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loop.doLoop();
+                    } catch (IOException e) {
+                    }
+                }});
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel accepted = server.accept();
+        try {
+            // a small send buffer so most of the output stays queued
+            client.socket().setSendBufferSize(8192);
+            client.configureBlocking(false);
+            accepted.configureBlocking(false);
+            SelectionKey key = from.registerBlocking(client, 0, null);
+            OFStream stream = new OFStream(client, new BasicFactory(), key, from);
+            key.attach(stream);
+            from.addStream(stream);
+
+            int count = 3000;
+            int length = OFPacketIn.MINIMUM_LENGTH + 1000;
+            byte[] data = new byte[1000];
+            int xid = 0;
+            for (; xid < count / 2; ++xid)
+                stream.write(new OFPacketIn().setPacketData(data).setLengthU(length).setXid(xid));
+            new Controller().migrateStream(stream, to);
+            for (; xid < count * 3 / 4; ++xid)
+                stream.write(new OFPacketIn().setPacketData(data).setLengthU(length).setXid(xid));
+            for (int i = 0; i < 100 && stream.getIOLoop() != to; ++i)
+                Thread.sleep(10);
+            assertSame(to, stream.getIOLoop());
+            // queued behind the rest of the move on the new loop's thread
+            final CountDownLatch moved = new CountDownLatch(1);
+            to.execute(new Runnable() {
+                @Override
+                public void run() {
+                    moved.countDown();
+                }});
+            assertTrue(moved.await(1, TimeUnit.SECONDS));
+            assertFalse(from.getStreams().contains(stream));
+            assertTrue(to.getStreams().contains(stream));
+            assertTrue(stream.needsFlush());
+            for (; xid < count; ++xid)
+                stream.write(new OFPacketIn().setPacketData(data).setLengthU(length).setXid(xid));
+
+            // a lost message would otherwise leave the read waiting forever
+            ByteBuffer received = ByteBuffer.allocate(count * length);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.hasRemaining()
+                    && System.currentTimeMillis() < deadline) {
+                if (accepted.read(received) == 0)
+                    Thread.sleep(1);
+            }
+            assertFalse(received.hasRemaining());
+            for (int i = 0; i < count; ++i) {
+                assertEquals(OFType.PACKET_IN.getTypeValue(), received.get(i * length + 1));
+                assertEquals(length, received.getShort(i * length + 2));
+                assertEquals(i, received.getInt(i * length + 4));
+            }
+        } finally {
+            from.shutdown();
+            to.shutdown();
+            for (Thread t : threads)
+                t.join(1000);
+            client.close();
+            accepted.close();
+            server.close();
+        }
     }
 }
@@ -0,0 +1,125 @@
+package net.beaconcontroller.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventResyncSubscriber;
+import net.beaconcontroller.core.IEventSubscriber;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+
+/**
+ * Each test runs its own bus, so it does not depend on the controller's
+ */
+public class EventBusTest extends BeaconTestCase {
+    /**
+     * Verify channels merge only repeats of an event, hold back publishers
+     * while full, and resync subscribers whose offered events were discarded
+     * @throws Exception
+     */
+    @Test
+    public void testChannels() throws Exception {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        final CountDownLatch delivered = new CountDownLatch(3);
+        IEventSubscriber<String> subscriber = new IEventSubscriber<String>() {
+            @Override
+            public void handleEvents(List<String> events) {
+                synchronized (batches) {
+                    batches.add(new ArrayList<String>(events));
+                }
+                delivered.countDown();
+            }
+        };
+        // events are "<link><+|->", repeats of a link going up or down merge
+        IEventCoalescer<String> coalescer = new IEventCoalescer<String>() {
+            @Override
+            public Object getKey(String event) {
+                return event.substring(0, 1);
+            }
+
+            @Override
+            public String coalesce(String pending, String next) {
+                return (pending.charAt(1) == next.charAt(1)) ? next : null;
+            }
+        };
+        final AtomicInteger resyncs = new AtomicInteger();
+        IEventResyncSubscriber<String> resyncSubscriber = new IEventResyncSubscriber<String>() {
+            @Override
+            public void handleEvents(List<String> events) {
+            }
+
+            @Override
+            public void resync() {
+                resyncs.incrementAndGet();
+                delivered.countDown();
+            }
+        };
+
+        // the bus is not started, so events only queue up
+        EventBus bus = new EventBus();
+        bus.setThreadCount(1);
+        final IEventChannel<String> channel = bus.createChannel("test", 4,
+                subscriber, coalescer);
+        EventChannel<String> stats = (EventChannel<String>) channel;
+        channel.publish("a+");
+        channel.publish("b+");
+        channel.publish("a-");
+        channel.publish("b+");
+        channel.publish("c+");
+        assertEquals(5, stats.getPublished());
+        assertEquals(1, stats.getCoalesced());
+        assertEquals(4, stats.getQueued());
+        assertTrue(stats.getLag() >= 0);
+
+        // a full channel holds back publishers until it is drained
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                channel.publish("d+");
+            }});
+        publisher.start();
+        publisher.join(100);
+        assertTrue(publisher.isAlive());
+        assertEquals(4, stats.getQueued());
+
+        // but never those offering, their events are discarded instead
+        IEventChannel<String> resyncChannel = bus.createChannel("resync", 1,
+                resyncSubscriber, null);
+        EventChannel<String> resyncStats = (EventChannel<String>) resyncChannel;
+        assertTrue(resyncChannel.offer("x+"));
+        assertFalse(resyncChannel.offer("y+"));
+        assertEquals(1, resyncStats.getOverflowed());
+
+        bus.startUp();
+        try {
+            publisher.join(5000);
+            assertFalse(publisher.isAlive());
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        } finally {
+            bus.shutDown();
+        }
+        assertEquals(Arrays.asList("a+", "b+", "a-", "c+"), batches.get(0));
+        assertEquals(Arrays.asList("d+"), batches.get(1));
+        assertEquals(5, stats.getDelivered());
+        assertEquals(2, stats.getBatches());
+        assertEquals(0, stats.getQueued());
+        assertEquals(0, stats.getOverflowed());
+
+        // the queued event went with the resync
+        assertEquals(1, resyncs.get());
+        assertEquals(0, resyncStats.getDelivered());
+        assertEquals(0, resyncStats.getQueued());
+        assertEquals(2, bus.getStatistics().size());
+    }
+}
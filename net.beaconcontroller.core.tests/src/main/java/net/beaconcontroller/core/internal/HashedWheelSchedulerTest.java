@@ -0,0 +1,208 @@
+package net.beaconcontroller.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Each test runs its own wheel with a short tick, so timing assertions do not
+ * depend on the controller's shared scheduler
+ */
+public class HashedWheelSchedulerTest extends BeaconTestCase {
+    protected HashedWheelScheduler scheduler;
+
+    @After
+    public void tearDown() throws Exception {
+        if (scheduler != null)
+            scheduler.shutDown();
+    }
+
+    /**
+     * Verify a one-shot task runs once, and never before its delay
+     * @throws Exception
+     */
+    @Test
+    public void testSchedule() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+        scheduler.startUp();
+
+        final AtomicLong ranAt = new AtomicLong();
+        final CountDownLatch ran = new CountDownLatch(1);
+        long scheduledAt = System.nanoTime();
+        IScheduledTask task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ranAt.set(System.nanoTime());
+                ran.countDown();
+            }}, 50, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        // it has run its only execution
+        Thread.sleep(50);
+        assertFalse(task.cancel());
+        assertFalse(task.isCancelled());
+    }
+
+    /**
+     * Verify a fixed rate task is re-armed after each execution
+     * @throws Exception
+     */
+    @Test
+    public void testScheduleAtFixedRate() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+        scheduler.startUp();
+
+        final CountDownLatch ran = new CountDownLatch(5);
+        long scheduledAt = System.nanoTime();
+        IScheduledTask task = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }}, 10, 20, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        // 10ms initial delay then 4 periods of 20ms
+        assertTrue(System.nanoTime() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(task.cancel());
+        assertTrue(task.isCancelled());
+        assertFalse(task.cancel());
+    }
+
+    /**
+     * Verify a task cancelled before its deadline never runs
+     * @throws Exception
+     */
+    @Test
+    public void testCancelBeforeRun() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+        scheduler.startUp();
+
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }};
+        IScheduledTask once = scheduler.schedule(r, 30, TimeUnit.MILLISECONDS);
+        IScheduledTask periodic = scheduler.scheduleAtFixedRate(r, 30, 10,
+                TimeUnit.MILLISECONDS);
+        assertTrue(once.cancel());
+        assertTrue(periodic.cancel());
+        Thread.sleep(150);
+        assertEquals(0, runs.get());
+    }
+
+    /**
+     * Verify cancelling a fixed rate task while it is running lets that
+     * execution complete and prevents any further ones
+     * @throws Exception
+     */
+    @Test
+    public void testCancelWhileRunning() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+        scheduler.startUp();
+
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        IScheduledTask task = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                finished.countDown();
+            }}, 10, 10, TimeUnit.MILLISECONDS);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+    }
+
+    /**
+     * Verify a deadline more than one revolution of the wheel away waits out
+     * the extra rounds
+     * @throws Exception
+     */
+    @Test
+    public void testMultipleRounds() throws Exception {
+        // 512 buckets of 1ms, so 700ms needs a second round
+        scheduler = new HashedWheelScheduler(1, TimeUnit.MILLISECONDS, 512);
+        scheduler.startUp();
+
+        final AtomicLong ranAt = new AtomicLong();
+        final CountDownLatch ran = new CountDownLatch(1);
+        long scheduledAt = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ranAt.set(System.nanoTime());
+                ran.countDown();
+            }}, 700, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(700));
+    }
+
+    /**
+     * Verify tasks scheduled before startUp run once the wheel is started,
+     * and not before
+     * @throws Exception
+     */
+    @Test
+    public void testScheduleBeforeStartUp() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }}, 10, TimeUnit.MILLISECONDS);
+        assertFalse(ran.await(100, TimeUnit.MILLISECONDS));
+
+        scheduler.startUp();
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Verify shutDown stops the wheel and worker threads, and pending tasks
+     * never run
+     * @throws Exception
+     */
+    @Test
+    public void testShutDown() throws Exception {
+        scheduler = new HashedWheelScheduler(5, TimeUnit.MILLISECONDS, 512);
+        scheduler.setThreadCount(2);
+        scheduler.startUp();
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }}, 100, TimeUnit.MILLISECONDS);
+        scheduler.shutDown();
+
+        scheduler.wheelThread.join(1000);
+        assertFalse(scheduler.wheelThread.isAlive());
+        assertTrue(scheduler.workers.awaitTermination(1, TimeUnit.SECONDS));
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+}
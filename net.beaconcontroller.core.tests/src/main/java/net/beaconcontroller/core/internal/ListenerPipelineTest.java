@@ -0,0 +1,106 @@
+package net.beaconcontroller.core.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.internal.ListenerPipeline.DropPolicy;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPortStatus;
+
+/**
+ * The pipelines' workers are never started, so their queues only fill and
+ * what was queued or dropped can be inspected
+ */
+public class ListenerPipelineTest extends BeaconTestCase {
+    protected Controller getController() {
+        return (Controller) getApplicationContext().getBean("controller");
+    }
+
+    /**
+     * Verify that full pipeline queues drop PACKET_INs per the drop policy
+     * @throws Exception
+     */
+    @Test
+    public void testDropPolicy() throws Exception {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+
+        // workers are not started, so queues only fill
+        ListenerPipeline pipeline = new ListenerPipeline(getController(), 1,
+                2, DropPolicy.DROP_NEWEST);
+        LazyOFMessage first = new LazyOFMessage(new OFPacketIn());
+        pipeline.enqueue(sw, first);
+        pipeline.enqueue(sw, new LazyOFMessage(new OFPacketIn()));
+        pipeline.enqueue(sw, new LazyOFMessage(new OFPacketIn()));
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(2, pipeline.getQueueDepths().get(0).intValue());
+        assertSame(first, pipeline.queues.get(0).peek().m);
+
+        pipeline = new ListenerPipeline(getController(), 1, 2,
+                DropPolicy.DROP_OLDEST);
+        pipeline.enqueue(sw, first);
+        pipeline.enqueue(sw, new LazyOFMessage(new OFPacketIn()));
+        LazyOFMessage last = new LazyOFMessage(new OFPacketIn());
+        pipeline.enqueue(sw, last);
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(2, pipeline.getQueueDepths().get(0).intValue());
+        assertNotSame(first, pipeline.queues.get(0).peek().m);
+        verify(sw);
+    }
+
+    /**
+     * Verify control messages are queued past a full pipeline without
+     * blocking, and that shutDown releases an IO thread blocked on a PACKET_IN
+     * @throws Exception
+     */
+    @Test
+    public void testControlTraffic() throws Exception {
+        final IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+
+        // workers are not started, so queues only fill
+        final ListenerPipeline pipeline = new ListenerPipeline(getController(),
+                1, 1, DropPolicy.BLOCK);
+        pipeline.enqueue(sw, new LazyOFMessage(new OFPacketIn()));
+        LazyOFMessage portStatus = new LazyOFMessage(new OFPortStatus());
+        pipeline.enqueue(sw, portStatus);
+        assertEquals(2, pipeline.getQueueDepths().get(0).intValue());
+        assertSame(portStatus, new ArrayList<ListenerPipeline.Event>(
+                pipeline.queues.get(0)).get(1).m);
+
+        Thread io = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.enqueue(sw, new LazyOFMessage(new OFPacketIn()));
+            }});
+        io.start();
+        io.join(200);
+        assertTrue(io.isAlive());
+        pipeline.shutDown();
+        io.join(1000);
+        assertFalse(io.isAlive());
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(0, pipeline.getQueueDepths().get(0).intValue());
+
+        // nothing is queued once shut down
+        pipeline.enqueue(sw, new LazyOFMessage(new OFPortStatus()));
+        assertEquals(0, pipeline.getQueueDepths().get(0).intValue());
+        verify(sw);
+    }
+}
@@ -0,0 +1,82 @@
+package net.beaconcontroller.core.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.beaconcontroller.core.IOFMessageListener;
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+
+public class MessageTapTest extends BeaconTestCase {
+    protected Controller getController() {
+        return (Controller) getApplicationContext().getBean("controller");
+    }
+
+    /**
+     * Verify taps drop and count messages arriving at a full buffer, and are
+     * passed the rest on their own thread
+     * @throws Exception
+     */
+    @Test
+    public void testOffer() throws Exception {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+
+        final CountDownLatch received = new CountDownLatch(2);
+        IOFMessageListener listener = new IOFMessageListener() {
+            @Override
+            public Command receive(IOFSwitch sw, OFMessage msg) {
+                received.countDown();
+                return Command.STOP;
+            }
+
+            @Override
+            public String getName() {
+                return "tap";
+            }
+        };
+
+        // the worker is not started, so the buffer only fills
+        MessageTap tap = new MessageTap(listener, 2);
+        tap.addType(OFType.PACKET_IN, null);
+        tap.offer(sw, new LazyOFMessage(new OFPacketIn()));
+        tap.offer(sw, new LazyOFMessage(new OFPacketIn()));
+        tap.offer(sw, new LazyOFMessage(new OFPacketIn()));
+        assertEquals(1, tap.getDropped());
+        assertEquals(2, tap.getQueued());
+
+        tap.startUp();
+        try {
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+        } finally {
+            tap.shutDown();
+        }
+        assertTrue(tap.removeType(OFType.PACKET_IN));
+
+        // taps are registered per listener, and removed with their last type
+        Controller controller = getController();
+        controller.addOFMessageTap(OFType.PACKET_IN, listener, null);
+        controller.addOFMessageTap(OFType.PORT_STATUS, listener, null);
+        assertEquals(1, controller.getTapStatistics().size());
+        assertEquals("tap", controller.getTapStatistics().get(0).getName());
+        controller.removeOFMessageTap(OFType.PACKET_IN, listener);
+        assertEquals(1, controller.getTapStatistics().size());
+        controller.removeOFMessageTap(OFType.PORT_STATUS, listener);
+        assertEquals(0, controller.getTapStatistics().size());
+        verify(sw);
+    }
+}
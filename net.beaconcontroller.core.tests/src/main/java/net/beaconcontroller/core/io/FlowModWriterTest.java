@@ -0,0 +1,40 @@
+package net.beaconcontroller.core.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import net.beaconcontroller.packet.Ethernet;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+
+public class FlowModWriterTest extends BeaconTestCase {
+    /**
+     * Verify the reusable flow mod keeps its own copy of a match's addresses,
+     * and that reset clears them without touching the caller's
+     * @throws Exception
+     */
+    @Test
+    public void testSetMatch() throws Exception {
+        byte[] source = Ethernet.toMACAddress("00:00:00:00:00:01");
+        byte[] destination = Ethernet.toMACAddress("00:00:00:00:00:02");
+        OFMatch match = new OFMatch()
+            .setDataLayerSource(source)
+            .setDataLayerDestination(destination);
+        FlowModWriter writer = FlowModWriter.get().setMatch(match);
+        source[5] = 3;
+        destination[5] = 4;
+        OFMatch written = writer.getFlowMod().getMatch();
+        assertArrayEquals(Ethernet.toMACAddress("00:00:00:00:00:01"),
+                written.getDataLayerSource());
+        assertArrayEquals(Ethernet.toMACAddress("00:00:00:00:00:02"),
+                written.getDataLayerDestination());
+
+        FlowModWriter.get();
+        assertArrayEquals(new byte[6], written.getDataLayerSource());
+        assertArrayEquals(new byte[6], written.getDataLayerDestination());
+        assertEquals(3, source[5]);
+        assertEquals(4, destination[5]);
+    }
+}
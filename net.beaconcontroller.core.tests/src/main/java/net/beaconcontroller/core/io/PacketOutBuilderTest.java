@@ -0,0 +1,70 @@
+package net.beaconcontroller.core.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+
+public class PacketOutBuilderTest extends BeaconTestCase {
+    /**
+     * Verify a packet out built from an undecoded PACKET_IN carries its
+     * payload straight from the read buffer
+     * @throws Exception
+     */
+    @Test
+    public void testForLazyPacketIn() throws Exception {
+        byte[] packet = new byte[64];
+        for (int i = 0; i < packet.length; ++i)
+            packet[i] = (byte) i;
+        OFPacketIn pi = new OFPacketIn()
+            .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+            .setInPort((short) 3)
+            .setPacketData(packet)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) packet.length);
+        pi.setLengthU(OFPacketIn.MINIMUM_LENGTH + packet.length);
+        ByteBuffer in = ByteBuffer.allocate(pi.getLengthU());
+        pi.writeTo(in);
+        in.flip();
+        LazyOFMessage m = new LazyOFMessage();
+        m.wrap(in, 0, new BasicFactory());
+
+        OFPacketOut po = PacketOutBuilder.forPacketIn(m)
+            .addOutput(OFPort.OFPP_FLOOD.getValue())
+            .build();
+        assertFalse(m.isDecoded());
+        assertEquals(OFPacketOut.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH
+                + packet.length, po.getLengthU());
+
+        ByteBuffer out = ByteBuffer.allocate(po.getLengthU());
+        po.writeTo(out);
+        assertEquals(0, out.remaining());
+        out.flip();
+        OFPacketOut decoded = new OFPacketOut();
+        decoded.setActionFactory(new BasicFactory());
+        decoded.readFrom(out);
+        assertEquals((short) 3, decoded.getInPort());
+        assertEquals(OFPacketOut.BUFFER_ID_NONE, decoded.getBufferId());
+        assertTrue(Arrays.equals(packet, decoded.getPacketData()));
+
+        // buffered packets are sent without their payload
+        ((OFPacketIn) m.getMessage()).setBufferId(7);
+        po = PacketOutBuilder.forPacketIn(m)
+            .addOutput(OFPort.OFPP_FLOOD.getValue())
+            .build();
+        assertEquals(OFPacketOut.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH,
+                po.getLengthU());
+    }
+}
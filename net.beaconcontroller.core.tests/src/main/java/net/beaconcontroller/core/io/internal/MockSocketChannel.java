@@ -0,0 +1,209 @@
+package net.beaconcontroller.core.io.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * A SocketChannel that never touches the network. Each read returns the next
+ * segment queued with {@link #addReadData(byte[])}, so tests choose exactly
+ * where the stream is split. Each write accepts at most the configured limit
+ * of bytes across all the buffers it is given, and writes stop being accepted
+ * once the configured capacity is used up, as if the socket buffer were
+ * full, so tests can force partial writes. Everything accepted is recorded.
+ */
+public class MockSocketChannel extends SocketChannel {
+    protected boolean inputClosed = false;
+    protected LinkedList<ByteBuffer> reads;
+    protected int writeCalls;
+    protected long writeCapacity = Long.MAX_VALUE;
+    protected int writeLimit = Integer.MAX_VALUE;
+    protected ByteArrayOutputStream written;
+
+    public MockSocketChannel() {
+        super(SelectorProvider.provider());
+        this.reads = new LinkedList<ByteBuffer>();
+        this.written = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Queues data to be returned by a single read, or by as many as it takes
+     * if the reader's buffer is smaller
+     * @param data
+     */
+    public void addReadData(byte[] data) {
+        reads.add(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return true if queued data has not all been read yet
+     */
+    public boolean hasReadData() {
+        return !reads.isEmpty();
+    }
+
+    /**
+     * Makes reads return -1 once the queued data has been read
+     */
+    public void closeInput() {
+        inputClosed = true;
+    }
+
+    /**
+     * @param writeLimit maximum bytes accepted by each write call
+     */
+    public void setWriteLimit(int writeLimit) {
+        this.writeLimit = writeLimit;
+    }
+
+    /**
+     * @param writeCapacity bytes accepted by all further writes together,
+     * after which they accept nothing until it is raised again
+     */
+    public void setWriteCapacity(long writeCapacity) {
+        this.writeCapacity = writeCapacity;
+    }
+
+    /**
+     * @return everything written so far
+     */
+    public byte[] getWritten() {
+        return written.toByteArray();
+    }
+
+    /**
+     * @return the number of write calls made
+     */
+    public int getWriteCalls() {
+        return writeCalls;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ByteBuffer src = reads.peek();
+        if (src == null)
+            return inputClosed ? -1 : 0;
+        int count = Math.min(src.remaining(), dst.remaining());
+        for (int i = 0; i < count; ++i)
+            dst.put(src.get());
+        if (!src.hasRemaining())
+            reads.poll();
+        return count;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length)
+            throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            int count = read(dsts[i]);
+            if (count <= 0)
+                return (total == 0) ? count : total;
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+        ++writeCalls;
+        long limit = Math.min(writeLimit, writeCapacity);
+        long total = 0;
+        for (int i = offset; i < offset + length && total < limit; ++i) {
+            while (srcs[i].hasRemaining() && total < limit) {
+                written.write(srcs[i].get());
+                ++total;
+            }
+        }
+        writeCapacity -= total;
+        return total;
+    }
+
+    @Override
+    public Socket socket() {
+        return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        return true;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value)
+            throws IOException {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        return this;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+    }
+}
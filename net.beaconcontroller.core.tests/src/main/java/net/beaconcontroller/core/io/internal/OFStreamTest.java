@@ -0,0 +1,396 @@
+package net.beaconcontroller.core.io.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.core.io.OFMessageHandler;
+import net.beaconcontroller.core.io.OFWritePriority;
+import net.beaconcontroller.test.BeaconTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPortMod;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+
+/**
+ * Exercises OFStream against a MockSocketChannel, with a small chunk size so
+ * a handful of messages spans several pooled chunks
+ */
+public class OFStreamTest extends BeaconTestCase {
+    public static final int CHUNK_SIZE = 256;
+
+    protected IOLoop loop;
+    protected MockSocketChannel channel;
+
+    protected OFStream createStream() throws Exception {
+        loop = new IOLoop(null, 0);
+        loop.bufferPool = new BufferPool(CHUNK_SIZE, 16);
+        channel = new MockSocketChannel();
+        return new OFStream(channel, new BasicFactory(), null, loop);
+    }
+
+    /**
+     * @param xid
+     * @param dataLength
+     * @return a PACKET_IN carrying dataLength bytes that identify it
+     */
+    protected OFPacketIn getPacketIn(int xid, int dataLength) {
+        byte[] data = new byte[dataLength];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) (xid + i);
+        OFPacketIn pi = new OFPacketIn()
+            .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+            .setInPort((short) 1)
+            .setPacketData(data)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) dataLength);
+        pi.setLengthU(OFPacketIn.MINIMUM_LENGTH + dataLength);
+        pi.setXid(xid);
+        return pi;
+    }
+
+    /**
+     * @param messages
+     * @return the messages serialized back to back
+     */
+    protected byte[] toBytes(List<? extends OFMessage> messages) {
+        int length = 0;
+        for (OFMessage m : messages)
+            length += m.getLengthU();
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (OFMessage m : messages)
+            m.writeTo(buf);
+        return buf.array();
+    }
+
+    /**
+     * @param data messages serialized back to back
+     * @return the xid of each message, in order
+     */
+    protected List<Integer> getXids(byte[] data) {
+        List<Integer> xids = new ArrayList<Integer>();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            xids.add(buf.getInt(start + 4));
+            buf.position(start + (buf.getShort(start + 2) & 0xffff));
+        }
+        return xids;
+    }
+
+    /**
+     * Writes two messages per chunk, filling the given number of chunks
+     * @param stream
+     * @param priority
+     * @param firstXid xid of the first message, the rest count up from it
+     * @param chunks
+     * @throws Exception
+     */
+    protected void writeChunks(OFStream stream, OFWritePriority priority,
+            int firstXid, int chunks) throws Exception {
+        for (int i = 0; i < chunks * 2; ++i)
+            stream.write(getPacketIn(firstXid + i, 100), priority);
+    }
+
+    /**
+     * @param firstXid
+     * @param chunks
+     * @return the xids of the messages in the given chunks written by
+     * {@link #writeChunks(OFStream, OFWritePriority, int, int)}
+     */
+    protected List<Integer> chunkXids(int firstXid, int... chunks) {
+        List<Integer> xids = new ArrayList<Integer>();
+        for (int chunk : chunks) {
+            xids.add(firstXid + chunk * 2);
+            xids.add(firstXid + chunk * 2 + 1);
+        }
+        return xids;
+    }
+
+    /**
+     * Queues the data on the channel split at the given offsets, each piece
+     * returned by its own read
+     * @param data
+     * @param cuts
+     */
+    protected void addReads(byte[] data, int... cuts) {
+        int start = 0;
+        for (int cut : cuts) {
+            channel.addReadData(Arrays.copyOfRange(data, start, cut));
+            start = cut;
+        }
+        channel.addReadData(Arrays.copyOfRange(data, start, data.length));
+    }
+
+    /**
+     * Verify a message whose header is split across two reads is framed once
+     * the rest arrives
+     * @throws Exception
+     */
+    @Test
+    public void testReadSplitHeader() throws Exception {
+        OFStream stream = createStream();
+        List<OFMessage> sent = Arrays.asList(new OFMessage[] {
+                getPacketIn(1, 100)});
+        addReads(toBytes(sent), 3);
+
+        assertEquals(0, stream.read().size());
+        List<OFMessage> received = stream.read();
+        assertEquals(1, received.size());
+        assertArrayEquals(toBytes(sent), toBytes(received));
+    }
+
+    /**
+     * Verify a message whose body is split across two reads is framed once
+     * the rest arrives, and its header is readable without decoding it
+     * @throws Exception
+     */
+    @Test
+    public void testReadSplitBody() throws Exception {
+        OFStream stream = createStream();
+        List<OFMessage> sent = Arrays.asList(new OFMessage[] {
+                getPacketIn(7, 100), getPacketIn(8, 100)});
+        addReads(toBytes(sent), 30, 150);
+
+        assertEquals(0, stream.read().size());
+        final List<OFMessage> received = new ArrayList<OFMessage>();
+        assertEquals(1, stream.read(null, new OFMessageHandler() {
+            @Override
+            public void handleMessage(IOFSwitch sw, LazyOFMessage m) {
+                assertEquals(OFType.PACKET_IN, m.getType());
+                assertEquals(7, m.getXid());
+                assertEquals(OFPacketIn.MINIMUM_LENGTH + 100, m.getLengthU());
+                assertFalse(m.isDecoded());
+                received.add(m.getMessage());
+            }
+        }, 0));
+        received.addAll(stream.read());
+        assertEquals(2, received.size());
+        assertArrayEquals(toBytes(sent), toBytes(received));
+    }
+
+    /**
+     * Verify every complete message in one read is framed, in order, and a
+     * trailing partial one is kept for the next read
+     * @throws Exception
+     */
+    @Test
+    public void testReadSeveralMessages() throws Exception {
+        OFStream stream = createStream();
+        List<OFMessage> sent = Arrays.asList(new OFMessage[] {
+                getPacketIn(1, 10), getPacketIn(2, 100), getPacketIn(3, 0),
+                getPacketIn(4, 50)});
+        byte[] data = toBytes(sent);
+        addReads(data, data.length - 20);
+
+        List<OFMessage> received = new ArrayList<OFMessage>(stream.read());
+        assertEquals(3, received.size());
+        received.addAll(stream.read());
+        assertEquals(4, received.size());
+        assertArrayEquals(data, toBytes(received));
+
+        channel.closeInput();
+        assertNull(stream.read());
+    }
+
+    /**
+     * Verify a message larger than the loop's read buffer is assembled across
+     * several reads, and the messages around it are framed as usual
+     * @throws Exception
+     */
+    @Test
+    public void testReadLargerThanBuffer() throws Exception {
+        OFStream stream = createStream();
+        loop.readBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        List<OFMessage> sent = Arrays.asList(new OFMessage[] {
+                getPacketIn(1, 100), getPacketIn(2, 1000), getPacketIn(3, 100),
+                getPacketIn(4, 600), getPacketIn(5, 10)});
+        byte[] data = toBytes(sent);
+        int[] cuts = new int[data.length / 200];
+        for (int i = 0; i < cuts.length; ++i)
+            cuts[i] = (i + 1) * 200;
+        addReads(data, cuts);
+
+        // a read may take only part of a piece once the buffer is nearly full
+        List<OFMessage> received = new ArrayList<OFMessage>();
+        for (int i = 0; i < 100 && channel.hasReadData(); ++i)
+            received.addAll(stream.read());
+        assertEquals(5, received.size());
+        assertArrayEquals(data, toBytes(received));
+    }
+
+    /**
+     * Verify messages spanning several chunks, plus one too large for a
+     * chunk, reach the wire unchanged through partial writes, and the pooled
+     * chunks are handed back as each is finished
+     * @throws Exception
+     */
+    @Test
+    public void testGatheringWrite() throws Exception {
+        OFStream stream = createStream();
+        BufferPool pool = loop.getBufferPool();
+        channel.setWriteLimit(100);
+        channel.setWriteCapacity(300);
+
+        // 118 byte messages, two to a chunk, so five chunks
+        List<OFMessage> messages = new ArrayList<OFMessage>();
+        for (int i = 0; i < 10; ++i)
+            messages.add(getPacketIn(i, 100));
+        // a dedicated buffer that is not pooled
+        messages.add(getPacketIn(10, 400));
+        for (OFMessage m : messages)
+            stream.write(m);
+        byte[] expected = toBytes(messages);
+        assertEquals(expected.length, stream.getBytesQueued());
+        assertEquals(0, pool.getFreeCount());
+
+        // the first chunk is finished, the second is left part way through
+        stream.flush();
+        assertTrue(stream.needsFlush());
+        assertEquals(300, stream.getBytesFlushed());
+        assertNotNull(stream.outHead);
+        assertEquals(1, pool.getFreeCount());
+
+        // a full socket writes nothing and loses nothing
+        stream.flush();
+        assertEquals(300, stream.getBytesFlushed());
+
+        channel.setWriteCapacity(Long.MAX_VALUE);
+        stream.flush();
+        assertFalse(stream.needsFlush());
+        assertEquals(expected.length, stream.getBytesFlushed());
+        assertArrayEquals(expected, channel.getWritten());
+        assertTrue(channel.getWriteCalls() > 3);
+        assertEquals(5, pool.getFreeCount());
+
+        // chunks taken again come from the pool
+        stream.write(getPacketIn(11, 100));
+        assertEquals(4, pool.getFreeCount());
+        stream.flush();
+        assertEquals(5, pool.getFreeCount());
+    }
+
+    /**
+     * Verify CONTROL traffic written behind a BULK backlog is drained ahead
+     * of it, with the classes taking 4, 2 and 1 chunks per round
+     * @throws Exception
+     */
+    @Test
+    public void testWriteWeights() throws Exception {
+        OFStream stream = createStream();
+        writeChunks(stream, OFWritePriority.BULK, 300, 6);
+        writeChunks(stream, OFWritePriority.FLOW_SETUP, 200, 6);
+        writeChunks(stream, OFWritePriority.CONTROL, 100, 6);
+        stream.flush();
+        assertFalse(stream.needsFlush());
+
+        List<Integer> expected = new ArrayList<Integer>();
+        expected.addAll(chunkXids(100, 0, 1, 2, 3));
+        expected.addAll(chunkXids(200, 0, 1));
+        expected.addAll(chunkXids(300, 0));
+        expected.addAll(chunkXids(100, 4, 5));
+        expected.addAll(chunkXids(200, 2, 3));
+        expected.addAll(chunkXids(300, 1));
+        expected.addAll(chunkXids(200, 4, 5));
+        expected.addAll(chunkXids(300, 2, 3, 4, 5));
+        assertEquals(expected, getXids(channel.getWritten()));
+    }
+
+    /**
+     * Verify a barrier written after a port mod reaches the switch after it,
+     * so its reply confirms the port mod was applied
+     * @throws Exception
+     */
+    @Test
+    public void testBarrierAfterPortMod() throws Exception {
+        OFStream stream = createStream();
+        OFPortMod pm = new OFPortMod();
+        pm.setPortNumber((short) 1);
+        pm.setHardwareAddress(new byte[6]);
+        pm.setXid(1);
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(2);
+        stream.write(pm);
+        stream.write(barrier);
+        stream.flush();
+
+        byte[] written = channel.getWritten();
+        assertEquals(Arrays.asList(1, 2), getXids(written));
+        assertEquals(OFType.PORT_MOD.getTypeValue(), written[1]);
+        assertEquals(OFType.BARRIER_REQUEST.getTypeValue(),
+                written[OFPortMod.MINIMUM_LENGTH + 1]);
+    }
+
+    /**
+     * Verify a chunk left part way through by a flush is finished before any
+     * other, even CONTROL written after it
+     * @throws Exception
+     */
+    @Test
+    public void testPartialChunkFirst() throws Exception {
+        OFStream stream = createStream();
+        writeChunks(stream, OFWritePriority.CONTROL, 100, 1);
+        writeChunks(stream, OFWritePriority.BULK, 300, 2);
+        // the CONTROL chunk and part of the first BULK one
+        channel.setWriteCapacity(2 * 118 + 50);
+        stream.flush();
+        assertNotNull(stream.outHead);
+        assertEquals(1, stream.outChunks[OFWritePriority.BULK.ordinal()].size());
+
+        writeChunks(stream, OFWritePriority.CONTROL, 110, 2);
+        channel.setWriteCapacity(Long.MAX_VALUE);
+        stream.flush();
+        assertFalse(stream.needsFlush());
+        assertNull(stream.outHead);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        expected.addAll(chunkXids(100, 0));
+        expected.addAll(chunkXids(300, 0));
+        expected.addAll(chunkXids(110, 0, 1));
+        expected.addAll(chunkXids(300, 1));
+        assertEquals(expected, getXids(channel.getWritten()));
+        assertArrayEquals(channel.getWritten(), toBytes(Arrays.asList(
+                new OFMessage[] {
+                        getPacketIn(100, 100), getPacketIn(101, 100),
+                        getPacketIn(300, 100), getPacketIn(301, 100),
+                        getPacketIn(110, 100), getPacketIn(111, 100),
+                        getPacketIn(112, 100), getPacketIn(113, 100),
+                        getPacketIn(302, 100), getPacketIn(303, 100) })));
+    }
+
+    /**
+     * Verify the pool never retains more idle chunks than its maximum
+     * @throws Exception
+     */
+    @Test
+    public void testBufferPoolLimit() throws Exception {
+        BufferPool pool = new BufferPool(CHUNK_SIZE, 2);
+        List<ByteBuffer> taken = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 3; ++i)
+            taken.add(pool.take());
+        for (ByteBuffer buf : taken)
+            pool.recycle(buf);
+        assertEquals(2, pool.getFreeCount());
+
+        // buffers it did not allocate are left for the garbage collector
+        pool.recycle(ByteBuffer.allocate(CHUNK_SIZE));
+        pool.take();
+        assertEquals(1, pool.getFreeCount());
+    }
+}
@@ -8,6 +8,9 @@
         <tr>
           <th>Id</th>
           <th>Connected</th>
+          <th>Bytes Queued</th>
+          <th>Bytes Flushed</th>
+          <th>Writable</th>
           <th>Actions</th>
         </tr>
       </thead>
@@ -19,6 +22,9 @@
           <tr>
             <td><c:out value="${hexId}"/></td>
             <td><fmt:formatDate value="${sw.connectedSince}" pattern="MM/dd HH:mm:ss"/></td>
+            <td><c:out value="${sw.outputStream.bytesQueued}"/></td>
+            <td><c:out value="${sw.outputStream.bytesFlushed}"/></td>
+            <td><c:out value="${sw.outputStream.writable}"/></td>
             <td>
               <a href="<c:url value="/wm/core/switch/${hexId}/flows"/>" class="beaconNewRefreshingTab" name="Flows">Flows</a>
             </td>
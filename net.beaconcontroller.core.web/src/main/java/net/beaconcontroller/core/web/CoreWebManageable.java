@@ -13,9 +13,15 @@ import java.util.Map.Entry;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import net.beaconcontroller.core.EchoStatistics;
+import net.beaconcontroller.core.EventChannelStatistics;
+import net.beaconcontroller.core.HandshakeStatistics;
 import net.beaconcontroller.core.IBeaconProvider;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.PacketInStatistics;
+import net.beaconcontroller.core.TapStatistics;
+import net.beaconcontroller.core.io.IOLoopStatistics;
 import net.beaconcontroller.util.BundleAction;
 import net.beaconcontroller.web.IWebManageable;
 import net.beaconcontroller.web.view.BeaconJsonView;
@@ -151,9 +157,160 @@ public class CoreWebManageable implements BundleContextAware, IWebManageable {
         }
         layout.addSection(new TableSection("OpenFlow Packet Listeners", columnNames, cells), TwoColumnLayout.COLUMN1);
 
+        // Passive Listener Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("Tap");
+        columnNames.add("Queued");
+        columnNames.add("Capacity");
+        columnNames.add("Delivered");
+        columnNames.add("Dropped");
+        cells = new ArrayList<List<String>>();
+        for (TapStatistics tap : beaconProvider.getTapStatistics()) {
+            List<String> row = new ArrayList<String>();
+            row.add(tap.getName());
+            row.add(Integer.toString(tap.getQueued()));
+            row.add(Integer.toString(tap.getCapacity()));
+            row.add(Long.toString(tap.getDelivered()));
+            row.add(Long.toString(tap.getDropped()));
+            cells.add(row);
+        }
+        layout.addSection(new TableSection("OpenFlow Packet Taps", columnNames, cells), TwoColumnLayout.COLUMN1);
+
+        // Event Channel Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("Channel");
+        columnNames.add("Queued");
+        columnNames.add("Capacity");
+        columnNames.add("Lag (ms)");
+        columnNames.add("Max Lag (ms)");
+        columnNames.add("Published");
+        columnNames.add("Coalesced");
+        columnNames.add("Overflowed");
+        columnNames.add("Delivered");
+        columnNames.add("Batches");
+        cells = new ArrayList<List<String>>();
+        for (EventChannelStatistics channel : beaconProvider.getEventBus().getStatistics()) {
+            List<String> row = new ArrayList<String>();
+            row.add(channel.getName());
+            row.add(Integer.toString(channel.getQueued()));
+            row.add(Integer.toString(channel.getCapacity()));
+            row.add(Long.toString(channel.getLag()));
+            row.add(Long.toString(channel.getMaxLag()));
+            row.add(Long.toString(channel.getPublished()));
+            row.add(Long.toString(channel.getCoalesced()));
+            row.add(Long.toString(channel.getOverflowed()));
+            row.add(Long.toString(channel.getDelivered()));
+            row.add(Long.toString(channel.getBatches()));
+            cells.add(row);
+        }
+        layout.addSection(new TableSection("Event Channels", columnNames, cells), TwoColumnLayout.COLUMN1);
+
+        // Switch IO Thread Load Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("IO Thread");
+        columnNames.add("Switches");
+        columnNames.add("Messages/s");
+        cells = new ArrayList<List<String>>();
+        List<IOLoopStatistics> loops = beaconProvider.getIOLoopStatistics();
+        for (int i = 0; i < loops.size(); ++i) {
+            List<String> row = new ArrayList<String>();
+            row.add(Integer.toString(i));
+            row.add(Integer.toString(loops.get(i).getConnectionCount()));
+            row.add(Long.toString(loops.get(i).getMessageRate()));
+            cells.add(row);
+        }
+        layout.addSection(new TableSection("Switch IO Threads", columnNames, cells), TwoColumnLayout.COLUMN1);
+
+        // Switch Handshake Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("Accepted");
+        columnNames.add("Completed");
+        columnNames.add("In Progress");
+        columnNames.add("Accepted/s");
+        columnNames.add("Completed/s");
+        columnNames.add("Mean ms");
+        columnNames.add("Max ms");
+        columnNames.add("Retries");
+        cells = new ArrayList<List<String>>();
+        HandshakeStatistics handshakes = beaconProvider.getHandshakeStatistics();
+        List<String> handshakeRow = new ArrayList<String>();
+        handshakeRow.add(Long.toString(handshakes.getAccepted()));
+        handshakeRow.add(Long.toString(handshakes.getCompleted()));
+        handshakeRow.add(Long.toString(handshakes.getInProgress()));
+        handshakeRow.add(Long.toString(handshakes.getAcceptRate()));
+        handshakeRow.add(Long.toString(handshakes.getCompletionRate()));
+        handshakeRow.add(Long.toString(handshakes.getMeanHandshakeTime()));
+        handshakeRow.add(Long.toString(handshakes.getMaxHandshakeTime()));
+        handshakeRow.add(Long.toString(handshakes.getRetries()));
+        cells.add(handshakeRow);
+        layout.addSection(new TableSection("Switch Handshakes", columnNames, cells), TwoColumnLayout.COLUMN1);
+
+        // Echo Round Trip Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("Switch");
+        columnNames.add("Sent");
+        columnNames.add("Missed");
+        columnNames.add("Last RTT us");
+        columnNames.add("Mean RTT us");
+        columnNames.add("Max RTT us");
+        columnNames.add("RTT Histogram");
+        cells = new ArrayList<List<String>>();
+        for (EchoStatistics echo : beaconProvider.getEchoStatistics()) {
+            List<String> row = new ArrayList<String>();
+            row.add(HexString.toHexString(echo.getSwitchId()));
+            row.add(Long.toString(echo.getSent()));
+            row.add(Long.toString(echo.getMissed()));
+            row.add(Long.toString(echo.getLastRtt()));
+            row.add(Long.toString(echo.getMeanRtt()));
+            row.add(Long.toString(echo.getMaxRtt()));
+            row.add(formatHistogram(echo.getHistogram()));
+            cells.add(row);
+        }
+        layout.addSection(new TableSection("Switch Echo Round Trips", columnNames, cells), TwoColumnLayout.COLUMN1);
+
+        // PACKET_IN Admission Table
+        columnNames = new ArrayList<String>();
+        columnNames.add("Switch");
+        columnNames.add("Admitted");
+        columnNames.add("Sampled");
+        columnNames.add("Dropped");
+        columnNames.add("Drop Flows");
+        columnNames.add("Shed");
+        cells = new ArrayList<List<String>>();
+        for (PacketInStatistics stats : beaconProvider.getPacketInStatistics()) {
+            List<String> row = new ArrayList<String>();
+            row.add(HexString.toHexString(stats.getSwitchId()));
+            row.add(Long.toString(stats.getAdmitted()));
+            row.add(Long.toString(stats.getSampled()));
+            row.add(Long.toString(stats.getDropped()));
+            row.add(Long.toString(stats.getDropFlowsInstalled()));
+            row.add(Long.toString(stats.getShed()));
+            cells.add(row);
+        }
+        layout.addSection(new TableSection("PACKET_IN Admission", columnNames, cells), TwoColumnLayout.COLUMN1);
+
         return BeaconViewResolver.SIMPLE_VIEW;
     }
 
+    /**
+     * Lists the non empty buckets of an RTT histogram by their upper bound
+     * @param histogram
+     * @return
+     */
+    protected String formatHistogram(long[] histogram) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < histogram.length; ++i) {
+            if (histogram[i] == 0)
+                continue;
+            if (i < EchoStatistics.RTT_BUCKETS.length)
+                sb.append("<=" + EchoStatistics.RTT_BUCKETS[i] + "us:");
+            else
+                sb.append(">" + EchoStatistics.RTT_BUCKETS[i - 1] + "us:");
+            sb.append(histogram[i] + " ");
+        }
+        return sb.toString();
+    }
+
     @RequestMapping("/osgi")
     public String osgi(Map<String, Object> model) {
         Layout layout = new OneColumnLayout();
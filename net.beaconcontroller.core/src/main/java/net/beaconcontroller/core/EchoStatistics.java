@@ -0,0 +1,56 @@
+package net.beaconcontroller.core;
+
+/**
+ * Round trip times of the ECHO_REQUEST keepalives sent to a single switch,
+ * see {@link IBeaconProvider#getEchoStatistics()}. Times are in
+ * microseconds.
+ */
+public interface EchoStatistics {
+    /**
+     * Upper bounds in microseconds of each histogram bucket, the histogram
+     * has one more bucket for larger times
+     */
+    public static final long[] RTT_BUCKETS = { 100, 200, 500, 1000, 2000,
+            5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000 };
+
+    /**
+     * @return the datapath id of the switch
+     */
+    public long getSwitchId();
+
+    /**
+     * @return the number of ECHO_REQUESTs sent
+     */
+    public long getSent();
+
+    /**
+     * @return the number of ECHO_REQUESTs not answered before the next was due
+     */
+    public long getMissed();
+
+    /**
+     * @return the number of ECHO_REQUESTs missed since the last answered one
+     */
+    public int getConsecutiveMissed();
+
+    /**
+     * @return the most recent round trip time, 0 if none has been measured
+     */
+    public long getLastRtt();
+
+    /**
+     * @return the mean round trip time
+     */
+    public long getMeanRtt();
+
+    /**
+     * @return the longest round trip time
+     */
+    public long getMaxRtt();
+
+    /**
+     * @return a copy of the number of round trips falling in each bucket
+     * bounded by {@link #RTT_BUCKETS}
+     */
+    public long[] getHistogram();
+}
@@ -0,0 +1,60 @@
+package net.beaconcontroller.core;
+
+/**
+ * Counters of a channel created with
+ * {@link IEventBus#createChannel(String, int, IEventSubscriber, IEventCoalescer)},
+ * see {@link IEventBus#getStatistics()}.
+ */
+public interface EventChannelStatistics {
+    /**
+     * @return the name of the channel
+     */
+    public String getName();
+
+    /**
+     * @return the maximum number of undelivered events
+     */
+    public int getCapacity();
+
+    /**
+     * @return the number of events currently waiting for delivery
+     */
+    public int getQueued();
+
+    /**
+     * @return the number of events published
+     */
+    public long getPublished();
+
+    /**
+     * @return the number of published events merged into another event
+     * before delivery
+     */
+    public long getCoalesced();
+
+    /**
+     * @return the number of events discarded because the channel was full
+     */
+    public long getOverflowed();
+
+    /**
+     * @return the number of events passed to the subscriber
+     */
+    public long getDelivered();
+
+    /**
+     * @return the number of batches passed to the subscriber
+     */
+    public long getBatches();
+
+    /**
+     * @return the age in milliseconds of the oldest undelivered event
+     */
+    public long getLag();
+
+    /**
+     * @return the highest age in milliseconds of the oldest event of a batch
+     * when it was delivered
+     */
+    public long getMaxLag();
+}
@@ -0,0 +1,50 @@
+package net.beaconcontroller.core;
+
+/**
+ * Counters describing how quickly switch connections are accepted and
+ * brought through the OpenFlow handshake, see
+ * {@link IBeaconProvider#getHandshakeStatistics()}. A handshake is complete
+ * once the switch has sent its features reply and confirmed its config.
+ */
+public interface HandshakeStatistics {
+    /**
+     * @return the number of switch connections accepted since startup
+     */
+    public long getAccepted();
+
+    /**
+     * @return the number of handshakes completed since startup
+     */
+    public long getCompleted();
+
+    /**
+     * @return the number of connections still in the handshake
+     */
+    public long getInProgress();
+
+    /**
+     * @return connections accepted per second, as of the most recent sample
+     */
+    public long getAcceptRate();
+
+    /**
+     * @return handshakes completed per second, as of the most recent sample
+     */
+    public long getCompletionRate();
+
+    /**
+     * @return the mean milliseconds from accept to completed handshake
+     */
+    public long getMeanHandshakeTime();
+
+    /**
+     * @return the longest milliseconds from accept to completed handshake
+     */
+    public long getMaxHandshakeTime();
+
+    /**
+     * @return the number of handshake messages resent because the switch
+     * did not answer in time
+     */
+    public long getRetries();
+}
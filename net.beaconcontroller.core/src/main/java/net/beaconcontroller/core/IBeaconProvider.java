@@ -3,6 +3,8 @@ package net.beaconcontroller.core;
 import java.util.List;
 import java.util.Map;
 
+import net.beaconcontroller.core.io.IOLoopStatistics;
+
 import org.openflow.protocol.OFType;
 
 /**
@@ -19,6 +21,16 @@ public interface IBeaconProvider {
    */
   public void addOFMessageListener(OFType type, IOFMessageListener listener);
 
+  /**
+   * Adds a listener that is only called with messages matching interest,
+   * other messages skip the listener entirely
+   * @param type
+   * @param listener
+   * @param interest messages to receive, or null for all of the given type
+   */
+  public void addOFMessageListener(OFType type, IOFMessageListener listener,
+          OFMessageInterest interest);
+
   /**
    * 
    * @param type
@@ -26,6 +38,27 @@ public interface IBeaconProvider {
    */
   public void removeOFMessageListener(OFType type, IOFMessageListener listener);
 
+  /**
+   * Adds a passive listener that only observes messages. It is called on its
+   * own thread, off the path of the listeners that forward packets, with
+   * messages queued in a bounded buffer; messages arriving at a full buffer
+   * are dropped and counted. Its result is ignored, so it can not stop the
+   * listener chain, and messages are passed to it whether or not a listener
+   * stops the chain.
+   * @param type
+   * @param listener
+   * @param interest messages to receive, or null for all of the given type
+   */
+  public void addOFMessageTap(OFType type, IOFMessageListener listener,
+          OFMessageInterest interest);
+
+  /**
+   * 
+   * @param type
+   * @param listener
+   */
+  public void removeOFMessageTap(OFType type, IOFMessageListener listener);
+
   /**
    * Returns a list of all actively connected OpenFlow switches
    * @return the set of connected switches
@@ -49,4 +82,51 @@ public interface IBeaconProvider {
    * @return listeners
    */
   public Map<OFType, List<IOFMessageListener>> getListeners();
+
+  /**
+   * Returns the load of each thread servicing switch connections
+   * @return one entry per thread
+   */
+  public List<IOLoopStatistics> getIOLoopStatistics();
+
+  /**
+   * Returns the PACKET_IN admission counters of each connected switch, only
+   * switches that have sent a PACKET_IN are included
+   * @return one entry per switch
+   */
+  public List<PacketInStatistics> getPacketInStatistics();
+
+  /**
+   * Returns counters describing how quickly switches are accepted and
+   * complete the handshake
+   * @return the handshake statistics
+   */
+  public HandshakeStatistics getHandshakeStatistics();
+
+  /**
+   * Returns the round trip times of the ECHO_REQUEST keepalives sent to each
+   * connected switch
+   * @return one entry per switch
+   */
+  public List<EchoStatistics> getEchoStatistics();
+
+  /**
+   * Returns the queue counters of each passive listener
+   * @return one entry per listener
+   */
+  public List<TapStatistics> getTapStatistics();
+
+  /**
+   * Returns the scheduler shared by the controller and all bundles, use this
+   * rather than creating Timers or threads for periodic work
+   * @return the scheduler
+   */
+  public IScheduler getScheduler();
+
+  /**
+   * Returns the event bus shared by the controller and all bundles, use this
+   * rather than creating threads to pass updates to listeners
+   * @return the event bus
+   */
+  public IEventBus getEventBus();
 }
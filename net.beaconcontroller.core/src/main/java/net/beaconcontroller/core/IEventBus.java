@@ -0,0 +1,40 @@
+package net.beaconcontroller.core;
+
+import java.util.List;
+
+/**
+ * A controller-wide bus delivering events, such as switch, link and device
+ * updates, to their subscribers in batches. Each channel has one subscriber
+ * and a bounded queue of undelivered events, all channels share a small
+ * fixed set of threads, so subscribers should return promptly.
+ */
+public interface IEventBus {
+    /**
+     * Creates a channel passing published events to the subscriber. Events
+     * published while the subscriber is busy are delivered together in the
+     * next batch, in the order they were published.
+     * @param name the name shown in the channel statistics
+     * @param capacity maximum number of undelivered events, publishers block
+     * while the channel is full, or have their events discarded if they
+     * offer them
+     * @param subscriber
+     * @param coalescer merges undelivered events, or null to deliver every
+     * event
+     * @return the channel to publish to
+     */
+    public <E> IEventChannel<E> createChannel(String name, int capacity,
+            IEventSubscriber<E> subscriber, IEventCoalescer<E> coalescer);
+
+    /**
+     * Closes the channel, undelivered events are discarded and later
+     * publishes ignored
+     * @param channel
+     */
+    public void removeChannel(IEventChannel<?> channel);
+
+    /**
+     * Returns the queue counters of each channel
+     * @return one entry per channel
+     */
+    public List<EventChannelStatistics> getStatistics();
+}
@@ -0,0 +1,30 @@
+package net.beaconcontroller.core;
+
+/**
+ * A bounded queue of events for one subscriber, created by
+ * {@link IEventBus#createChannel(String, int, IEventSubscriber, IEventCoalescer)}.
+ */
+public interface IEventChannel<E> {
+    /**
+     * Queues the event for the subscriber, blocking while the channel is
+     * full. Events coalesced into one already queued never block.
+     * @param event
+     */
+    public void publish(E event);
+
+    /**
+     * Queues the event for the subscriber without ever blocking, for
+     * publishers on switch IO threads or holding locks. If the channel is
+     * full the event is discarded and counted, and a subscriber implementing
+     * {@link IEventResyncSubscriber} is resynced instead of being passed the
+     * next batch.
+     * @param event
+     * @return false if the event was discarded
+     */
+    public boolean offer(E event);
+
+    /**
+     * @return the name of the channel
+     */
+    public String getName();
+}
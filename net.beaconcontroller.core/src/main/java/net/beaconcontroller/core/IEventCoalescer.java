@@ -0,0 +1,26 @@
+package net.beaconcontroller.core;
+
+/**
+ * Merges repeats of an event that has not yet been delivered, so that a
+ * subscriber sees one event where the subject changed the same way several
+ * times. Events describing different changes, such as a link that went down
+ * and came back up, are all delivered in order.
+ */
+public interface IEventCoalescer<E> {
+    /**
+     * @param event
+     * @return the key identifying the subject of the event, undelivered events
+     * with equal keys are coalesced, null to never coalesce the event
+     */
+    public Object getKey(E event);
+
+    /**
+     * Called when an event is published while another with the same key is
+     * queued, with the most recently queued one. The result takes the queued
+     * event's place in the batch.
+     * @param pending the queued event
+     * @param next the newly published event
+     * @return the event replacing both, or null to queue next after pending
+     */
+    public E coalesce(E pending, E next);
+}
@@ -0,0 +1,16 @@
+package net.beaconcontroller.core;
+
+/**
+ * A subscriber able to rebuild what it has seen from the current state of
+ * the publisher, so events discarded by {@link IEventChannel#offer(Object)}
+ * when its channel is full are not lost.
+ */
+public interface IEventResyncSubscriber<E> extends IEventSubscriber<E> {
+    /**
+     * Called on an event bus thread in place of the next batch after events
+     * were discarded, the undelivered events are discarded with them. The
+     * subscriber must bring itself up to date with the current state, and
+     * tolerate later events it has already accounted for.
+     */
+    public void resync();
+}
@@ -0,0 +1,15 @@
+package net.beaconcontroller.core;
+
+import java.util.List;
+
+/**
+ * Receives the events published to an {@link IEventChannel}
+ */
+public interface IEventSubscriber<E> {
+    /**
+     * Called on an event bus thread with every event published since the
+     * previous batch, never concurrently for the same channel
+     * @param events an unmodifiable list of at least one event, oldest first
+     */
+    public void handleEvents(List<E> events);
+}
@@ -3,14 +3,18 @@ package net.beaconcontroller.core;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.OFWritePriority;
 
 import org.openflow.io.OFMessageInStream;
+import org.openflow.protocol.OFError;
 import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.statistics.OFStatistics;
@@ -127,4 +131,74 @@ public interface IOFSwitch {
      */
     public Future<List<OFStatistics>> getStatistics(OFStatisticsRequest request)
             throws IOException;
+
+    /**
+     * Sends a request that is answered by a single reply, such as a
+     * BARRIER_REQUEST, ECHO_REQUEST or GET_CONFIG_REQUEST, and returns a
+     * Future for the reply. The request is assigned the next transaction id.
+     * The Future completes with null if the switch responds with an OFError.
+     *
+     * @param request
+     * @return Future object wrapping the reply
+     * @throws IOException
+     */
+    public Future<OFMessage> sendRequest(OFMessage request) throws IOException;
+
+    /**
+     * Writes a batch of messages followed by a BARRIER_REQUEST in a single
+     * append to the output stream, and returns a Future completed once the
+     * switch answers the barrier, meaning it has processed every message in
+     * the batch. Each message is assigned the next transaction id.
+     *
+     * The Future's value is the list of OFErrors the switch returned for the
+     * batch, empty if all messages succeeded, or null if the Future was
+     * cancelled, timed out or the switch disconnected.
+     *
+     * @param messages
+     * @return Future object wrapping the errors
+     * @throws IOException
+     */
+    public Future<List<OFError>> sendBatch(List<OFMessage> messages)
+            throws IOException;
+
+    /**
+     * As {@link #sendBatch(List)}, queueing the batch and its barrier in the
+     * given priority class
+     * @param messages
+     * @param priority
+     * @return Future object wrapping the errors
+     * @throws IOException
+     */
+    public Future<List<OFError>> sendBatch(List<OFMessage> messages,
+            OFWritePriority priority) throws IOException;
+
+    /**
+     * Registers a listener that is handed messages from this switch carrying
+     * the given transaction id before any listeners registered with the
+     * IBeaconProvider. Only replies and OFErrors are matched against pending
+     * replies. The listener remains registered until it is removed.
+     * @param xid
+     * @param listener
+     */
+    public void addPendingReply(int xid, IOFMessageListener listener);
+
+    /**
+     * Removes the listener registered for the given transaction id, if it
+     * is still the one registered
+     * @param xid
+     * @param listener
+     */
+    public void removePendingReply(int xid, IOFMessageListener listener);
+
+    /**
+     * @param xid
+     * @return the listener waiting for a reply with the given transaction id,
+     * or null
+     */
+    public IOFMessageListener getPendingReply(int xid);
+
+    /**
+     * @return all listeners currently waiting for replies from this switch
+     */
+    public Collection<IOFMessageListener> getPendingReplies();
 }
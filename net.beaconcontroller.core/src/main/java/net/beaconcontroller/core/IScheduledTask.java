@@ -0,0 +1,19 @@
+package net.beaconcontroller.core;
+
+/**
+ * Handle to a task submitted to an IScheduler
+ */
+public interface IScheduledTask {
+    /**
+     * Prevents any future executions of the task, an execution already in
+     * progress is allowed to complete
+     * @return false if the task was already cancelled or has already run
+     * its only execution
+     */
+    public boolean cancel();
+
+    /**
+     * @return true if the task has been cancelled
+     */
+    public boolean isCancelled();
+}
@@ -0,0 +1,39 @@
+package net.beaconcontroller.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A controller-wide scheduler for delayed and periodic work. All tasks share
+ * a small fixed set of threads, so tasks should be short and must not block.
+ *
+ * Writing to a switch's {@link net.beaconcontroller.core.io.OFMessageSafeOutStream}
+ * is allowed, writes only buffer the message and queue the stream on its IO
+ * loop, and succeed even while the stream is not writable. Offering to an
+ * {@link IEventChannel} is allowed too. Tasks must not wait on an
+ * OFMessageFuture or batch future, publish to an IEventChannel, which blocks
+ * while the channel is full, or do socket or disk IO of their own; such work
+ * belongs on its own executor.
+ */
+public interface IScheduler {
+    /**
+     * Runs the task once after the given delay
+     * @param task
+     * @param delay
+     * @param unit
+     * @return a handle that can be used to cancel the task
+     */
+    public IScheduledTask schedule(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * Runs the task repeatedly, first after initialDelay and then every
+     * period. Executions of the same task never overlap, if one runs longer
+     * than the period the next starts as soon as it completes.
+     * @param task
+     * @param initialDelay
+     * @param period
+     * @param unit
+     * @return a handle that can be used to cancel the task
+     */
+    public IScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay,
+            long period, TimeUnit unit);
+}
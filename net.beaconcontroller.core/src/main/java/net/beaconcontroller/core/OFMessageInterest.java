@@ -0,0 +1,125 @@
+package net.beaconcontroller.core;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.beaconcontroller.core.io.LazyOFMessage;
+
+import org.openflow.protocol.OFType;
+
+/**
+ * Declares which messages an {@link IOFMessageListener} wants to receive, see
+ * {@link IBeaconProvider#addOFMessageListener(OFType, IOFMessageListener, OFMessageInterest)}.
+ * Messages that do not match are skipped without calling the listener, and
+ * are never decoded if no other listener wants them. Each criteria left unset
+ * matches everything. Ethertype and destination criteria only apply to
+ * PACKET_IN messages.
+ */
+public class OFMessageInterest {
+    public enum DestinationClass {
+        UNICAST, MULTICAST, BROADCAST
+    }
+
+    protected EnumSet<DestinationClass> destinationClasses;
+    protected short[] etherTypes;
+    protected Set<Long> switchIds;
+
+    /**
+     * @return the destinationClasses
+     */
+    public EnumSet<DestinationClass> getDestinationClasses() {
+        return destinationClasses;
+    }
+
+    /**
+     * @param destinationClasses the classes of destination MAC address to
+     * receive packets for, multicast does not include broadcast
+     */
+    public OFMessageInterest setDestinationClasses(DestinationClass first,
+            DestinationClass... rest) {
+        this.destinationClasses = EnumSet.of(first, rest);
+        return this;
+    }
+
+    /**
+     * @return the etherTypes
+     */
+    public short[] getEtherTypes() {
+        return etherTypes;
+    }
+
+    /**
+     * @param etherTypes the ethertypes to receive packets for
+     */
+    public OFMessageInterest setEtherTypes(short... etherTypes) {
+        this.etherTypes = Arrays.copyOf(etherTypes, etherTypes.length);
+        return this;
+    }
+
+    /**
+     * @return the switchIds
+     */
+    public Set<Long> getSwitchIds() {
+        return switchIds;
+    }
+
+    /**
+     * @param switchIds datapath ids of the switches to receive messages
+     * from, the set is consulted for each message so it may be updated
+     * concurrently if it is thread safe
+     */
+    public OFMessageInterest setSwitchIds(Set<Long> switchIds) {
+        this.switchIds = switchIds;
+        return this;
+    }
+
+    /**
+     * Tests the message against this interest using only its header and
+     * packet bytes, without decoding it
+     * @param sw
+     * @param m
+     * @return true if the listener should receive the message
+     */
+    public boolean matches(IOFSwitch sw, LazyOFMessage m) {
+        if (switchIds != null && !switchIds.contains(sw.getId()))
+            return false;
+        if (m.getType() != OFType.PACKET_IN)
+            return true;
+
+        if (etherTypes != null) {
+            short etherType = m.getPacketInEtherType();
+            boolean found = false;
+            for (int i = 0; i < etherTypes.length && !found; ++i) {
+                found = etherTypes[i] == etherType;
+            }
+            if (!found)
+                return false;
+        }
+
+        if (destinationClasses != null) {
+            if (m.getPacketInDataLength() < 6)
+                return false;
+            if (!destinationClasses.contains(getDestinationClass(m)))
+                return false;
+        }
+        return true;
+    }
+
+    protected static DestinationClass getDestinationClass(LazyOFMessage m) {
+        if ((m.getPacketInDataByte(0) & 0x1) == 0)
+            return DestinationClass.UNICAST;
+        for (int i = 0; i < 6; ++i) {
+            if (m.getPacketInDataByte(i) != (byte) 0xff)
+                return DestinationClass.MULTICAST;
+        }
+        return DestinationClass.BROADCAST;
+    }
+
+    @Override
+    public String toString() {
+        return "OFMessageInterest [destinationClasses=" + destinationClasses
+                + ", etherTypes=" + Arrays.toString(etherTypes)
+                + ", switchIds=" + switchIds + "]";
+    }
+}
@@ -0,0 +1,141 @@
+package net.beaconcontroller.core;
+
+import java.util.Arrays;
+
+import net.beaconcontroller.core.io.SlicedPacketIn;
+import net.beaconcontroller.packet.Ethernet;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+
+/**
+ * Holds the results of parsing a PACKET_IN so that each listener it is
+ * dispatched to does not parse it again. Everything is computed on first use
+ * and remembered for the rest of the listener chain.
+ *
+ * Listeners obtain the context with {@link #get(OFPacketIn)}. Contexts are
+ * confined to the dispatching thread, and the controller releases the current
+ * one once all listeners have been called. The returned OFMatch and Ethernet
+ * objects are shared with the other listeners and must not be modified,
+ * clone the match before changing it.
+ *
+ * Each thread reuses a single context and OFMatch for every PACKET_IN it
+ * dispatches, so neither may be kept once the listener returns.
+ */
+public class PacketContext {
+    /**
+     * Enough of the packet for the headers OFMatch loads, VLAN tagged IPv4
+     * with options followed by the transport ports
+     */
+    protected static final int MATCH_HEADER_LENGTH = 128;
+
+    protected static ThreadLocal<PacketContext> current = new ThreadLocal<PacketContext>() {
+        @Override
+        protected PacketContext initialValue() {
+            return new PacketContext();
+        }
+    };
+
+    protected long destinationMAC;
+    protected boolean destinationMACSet = false;
+    protected Ethernet ethernet;
+    protected byte[] headers = new byte[MATCH_HEADER_LENGTH];
+    protected OFMatch match = new OFMatch();
+    protected boolean matchSet = false;
+    protected OFPacketIn packetIn;
+    protected long sourceMAC;
+    protected boolean sourceMACSet = false;
+
+    protected PacketContext() {
+    }
+
+    /**
+     * Returns the context for the given PACKET_IN, resetting this thread's
+     * context if it is not already dispatching it
+     * @param packetIn
+     * @return
+     */
+    public static PacketContext get(OFPacketIn packetIn) {
+        PacketContext context = current.get();
+        if (context.packetIn != packetIn)
+            context.reset(packetIn);
+        return context;
+    }
+
+    /**
+     * Releases the context of the PACKET_IN this thread was dispatching
+     */
+    public static void clear() {
+        current.get().reset(null);
+    }
+
+    protected void reset(OFPacketIn packetIn) {
+        this.destinationMACSet = false;
+        this.ethernet = null;
+        this.matchSet = false;
+        this.packetIn = packetIn;
+        this.sourceMACSet = false;
+    }
+
+    /**
+     * @return the packetIn
+     */
+    public OFPacketIn getPacketIn() {
+        return packetIn;
+    }
+
+    /**
+     * Returns the match loaded from the packet and its input port. The
+     * packet data of a {@link SlicedPacketIn} is left in the read buffer,
+     * only its headers are copied, into the context's scratch array where
+     * any bytes past the end of the packet read as zero.
+     * @return
+     */
+    public OFMatch getMatch() {
+        if (!matchSet) {
+            if (packetIn instanceof SlicedPacketIn) {
+                int length = ((SlicedPacketIn) packetIn).getPacketData(headers);
+                Arrays.fill(headers, length, headers.length, (byte) 0);
+                match.loadFromPacket(headers, packetIn.getInPort());
+            } else {
+                match.loadFromPacket(packetIn.getPacketData(), packetIn.getInPort());
+            }
+            matchSet = true;
+        }
+        return match;
+    }
+
+    /**
+     * @return the fully deserialized packet
+     */
+    public Ethernet getEthernet() {
+        if (ethernet == null) {
+            byte[] data = packetIn.getPacketData();
+            ethernet = new Ethernet();
+            ethernet.deserialize(data, 0, data.length);
+        }
+        return ethernet;
+    }
+
+    /**
+     * @return the source MAC address as a long
+     */
+    public long getSourceMAC() {
+        if (!sourceMACSet) {
+            sourceMAC = Ethernet.toLong(getMatch().getDataLayerSource());
+            sourceMACSet = true;
+        }
+        return sourceMAC;
+    }
+
+    /**
+     * @return the destination MAC address as a long
+     */
+    public long getDestinationMAC() {
+        if (!destinationMACSet) {
+            destinationMAC = Ethernet.toLong(getMatch().getDataLayerDestination());
+            destinationMACSet = true;
+        }
+        return destinationMAC;
+    }
+}
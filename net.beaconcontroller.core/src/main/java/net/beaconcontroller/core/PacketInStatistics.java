@@ -0,0 +1,42 @@
+package net.beaconcontroller.core;
+
+/**
+ * PACKET_IN admission counters for a single switch, see
+ * {@link IBeaconProvider#getPacketInStatistics()}
+ */
+public interface PacketInStatistics {
+    /**
+     * @return the datapath id of the switch
+     */
+    public long getSwitchId();
+
+    /**
+     * @return the number of PACKET_INs within the rate limits that were
+     * passed to listeners
+     */
+    public long getAdmitted();
+
+    /**
+     * @return the number of PACKET_INs over the rate limits that were
+     * discarded
+     */
+    public long getDropped();
+
+    /**
+     * @return the number of PACKET_INs over the rate limits that were passed
+     * to listeners anyway as a sample
+     */
+    public long getSampled();
+
+    /**
+     * @return the number of temporary drop flows installed on ports of the
+     * switch that stayed over their limit
+     */
+    public long getDropFlowsInstalled();
+
+    /**
+     * @return the number of PACKET_INs discarded because more than the high
+     * watermark of output was waiting to be sent to the switch
+     */
+    public long getShed();
+}
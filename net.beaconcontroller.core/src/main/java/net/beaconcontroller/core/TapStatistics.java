@@ -0,0 +1,33 @@
+package net.beaconcontroller.core;
+
+/**
+ * Counters of a passive listener added with
+ * {@link IBeaconProvider#addOFMessageTap(org.openflow.protocol.OFType, IOFMessageListener, OFMessageInterest)},
+ * see {@link IBeaconProvider#getTapStatistics()}.
+ */
+public interface TapStatistics {
+    /**
+     * @return the name of the listener
+     */
+    public String getName();
+
+    /**
+     * @return the maximum number of messages queued for the listener
+     */
+    public int getCapacity();
+
+    /**
+     * @return the number of messages currently queued for the listener
+     */
+    public int getQueued();
+
+    /**
+     * @return the number of messages passed to the listener
+     */
+    public long getDelivered();
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long getDropped();
+}
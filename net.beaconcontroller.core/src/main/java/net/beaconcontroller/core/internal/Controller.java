@@ -13,30 +13,49 @@ import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import net.beaconcontroller.core.dao.IControllerDao;
+import net.beaconcontroller.core.EchoStatistics;
+import net.beaconcontroller.core.HandshakeStatistics;
 import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IEventBus;
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventResyncSubscriber;
 import net.beaconcontroller.core.IOFController;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFMessageListener.Command;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchFilter;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.IScheduler;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.PacketInStatistics;
+import net.beaconcontroller.core.TapStatistics;
+import net.beaconcontroller.core.io.IOLoopStatistics;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.core.io.OFMessageHandler;
+import net.beaconcontroller.core.io.internal.IOLoop;
+import net.beaconcontroller.core.internal.ListenerPipeline.DropPolicy;
 import net.beaconcontroller.core.io.internal.OFStream;
 import net.beaconcontroller.packet.IPv4;
 
@@ -55,17 +74,12 @@ import org.openflow.protocol.OFError.OFPortModFailedCode;
 import org.openflow.protocol.OFError.OFQueueOpFailedCode;
 import org.openflow.protocol.OFPortStatus.OFPortReason;
 import org.openflow.protocol.OFFeaturesReply;
-import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFGetConfigReply;
-import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPhysicalPort;
-import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFPortStatus;
-import org.openflow.protocol.OFSetConfig;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.factory.BasicFactory;
-import org.openflow.util.U16;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,25 +87,79 @@ import org.slf4j.LoggerFactory;
  * @author David Erickson (daviderickson@cs.stanford.edu) - 04/04/10
  *
  */
-public class Controller implements IBeaconProvider, IOFController, SelectListener {
+public class Controller implements IBeaconProvider, IOFController,
+        OFMessageHandler, SelectListener {
     protected static Logger log = LoggerFactory.getLogger(Controller.class);
-    protected static String SWITCH_REQUIREMENTS_TIMER_KEY = "SW_REQ_TIMER";
+    protected static String SWITCH_HANDSHAKE_KEY = "SW_HANDSHAKE";
+    protected static EnumSet<OFType> PENDING_REPLY_TYPES = EnumSet.of(
+            OFType.BARRIER_REPLY, OFType.ECHO_REPLY, OFType.ERROR,
+            OFType.FEATURES_REPLY, OFType.GET_CONFIG_REPLY,
+            OFType.QUEUE_GET_CONFIG_REPLY, OFType.STATS_REPLY);
 
+    // switches the listeners have been told about, only used while
+    // delivering switch updates
+    protected Set<IOFSwitch> announcedSwitches;
     protected Map<String,String> callbackOrdering;
     protected ExecutorService es;
     protected BasicFactory factory;
+    protected volatile Map<OFType, ListenerEntry[]> dispatchTable;
     protected String listenAddress;
     protected int listenPort = 6633;
+    protected EchoKeepalive echoKeepalive;
+    protected IScheduledTask echoTask;
+    protected long echoInterval = 5000;
+    protected EventBus eventBus;
+    protected int echoMaxMissed = 3;
+    protected long handshakeInitialDelay = 500;
+    protected long handshakeMaxDelay = 8000;
+    protected HandshakeMonitor handshakeMonitor;
+    protected IScheduledTask handshakeSampleTask;
+    protected int outputHighWatermark = OFStream.DEFAULT_HIGH_WATERMARK;
+    protected int outputLowWatermark = OFStream.DEFAULT_LOW_WATERMARK;
+    protected PacketInAdmission packetInAdmission;
+    protected long lastRebalanceSample;
+    protected int imbalancedSamples = 0;
     protected SelectLoop listenSelectLoop;
     protected ServerSocketChannel listenSock;
+    protected Map<OFType, Map<IOFMessageListener, OFMessageInterest>> listenerInterests;
     protected ConcurrentMap<OFType, List<IOFMessageListener>> messageListeners;
+    protected ListenerPipeline pipeline;
+    protected DropPolicy pipelineDropPolicy = DropPolicy.DROP_NEWEST;
+    protected int pipelineQueueCapacity = 1024;
+    protected Integer pipelineThreadCount;
+    protected long rebalanceInterval = 10000;
+    protected long rebalanceMinimumRate = 1000;
+    protected int rebalanceSamples = 3;
+    protected double rebalanceThreshold = 2.0;
+    protected IScheduledTask rebalanceTask;
+    protected int tapCapacity = 4096;
+    protected Map<IOFMessageListener, MessageTap> taps;
+    protected volatile Map<OFType, MessageTap[]> tapTable;
+    protected HashedWheelScheduler scheduler;
     protected volatile boolean shuttingDown = false;
     protected ConcurrentHashMap<Long, IOFSwitch> switches;
     protected Set<IOFSwitchListener> switchListeners;
-    protected List<SelectLoop> switchSelectLoops;
+    protected List<IOLoop> switchIOLoops;
     protected Integer threadCount;
-    protected BlockingQueue<Update> updates;
-    protected Thread updatesThread;
+    protected IEventChannel<Update> updates;
+    protected int updatesCapacity = 1024;
+
+    /**
+     * A listener along with everything needed to decide whether to call it
+     */
+    protected static class ListenerEntry {
+        public IOFMessageListener listener;
+        public OFMessageInterest interest;
+        public IOFSwitchFilter switchFilter;
+
+        public ListenerEntry(IOFMessageListener listener,
+                OFMessageInterest interest) {
+            this.listener = listener;
+            this.interest = interest;
+            if (listener instanceof IOFSwitchFilter)
+                this.switchFilter = (IOFSwitchFilter) listener;
+        }
+    }
 
     protected class Update {
         public IOFSwitch sw;
@@ -111,8 +179,17 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     public Controller() {
         this.messageListeners =
             new ConcurrentHashMap<OFType, List<IOFMessageListener>>();
+        this.listenerInterests =
+            new HashMap<OFType, Map<IOFMessageListener, OFMessageInterest>>();
+        this.dispatchTable = new EnumMap<OFType, ListenerEntry[]>(OFType.class);
+        this.taps = new LinkedHashMap<IOFMessageListener, MessageTap>();
+        this.tapTable = new EnumMap<OFType, MessageTap[]>(OFType.class);
         this.switchListeners = new CopyOnWriteArraySet<IOFSwitchListener>();
-        this.updates = new LinkedBlockingQueue<Update>();
+        this.announcedSwitches = new HashSet<IOFSwitch>();
+        this.eventBus = new EventBus();
+        this.scheduler = new HashedWheelScheduler();
+        this.packetInAdmission = new PacketInAdmission();
+        this.handshakeMonitor = new HandshakeMonitor();
     }
 
     public void handleEvent(SelectionKey key, Object arg) throws IOException {
@@ -129,13 +206,13 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         sock.socket().setTcpNoDelay(true);
         sock.configureBlocking(false);
         OFSwitchImpl sw = new OFSwitchImpl();
-        // hash this switch into a thread
-        final SelectLoop sl = switchSelectLoops.get(sock.hashCode()
-                % switchSelectLoops.size());
+        final IOLoop sl = selectIOLoop();
 
         // register initially with no ops because we need the key to init the stream
         SelectionKey switchKey = sl.registerBlocking(sock, 0, sw);
-        OFStream stream = new OFStream(sock, factory, switchKey);
+        OFStream stream = new OFStream(sock, factory, switchKey, sl);
+        stream.setWatermarks(outputHighWatermark, outputLowWatermark);
+        sl.addStream(stream);
         sw.setInputStream(stream);
         sw.setOutputStream(stream);
         sw.setSocketChannel(sock);
@@ -146,11 +223,11 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         sl.wakeup();
 
         // Send HELLO
-        stream.write(factory.getMessage(OFType.HELLO));
+        startHandshake(sw);
     }
 
     protected void handleSwitchEvent(SelectionKey key, IOFSwitch sw) {
-        OFMessageInStream in = sw.getInputStream();
+        OFStream in = (OFStream) sw.getInputStream();
         OFMessageOutStream out = sw.getOutputStream();
         try {
             /**
@@ -161,8 +238,7 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
                 return;
 
             if (key.isReadable()) {
-                List<OFMessage> msgs = in.read();
-                if (msgs == null) {
+                if (in.read(sw, this, 0) == -1) {
                     // if the other end closed its end of the connection, flush
                     // any remaining written data before closing our end
                     // (otherwise the socket hangs around forever in CLOSE_WAIT
@@ -170,8 +246,6 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
                     // never freed)
                     if (!out.needsFlush())
                         throw new EOFException();
-                } else {
-                    handleMessages(sw, msgs);
                 }
             }
 
@@ -179,26 +253,164 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
                 out.flush();
             }
 
-            /**
-             * Only register for interest in R OR W, not both, causes stream
-             * deadlock after some period of time
-             */
-            if (out.needsFlush())
-                key.interestOps(SelectionKey.OP_WRITE);
-            else
-                key.interestOps(SelectionKey.OP_READ);
+            // keep reading while output drains
+            in.updateInterestOps();
         } catch (IOException e) {
             // if we have an exception, disconnect the switch
             disconnectSwitch(key, sw);
         }
     }
 
+    /**
+     * Picks the loop to service a new connection, the one with the fewest
+     * connections, and of those the one with the lowest message rate
+     * @return
+     */
+    protected IOLoop selectIOLoop() {
+        IOLoop best = null;
+        for (IOLoop sl : switchIOLoops) {
+            if (best == null
+                    || sl.getConnectionCount() < best.getConnectionCount()
+                    || (sl.getConnectionCount() == best.getConnectionCount()
+                        && sl.getMessageRate() < best.getMessageRate()))
+                best = sl;
+        }
+        return best;
+    }
+
+    /**
+     * Samples the message rate of every loop, and if the busiest loop has
+     * been handling more than rebalanceThreshold times the rate of the least
+     * busy one for rebalanceSamples consecutive samples, migrates one switch
+     * from the busiest to the least busy loop.
+     */
+    protected void rebalanceIOLoops() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastRebalanceSample;
+        lastRebalanceSample = now;
+
+        IOLoop busiest = null;
+        IOLoop idlest = null;
+        for (IOLoop sl : switchIOLoops) {
+            sl.sampleMessageRate(elapsed);
+            if (busiest == null || sl.getMessageRate() > busiest.getMessageRate())
+                busiest = sl;
+            if (idlest == null || sl.getMessageRate() < idlest.getMessageRate())
+                idlest = sl;
+        }
+        if (log.isDebugEnabled()) {
+            for (int i = 0; i < switchIOLoops.size(); ++i) {
+                IOLoop sl = switchIOLoops.get(i);
+                log.debug("IO loop {} has {} connections at {} msgs/s",
+                        new Object[] { i, sl.getConnectionCount(),
+                                sl.getMessageRate() });
+            }
+        }
+
+        long difference = busiest.getMessageRate() - idlest.getMessageRate();
+        if (busiest == idlest
+                || busiest.getMessageRate() < rebalanceMinimumRate
+                || busiest.getMessageRate() < rebalanceThreshold * idlest.getMessageRate()) {
+            imbalancedSamples = 0;
+            return;
+        }
+        if (++imbalancedSamples < rebalanceSamples)
+            return;
+        imbalancedSamples = 0;
+
+        // move the switch that best evens out the two loops without making
+        // the destination the busier of the two
+        OFStream candidate = null;
+        for (OFStream stream : busiest.getStreams()) {
+            long rate = stream.getMessageRate();
+            if (rate == 0 || rate >= difference)
+                continue;
+            if (candidate == null
+                    || Math.abs(difference - 2 * rate) < Math.abs(difference - 2 * candidate.getMessageRate()))
+                candidate = stream;
+        }
+        if (candidate != null)
+            migrateStream(candidate, idlest);
+    }
+
+    /**
+     * Moves a connection to another loop. The key is cancelled on the current
+     * loop's thread, then the channel is registered with the same interest
+     * and attachment on the new loop's thread.
+     * @param stream
+     * @param to
+     */
+    protected void migrateStream(final OFStream stream, final IOLoop to) {
+        final IOLoop from = stream.getIOLoop();
+        if (from == to)
+            return;
+        from.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SelectionKey oldKey = stream.getKey();
+                if (!oldKey.isValid())
+                    return;
+                final int ops = oldKey.interestOps();
+                final Object attachment = oldKey.attachment();
+                oldKey.cancel();
+                from.removeStream(stream);
+                to.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            SelectionKey newKey = to.registerBlocking(
+                                    stream.getSocketChannel(), ops, attachment);
+                            stream.setIOLoop(to, newKey);
+                            to.addStream(stream);
+                            // pick up anything written during the move
+                            stream.flushFromLoop();
+                            log.info("Migrated {} to a less loaded IO loop", attachment);
+                        } catch (IOException e) {
+                            log.warn("Failed migrating " + attachment, e);
+                            if (attachment instanceof IOFSwitch)
+                                disconnectSwitch(stream.getKey(), (IOFSwitch) attachment);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Disconnects the switch from the thread servicing its connection, may be
+     * called from any thread
+     * @param sw
+     */
+    protected void disconnectSwitch(final IOFSwitch sw) {
+        final OFStream stream = (OFStream) sw.getInputStream();
+        stream.getIOLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!stream.getIOLoop().isLoopThread()) {
+                    // migrated since it was queued, follow it
+                    stream.getIOLoop().execute(this);
+                    return;
+                }
+                if (stream.getKey().isValid())
+                    disconnectSwitch(stream.getKey(), sw);
+            }
+        });
+    }
+
     /**
      * Disconnect the switch from Beacon
      */
     protected void disconnectSwitch(SelectionKey key, IOFSwitch sw) {
         key.cancel();
-        stopSwitchRequirementsTimer(sw);
+        OFStream stream = (OFStream) sw.getInputStream();
+        stream.getIOLoop().removeStream(stream);
+        SwitchHandshake handshake = getHandshake(sw);
+        if (handshake != null)
+            handshake.close();
+        for (IOFMessageListener pending : sw.getPendingReplies()) {
+            if (pending instanceof IOFSwitchListener)
+                ((IOFSwitchListener) pending).removedSwitch(sw);
+        }
         // only remove if we have a features reply (DPID)
         if (sw.getFeaturesReply() != null)
             removeSwitch(sw);
@@ -236,87 +448,199 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     protected void handleMessages(IOFSwitch sw, List<OFMessage> msgs)
             throws IOException {
         for (OFMessage m : msgs) {
-            switch (m.getType()) {
-                case HELLO:
-                    log.debug("HELLO from {}", sw);
-                    // Send initial Features Request
-                    sw.getOutputStream().write(factory.getMessage(OFType.FEATURES_REQUEST));
-
-                    // Delete all pre-existing flows
-                    OFMatch match = new OFMatch().setWildcards(OFMatch.OFPFW_ALL);
-                    OFMessage fm = ((OFFlowMod) sw.getInputStream().getMessageFactory()
-                        .getMessage(OFType.FLOW_MOD))
-                        .setMatch(match)
-                        .setCommand(OFFlowMod.OFPFC_DELETE)
-                        .setOutPort(OFPort.OFPP_NONE)
-                        .setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
-                    sw.getOutputStream().write(fm);
-
-                    // Start required message timer
-                    startSwitchRequirementsTimer(sw);
-                    break;
-                case ECHO_REQUEST:
-                    OFMessageInStream in = sw.getInputStream();
-                    OFMessageOutStream out = sw.getOutputStream();
-                    OFEchoReply reply = (OFEchoReply) in
-                            .getMessageFactory().getMessage(
-                                    OFType.ECHO_REPLY);
-                    reply.setXid(m.getXid());
-                    out.write(reply);
-                    break;
-                case FEATURES_REPLY:
-                    log.debug("Features Reply from {}", sw);
-                    sw.setFeaturesReply((OFFeaturesReply) m);
-                    addSwitch(sw);
-                    break;
-                case GET_CONFIG_REPLY:
-                    OFGetConfigReply cr = (OFGetConfigReply) m;
-                    if (cr.getMissSendLength() == (short)0xffff) {
-                        log.debug("Config Reply from {} confirms miss length set to 0xffff", sw);
-                        stopSwitchRequirementsTimer(sw);
-                    }
-                    break;
-                case ERROR:
-                    OFError error = (OFError) m;
-                    logError(sw, error);
+            handleMessage(sw, new LazyOFMessage(m));
+        }
+    }
+
+    /**
+     * Handle a reply to certain OFMessages, or pass it off to listeners. Called
+     * by the switch's input stream for each message as it is read, the body is
+     * only decoded if it is handled here or a listener is called with it.
+     * @param sw
+     * @param m
+     * @throws IOException
+     */
+    @Override
+    public void handleMessage(IOFSwitch sw, LazyOFMessage m) throws IOException {
+        if (PENDING_REPLY_TYPES.contains(m.getType())
+                && Command.STOP.equals(callPendingReply(sw, m)))
+            return;
+
+        SwitchHandshake handshake;
+        switch (m.getType()) {
+            case HELLO:
+                log.debug("HELLO from {}", sw);
+                handshake = getHandshake(sw);
+                if (handshake != null)
+                    handshake.helloReceived();
+                break;
+            case ECHO_REQUEST:
+                OFMessageInStream in = sw.getInputStream();
+                OFMessageOutStream out = sw.getOutputStream();
+                OFEchoReply reply = (OFEchoReply) in
+                        .getMessageFactory().getMessage(
+                                OFType.ECHO_REPLY);
+                reply.setXid(m.getXid());
+                out.write(reply);
+                break;
+            case FEATURES_REPLY:
+                log.debug("Features Reply from {}", sw);
+                sw.setFeaturesReply((OFFeaturesReply) m.getMessage());
+                addSwitch(sw);
+                handshake = getHandshake(sw);
+                if (handshake != null)
+                    handshake.featuresReceived();
+                break;
+            case GET_CONFIG_REPLY:
+                handshake = getHandshake(sw);
+                if (handshake != null)
+                    handshake.configReceived((OFGetConfigReply) m.getMessage());
+                break;
+            case ERROR:
+                OFError error = (OFError) m.getMessage();
+                logError(sw, error);
+                break;
+            default:
+                // Don't pass along messages until we have the features reply
+                if (sw.getFeaturesReply() == null) {
+                    log.warn("Message type {} received from switch " +
+                        "{} before receiving a features reply.", m.getType(), sw);
                     break;
-                default:
-                    // Don't pass along messages until we have the features reply
-                    if (sw.getFeaturesReply() == null) {
-                        log.warn("Message type {} received from switch " +
-                            "{} before receiving a features reply.", m.getType(), sw);
+                }
+                
+                if (m.getType() == OFType.PORT_STATUS)
+                    handlePortStatusMessage(sw, (OFPortStatus)m.getMessage());
+
+                if (m.getType() == OFType.PACKET_IN) {
+                    // the switch is not draining what we already owe it, so
+                    // take on no new flow setups; everything else, replies
+                    // included, is still handled
+                    if (!sw.getOutputStream().isWritable()) {
+                        packetInAdmission.shed(sw);
                         break;
                     }
-                    
-                    if (m.getType() == OFType.PORT_STATUS)
-                        handlePortStatusMessage(sw, (OFPortStatus)m);
-                    
-                    List<IOFMessageListener> listeners = messageListeners
-                            .get(m.getType());
-                    if (listeners != null) {
-                        for (IOFMessageListener listener : listeners) {
-                            try {
-                                if (listener instanceof IOFSwitchFilter) {
-                                    if (!((IOFSwitchFilter)listener).isInterested(sw)) {
-                                        break;
-                                    }
-                                }
-                                if (Command.STOP.equals(listener.receive(sw, m))) {
-                                    break;
-                                }
-                            } catch (Exception e) {
-                                log.error("Failure calling listener ["+
-                                        listener.toString()+
-                                        "] with message ["+m.toString()+
-                                        "]", e);
-                            }
-                        }
-                    } else {
+                    // Rate limit before spending any time decoding or dispatching
+                    if (packetInAdmission.isEnabled()
+                            && !packetInAdmission.admit(sw, m))
+                        break;
+                }
+
+                // passive listeners only get a copy, they never hold us up
+                MessageTap[] messageTaps = tapTable.get(m.getType());
+                if (messageTaps != null) {
+                    for (MessageTap tap : messageTaps)
+                        tap.offer(sw, m);
+                }
+
+                ListenerEntry[] entries = dispatchTable.get(m.getType());
+                if (entries == null) {
+                    // nobody is listening, drop it without decoding the body
+                    if (messageTaps == null)
                         log.error("Unhandled OF Message: {} from {}", m, sw);
+                } else if (isWanted(entries, sw, m)) {
+                    if (pipeline != null) {
+                        // the read buffer is reused once we return, so decode now
+                        pipeline.enqueue(sw, new LazyOFMessage(m.getMessage()));
+                    } else {
+                        callListeners(sw, m);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Passes a reply to the listener waiting on its transaction id, if any
+     * @param sw
+     * @param m
+     * @return the listener's result, or CONTINUE if nothing was waiting
+     */
+    protected Command callPendingReply(IOFSwitch sw, LazyOFMessage m) {
+        IOFMessageListener listener = sw.getPendingReply(m.getXid());
+        if (listener == null)
+            return Command.CONTINUE;
+        try {
+            return listener.receive(sw, m.getMessage());
+        } catch (Exception e) {
+            log.error("Failure calling pending reply ["+
+                    listener.toString()+
+                    "] with message ["+m.toString()+
+                    "]", e);
+            return Command.CONTINUE;
+        }
+    }
+
+    /**
+     * Passes the message to each listener registered for its type in order,
+     * until one is not interested in the switch or stops processing. An
+     * undecoded PACKET_IN is passed as a {@link net.beaconcontroller.core.io.SlicedPacketIn}
+     * so its packet data is not copied unless a listener reads it. Any
+     * PacketContext created by the listeners is released afterwards.
+     * @param sw
+     * @param m
+     */
+    protected void callListeners(IOFSwitch sw, LazyOFMessage m) {
+        ListenerEntry[] entries = dispatchTable.get(m.getType());
+        if (entries == null)
+            return;
+        for (ListenerEntry entry : entries) {
+            try {
+                if (entry.switchFilter != null) {
+                    if (!entry.switchFilter.isInterested(sw)) {
+                        break;
                     }
+                }
+                if (entry.interest != null && !entry.interest.matches(sw, m)) {
+                    continue;
+                }
+                if (Command.STOP.equals(entry.listener.receive(sw, m.getTransientMessage()))) {
                     break;
+                }
+            } catch (Exception e) {
+                log.error("Failure calling listener ["+
+                        entry.listener.toString()+
+                        "] with message ["+m.toString()+
+                        "]", e);
+            }
+        }
+        if (m.getType() == OFType.PACKET_IN)
+            PacketContext.clear();
+    }
+
+    /**
+     * @return true if at least one listener's interest matches the message
+     */
+    protected boolean isWanted(ListenerEntry[] entries, IOFSwitch sw,
+            LazyOFMessage m) {
+        for (ListenerEntry entry : entries) {
+            if (entry.interest == null || entry.interest.matches(sw, m))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rebuilds the table used to dispatch messages from the current
+     * listeners and their interests, called whenever either changes
+     */
+    protected synchronized void compileDispatchTable() {
+        Map<OFType, ListenerEntry[]> table =
+            new EnumMap<OFType, ListenerEntry[]>(OFType.class);
+        for (Entry<OFType, List<IOFMessageListener>> e : messageListeners.entrySet()) {
+            List<IOFMessageListener> listeners = e.getValue();
+            if (listeners.isEmpty())
+                continue;
+            Map<IOFMessageListener, OFMessageInterest> interests =
+                listenerInterests.get(e.getKey());
+            ListenerEntry[] entries = new ListenerEntry[listeners.size()];
+            for (int i = 0; i < entries.length; ++i) {
+                IOFMessageListener listener = listeners.get(i);
+                entries[i] = new ListenerEntry(listener,
+                        (interests == null) ? null : interests.get(listener));
             }
+            table.put(e.getKey(), entries);
         }
+        this.dispatchTable = table;
     }
 
     protected void logError(IOFSwitch sw, OFError error) {
@@ -353,52 +677,45 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     }
 
     /**
-     * Creates a timer that keeps requesting a switch's feature reply until it
-     * is received, then continues sending set config/get config messages until
-     * the timer is canceled.
+     * Creates the handshake state machine for a new connection and sends our
+     * HELLO
      * @param sw
+     * @return
+     * @throws IOException
      */
-    protected void startSwitchRequirementsTimer(final IOFSwitch sw) {
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    if (sw.getSocketChannel().isConnected()) {
-                        if (sw.getFeaturesReply() == null) {
-                            // send another features request
-                            sw.getOutputStream().write(factory.getMessage(OFType.FEATURES_REQUEST));
-                        } else {
-                            // Ensure we receive the full packet via PacketIn
-                            OFSetConfig config = (OFSetConfig) factory
-                                    .getMessage(OFType.SET_CONFIG);
-                            config.setMissSendLength((short) 0xffff)
-                                    .setLengthU(OFSetConfig.MINIMUM_LENGTH);
-                            sw.getOutputStream().write(config);
-                            sw.getOutputStream().write(factory.getMessage(OFType.GET_CONFIG_REQUEST));
-                        }
-                    } else {
-                        // stop timer
-                        stopSwitchRequirementsTimer(sw);
-                    }
-                } catch (Exception e) {
-                    stopSwitchRequirementsTimer(sw);
-                    log.error("Exception in switch requirements timer", e);
-                }
-            }}, 500, 500);
-        sw.getAttributes().put(SWITCH_REQUIREMENTS_TIMER_KEY, timer);
+    protected SwitchHandshake startHandshake(IOFSwitch sw) throws IOException {
+        SwitchHandshake handshake = new SwitchHandshake(sw, factory, scheduler,
+                handshakeMonitor, handshakeInitialDelay, handshakeMaxDelay);
+        sw.getAttributes().put(SWITCH_HANDSHAKE_KEY, handshake);
+        handshake.start();
+        return handshake;
     }
 
-    protected void stopSwitchRequirementsTimer(final IOFSwitch sw) {
-        Timer timer = (Timer) sw.getAttributes().get(
-                SWITCH_REQUIREMENTS_TIMER_KEY);
-        if (timer != null) {
-            timer.cancel();
-            sw.getAttributes().remove(SWITCH_REQUIREMENTS_TIMER_KEY);
-        }
+    /**
+     * @param sw
+     * @return the switch's handshake, or null if it was not accepted by this
+     * controller
+     */
+    protected SwitchHandshake getHandshake(IOFSwitch sw) {
+        return (SwitchHandshake) sw.getAttributes().get(SWITCH_HANDSHAKE_KEY);
+    }
+
+    public void addOFMessageListener(OFType type, IOFMessageListener listener) {
+        addOFMessageListener(type, listener, null);
     }
 
-    public synchronized void addOFMessageListener(OFType type, IOFMessageListener listener) {
+    public synchronized void addOFMessageListener(OFType type,
+            IOFMessageListener listener, OFMessageInterest interest) {
+        Map<IOFMessageListener, OFMessageInterest> interests = listenerInterests.get(type);
+        if (interests == null) {
+            interests = new HashMap<IOFMessageListener, OFMessageInterest>();
+            listenerInterests.put(type, interests);
+        }
+        if (interest != null)
+            interests.put(listener, interest);
+        else
+            interests.remove(listener);
+
         List<IOFMessageListener> listeners = messageListeners.get(type);
         if (listeners == null) {
             // Set atomically if no list exists
@@ -440,6 +757,7 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         } else {
             listeners.add(listener);
         }
+        compileDispatchTable();
     }
 
     public synchronized void removeOFMessageListener(OFType type, IOFMessageListener listener) {
@@ -447,9 +765,90 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         if (listeners != null) {
             listeners.remove(listener);
         }
+        Map<IOFMessageListener, OFMessageInterest> interests = listenerInterests.get(type);
+        if (interests != null) {
+            interests.remove(listener);
+        }
+        compileDispatchTable();
+    }
+
+    public synchronized void addOFMessageTap(OFType type,
+            IOFMessageListener listener, OFMessageInterest interest) {
+        MessageTap tap = taps.get(listener);
+        if (tap == null) {
+            tap = new MessageTap(listener, tapCapacity);
+            taps.put(listener, tap);
+            tap.startUp();
+        }
+        tap.addType(type, interest);
+        compileTapTable();
+    }
+
+    public synchronized void removeOFMessageTap(OFType type,
+            IOFMessageListener listener) {
+        MessageTap tap = taps.get(listener);
+        if (tap == null)
+            return;
+        if (tap.removeType(type)) {
+            taps.remove(listener);
+            tap.shutDown();
+        }
+        compileTapTable();
+    }
+
+    /**
+     * Rebuilds the table of taps for each message type, called whenever a
+     * tap is added or removed
+     */
+    protected synchronized void compileTapTable() {
+        Map<OFType, List<MessageTap>> byType =
+            new EnumMap<OFType, List<MessageTap>>(OFType.class);
+        for (MessageTap tap : taps.values()) {
+            for (OFType type : tap.getTypes()) {
+                List<MessageTap> l = byType.get(type);
+                if (l == null) {
+                    l = new ArrayList<MessageTap>();
+                    byType.put(type, l);
+                }
+                l.add(tap);
+            }
+        }
+        Map<OFType, MessageTap[]> table =
+            new EnumMap<OFType, MessageTap[]>(OFType.class);
+        for (Entry<OFType, List<MessageTap>> e : byType.entrySet()) {
+            table.put(e.getKey(), e.getValue().toArray(
+                    new MessageTap[e.getValue().size()]));
+        }
+        this.tapTable = table;
     }
 
     public void startUp() throws IOException {
+        scheduler.startUp();
+        eventBus.startUp();
+        updates = eventBus.createChannel("Switch Updates", updatesCapacity,
+                new IEventResyncSubscriber<Update>() {
+            @Override
+            public void handleEvents(List<Update> events) {
+                for (Update update : events)
+                    handleUpdate(update);
+            }
+
+            @Override
+            public void resync() {
+                resyncSwitches();
+            }}, new IEventCoalescer<Update>() {
+            @Override
+            public Object getKey(Update update) {
+                return update.sw;
+            }
+
+            @Override
+            public Update coalesce(Update pending, Update next) {
+                // listeners may have acted on the switch in between, so an
+                // add and a remove are both delivered
+                return (pending.added == next.added) ? next : null;
+            }});
+
         listenSock = ServerSocketChannel.open();
         listenSock.configureBlocking(false);
         if (listenAddress != null) {
@@ -465,11 +864,11 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         log.info("Controller listening on {}:{}", listenAddress == null ? "*"
                 : listenAddress, listenPort);
 
-        switchSelectLoops = new ArrayList<SelectLoop>();
+        switchIOLoops = new ArrayList<IOLoop>();
         switches = new ConcurrentHashMap<Long, IOFSwitch>();
 
         if (threadCount == null)
-            threadCount = 1;
+            threadCount = Runtime.getRuntime().availableProcessors();
 
         listenSelectLoop = new SelectLoop(this);
         // register this connection for accepting
@@ -491,13 +890,13 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
             }
         }
             
-        // Static number of threads equal to processor cores (+1 for listen loop)
+        // Static number of threads, by default equal to processor cores (+1 for listen loop)
         es = Executors.newFixedThreadPool(threadCount+1);
 
         // Launch one select loop per threadCount and start running
         for (int i = 0; i < threadCount; ++i) {
-            final SelectLoop sl = new SelectLoop(this, 500);
-            switchSelectLoops.add(sl);
+            final IOLoop sl = new IOLoop(this, 500);
+            switchIOLoops.add(sl);
             es.execute(new Runnable() {
                 public void run() {
                     try {
@@ -509,6 +908,43 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
             );
         }
 
+        if (rebalanceInterval > 0 && threadCount > 1) {
+            lastRebalanceSample = System.currentTimeMillis();
+            rebalanceTask = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebalanceIOLoops();
+                    } catch (Exception e) {
+                        log.error("Exception rebalancing switch IO loops", e);
+                    }
+                }}, rebalanceInterval, rebalanceInterval, TimeUnit.MILLISECONDS);
+        }
+
+        handshakeSampleTask = scheduler.scheduleAtFixedRate(new Runnable() {
+            long lastSample = System.currentTimeMillis();
+
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                handshakeMonitor.sampleRates(now - lastSample);
+                lastSample = now;
+            }}, 1, 1, TimeUnit.SECONDS);
+
+        if (echoInterval > 0) {
+            echoKeepalive = new EchoKeepalive(this, echoInterval, echoMaxMissed);
+            echoTask = scheduler.scheduleAtFixedRate(echoKeepalive,
+                    echoInterval, echoInterval, TimeUnit.MILLISECONDS);
+        }
+
+        // Optionally move listener processing off of the switch IO threads
+        if (pipelineThreadCount != null && pipelineThreadCount > 0) {
+            pipeline = new ListenerPipeline(this, pipelineThreadCount,
+                    pipelineQueueCapacity, pipelineDropPolicy);
+            pipeline.startUp();
+            log.info("Listener pipeline started with {} threads", pipelineThreadCount);
+        }
+
         es.execute(new Runnable() {
             public void run() {
                 // Start the listen loop
@@ -520,44 +956,6 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
             }}
         );
 
-        updatesThread = new Thread(new Runnable () {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        Update update = updates.take();
-                        if (coreDao != null) {
-                            try {
-                                if (update.added)
-                                    coreDao.addedSwitch(update.sw);
-                                else
-                                    coreDao.removedSwitch(update.sw);
-                            }
-                            catch (Exception e) {
-                                log.error("Error updating switch info in database", e);
-                            }
-                        }
-                        if (switchListeners != null) {
-                            for (IOFSwitchListener listener : switchListeners) {
-                                try {
-                                    if (update.added)
-                                        listener.addedSwitch(update.sw);
-                                    else
-                                        listener.removedSwitch(update.sw);
-                                } catch (Exception e) {
-                                    log.error("Error calling switch listener", e);
-                                }
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        log.warn("Controller updates thread interupted", e);
-                        if (shuttingDown)
-                            return;
-                    }
-                }
-            }}, "Controller Updates");
-        updatesThread.start();
-        
         log.info("Beacon Core Started");
     }
 
@@ -575,13 +973,27 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
             it.remove();
         }
 
+        if (rebalanceTask != null)
+            rebalanceTask.cancel();
+        handshakeSampleTask.cancel();
+        if (echoTask != null)
+            echoTask.cancel();
+
         // shutdown the connected switch select loops
-        for (SelectLoop sl : switchSelectLoops) {
+        for (IOLoop sl : switchIOLoops) {
             sl.shutdown();
         }
 
         es.shutdown();
-        updatesThread.interrupt();
+        if (pipeline != null)
+            pipeline.shutDown();
+        synchronized (this) {
+            for (MessageTap tap : taps.values())
+                tap.shutDown();
+        }
+        eventBus.removeChannel(updates);
+        eventBus.shutDown();
+        scheduler.shutDown();
 
         if (coreDao != null) {
             try {
@@ -615,6 +1027,7 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     protected void setMessageListeners(
             ConcurrentMap<OFType, List<IOFMessageListener>> messageListeners) {
         this.messageListeners = messageListeners;
+        compileDispatchTable();
     }
 
     @Override
@@ -632,6 +1045,54 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         this.switchListeners.remove(listener);
     }
 
+    /**
+     * Passes a switch update to the switch listeners, unless they have
+     * already been told of it by a resync, called on an event bus thread
+     * @param update
+     */
+    protected void handleUpdate(Update update) {
+        if (update.added ? !announcedSwitches.add(update.sw)
+                : !announcedSwitches.remove(update.sw))
+            return;
+        if (coreDao != null) {
+            try {
+                if (update.added)
+                    coreDao.addedSwitch(update.sw);
+                else
+                    coreDao.removedSwitch(update.sw);
+            }
+            catch (Exception e) {
+                log.error("Error updating switch info in database", e);
+            }
+        }
+        for (IOFSwitchListener listener : switchListeners) {
+            try {
+                if (update.added)
+                    listener.addedSwitch(update.sw);
+                else
+                    listener.removedSwitch(update.sw);
+            } catch (Exception e) {
+                log.error("Error calling switch listener", e);
+            }
+        }
+    }
+
+    /**
+     * Brings the switch listeners up to date with the connected switches
+     * after switch updates were discarded, called on an event bus thread
+     */
+    protected void resyncSwitches() {
+        log.warn("Switch updates overflowed, resyncing switch listeners");
+        for (IOFSwitch sw : new ArrayList<IOFSwitch>(announcedSwitches)) {
+            if (switches.get(sw.getId()) != sw)
+                handleUpdate(new Update(sw, false));
+        }
+        for (IOFSwitch sw : switches.values()) {
+            if (!announcedSwitches.contains(sw))
+                handleUpdate(new Update(sw, true));
+        }
+    }
+
     /**
      * Adds a switch that has connected and returned a features reply, then
      * calls all related listeners
@@ -647,12 +1108,9 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
                 log.error("Error writing added switch info to database", e);
             }
         }
-        Update update = new Update(sw, true);
-        try {
-            this.updates.put(update);
-        } catch (InterruptedException e) {
-            log.error("Failure adding update to queue", e);
-        }
+        // called on the switch's IO thread, which must never wait on the
+        // listeners
+        this.updates.offer(new Update(sw, true));
     }
 
     /**
@@ -662,7 +1120,11 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     protected void removeSwitch(IOFSwitch sw) {
         if (!this.switches.remove(sw.getId(), sw)) {
             log.warn("Removing switch {} has already been replaced", sw);
+        } else {
+            packetInAdmission.removeSwitch(sw.getId());
         }
+        if (echoKeepalive != null)
+            echoKeepalive.removeSwitch(sw);
         if (coreDao != null) {
             try {
                 coreDao.removedSwitch(sw);
@@ -671,12 +1133,7 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
                 log.error("Error writing removed switch info to database", e);
             }
         }
-        Update update = new Update(sw, false);
-        try {
-            this.updates.put(update);
-        } catch (InterruptedException e) {
-            log.error("Failure adding update to queue", e);
-        }
+        this.updates.offer(new Update(sw, false));
     }
 
     @Override
@@ -684,6 +1141,43 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
         return Collections.unmodifiableMap(this.messageListeners);
     }
 
+    @Override
+    public List<IOLoopStatistics> getIOLoopStatistics() {
+        return new ArrayList<IOLoopStatistics>(switchIOLoops);
+    }
+
+    @Override
+    public List<EchoStatistics> getEchoStatistics() {
+        if (echoKeepalive == null)
+            return new ArrayList<EchoStatistics>();
+        return echoKeepalive.getStatistics();
+    }
+
+    @Override
+    public synchronized List<TapStatistics> getTapStatistics() {
+        return new ArrayList<TapStatistics>(taps.values());
+    }
+
+    @Override
+    public HandshakeStatistics getHandshakeStatistics() {
+        return handshakeMonitor;
+    }
+
+    @Override
+    public List<PacketInStatistics> getPacketInStatistics() {
+        return packetInAdmission.getStatistics();
+    }
+
+    @Override
+    public IScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public IEventBus getEventBus() {
+        return eventBus;
+    }
+
     @Override
     public String getControllerId() {
         return getListenAddress() + ":" + Integer.toString(getListenPort());
@@ -733,4 +1227,144 @@ public class Controller implements IBeaconProvider, IOFController, SelectListene
     public void setThreadCount(Integer threadCount) {
         this.threadCount = threadCount;
     }
+
+    /**
+     * @param outputHighWatermark bytes of output buffered for a switch above
+     * which the controller discards its PACKET_INs
+     */
+    public void setOutputHighWatermark(int outputHighWatermark) {
+        this.outputHighWatermark = outputHighWatermark;
+    }
+
+    /**
+     * @param outputLowWatermark bytes of output buffered for a switch at or
+     * below which the controller handles its PACKET_INs again
+     */
+    public void setOutputLowWatermark(int outputLowWatermark) {
+        this.outputLowWatermark = outputLowWatermark;
+    }
+
+    /**
+     * @param echoInterval milliseconds between ECHO_REQUESTs sent to each
+     * switch, 0 disables them
+     */
+    public void setEchoInterval(long echoInterval) {
+        this.echoInterval = echoInterval;
+    }
+
+    /**
+     * @param echoMaxMissed consecutive unanswered ECHO_REQUESTs after which a
+     * switch is disconnected
+     */
+    public void setEchoMaxMissed(int echoMaxMissed) {
+        this.echoMaxMissed = echoMaxMissed;
+    }
+
+    /**
+     * @param handshakeInitialDelay milliseconds before unanswered handshake
+     * messages are first resent
+     */
+    public void setHandshakeInitialDelay(long handshakeInitialDelay) {
+        this.handshakeInitialDelay = handshakeInitialDelay;
+    }
+
+    /**
+     * @param handshakeMaxDelay upper bound in milliseconds on the backoff
+     * between handshake retries
+     */
+    public void setHandshakeMaxDelay(long handshakeMaxDelay) {
+        this.handshakeMaxDelay = handshakeMaxDelay;
+    }
+
+    /**
+     * @param packetInAdmission the rate limits applied to PACKET_INs
+     */
+    public void setPacketInAdmission(PacketInAdmission packetInAdmission) {
+        this.packetInAdmission = packetInAdmission;
+    }
+
+    /**
+     * @param rebalanceInterval milliseconds between samples of IO loop load,
+     * 0 disables rebalancing
+     */
+    public void setRebalanceInterval(long rebalanceInterval) {
+        this.rebalanceInterval = rebalanceInterval;
+    }
+
+    /**
+     * @param rebalanceMinimumRate messages per second the busiest IO loop must
+     * exceed before switches are migrated off of it
+     */
+    public void setRebalanceMinimumRate(long rebalanceMinimumRate) {
+        this.rebalanceMinimumRate = rebalanceMinimumRate;
+    }
+
+    /**
+     * @param rebalanceSamples consecutive imbalanced samples required before
+     * a switch is migrated
+     */
+    public void setRebalanceSamples(int rebalanceSamples) {
+        this.rebalanceSamples = rebalanceSamples;
+    }
+
+    /**
+     * @param rebalanceThreshold ratio of busiest to least busy IO loop message
+     * rates considered imbalanced
+     */
+    public void setRebalanceThreshold(double rebalanceThreshold) {
+        this.rebalanceThreshold = rebalanceThreshold;
+    }
+
+    /**
+     * @param pipelineThreadCount number of threads running the listener
+     * chain, null or 0 to run listeners on the switch IO threads
+     */
+    public void setPipelineThreadCount(Integer pipelineThreadCount) {
+        this.pipelineThreadCount = pipelineThreadCount;
+    }
+
+    /**
+     * @param tapCapacity maximum messages queued for each passive listener
+     * added after this is set
+     */
+    public void setTapCapacity(int tapCapacity) {
+        this.tapCapacity = tapCapacity;
+    }
+
+    /**
+     * @param eventBusThreadCount the number of threads delivering events
+     */
+    public void setEventBusThreadCount(int eventBusThreadCount) {
+        this.eventBus.setThreadCount(eventBusThreadCount);
+    }
+
+    /**
+     * @param updatesCapacity maximum switch updates waiting for the switch
+     * listeners
+     */
+    public void setUpdatesCapacity(int updatesCapacity) {
+        this.updatesCapacity = updatesCapacity;
+    }
+
+    /**
+     * @param pipelineQueueCapacity maximum messages queued per pipeline thread
+     */
+    public void setPipelineQueueCapacity(int pipelineQueueCapacity) {
+        this.pipelineQueueCapacity = pipelineQueueCapacity;
+    }
+
+    /**
+     * @param pipelineDropPolicy what to do with PACKET_INs arriving at a full
+     * pipeline queue
+     */
+    public void setPipelineDropPolicy(DropPolicy pipelineDropPolicy) {
+        this.pipelineDropPolicy = pipelineDropPolicy;
+    }
+
+    /**
+     * @return the listener pipeline, or null if listeners run on the IO threads
+     */
+    public ListenerPipeline getPipeline() {
+        return pipeline;
+    }
 }
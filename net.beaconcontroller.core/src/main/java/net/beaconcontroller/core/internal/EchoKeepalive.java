@@ -0,0 +1,205 @@
+package net.beaconcontroller.core.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import net.beaconcontroller.core.EchoStatistics;
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends an ECHO_REQUEST to every connected switch once per interval and
+ * records the round trip time of each reply. A probe still unanswered when
+ * the next is due counts as missed, and a switch that misses maxMissed probes
+ * in a row is disconnected.
+ */
+public class EchoKeepalive implements Runnable {
+    protected static Logger log = LoggerFactory.getLogger(EchoKeepalive.class);
+
+    protected class SwitchEcho implements EchoStatistics {
+        protected long switchId;
+        protected volatile long sent;
+        protected volatile long missed;
+        protected volatile int consecutiveMissed;
+        protected volatile long lastRtt;
+        protected long maxRtt;
+        protected long answered;
+        protected long totalRtt;
+        protected long[] histogram = new long[RTT_BUCKETS.length + 1];
+        protected EchoProbe pending;
+
+        public SwitchEcho(long switchId) {
+            this.switchId = switchId;
+        }
+
+        protected synchronized void recordRtt(long rtt) {
+            int i = 0;
+            while (i < RTT_BUCKETS.length && rtt > RTT_BUCKETS[i])
+                ++i;
+            ++histogram[i];
+            ++answered;
+            totalRtt += rtt;
+            if (rtt > maxRtt)
+                maxRtt = rtt;
+            lastRtt = rtt;
+            consecutiveMissed = 0;
+        }
+
+        @Override
+        public long getSwitchId() {
+            return switchId;
+        }
+
+        @Override
+        public long getSent() {
+            return sent;
+        }
+
+        @Override
+        public long getMissed() {
+            return missed;
+        }
+
+        @Override
+        public int getConsecutiveMissed() {
+            return consecutiveMissed;
+        }
+
+        @Override
+        public long getLastRtt() {
+            return lastRtt;
+        }
+
+        @Override
+        public synchronized long getMeanRtt() {
+            return (answered == 0) ? 0 : totalRtt / answered;
+        }
+
+        @Override
+        public synchronized long getMaxRtt() {
+            return maxRtt;
+        }
+
+        @Override
+        public synchronized long[] getHistogram() {
+            return Arrays.copyOf(histogram, histogram.length);
+        }
+    }
+
+    /**
+     * A pending ECHO_REQUEST, timing its reply
+     */
+    protected class EchoProbe extends OFReplyFuture {
+        protected SwitchEcho echo;
+        protected long sentAt;
+
+        public EchoProbe(IOFSwitch sw, int transactionId, SwitchEcho echo) {
+            super(controller, sw, OFType.ECHO_REPLY, transactionId,
+                    interval * 2, TimeUnit.MILLISECONDS);
+            this.echo = echo;
+            this.sentAt = System.nanoTime();
+        }
+
+        @Override
+        protected void handleReply(IOFSwitch sw, OFMessage msg) {
+            super.handleReply(sw, msg);
+            echo.recordRtt((System.nanoTime() - sentAt) / 1000);
+        }
+    }
+
+    protected Controller controller;
+    protected long interval;
+    protected int maxMissed;
+    protected ConcurrentMap<IOFSwitch, SwitchEcho> switchEchoes;
+
+    /**
+     * @param controller
+     * @param interval milliseconds between probes
+     * @param maxMissed consecutive missed probes after which the switch is
+     * disconnected
+     */
+    public EchoKeepalive(Controller controller, long interval, int maxMissed) {
+        this.controller = controller;
+        this.interval = interval;
+        this.maxMissed = maxMissed;
+        this.switchEchoes = new ConcurrentHashMap<IOFSwitch, SwitchEcho>();
+    }
+
+    @Override
+    public void run() {
+        // drop switches whose removal raced with a probe
+        for (IOFSwitch sw : switchEchoes.keySet()) {
+            if (controller.getSwitches().get(sw.getId()) != sw)
+                removeSwitch(sw);
+        }
+        for (IOFSwitch sw : controller.getSwitches().values()) {
+            try {
+                probe(sw);
+            } catch (Exception e) {
+                log.error("Exception probing switch " + sw, e);
+            }
+        }
+    }
+
+    /**
+     * Accounts for the previous probe of the switch, and sends the next one
+     * unless the switch has missed too many
+     * @param sw
+     * @throws IOException
+     */
+    protected void probe(IOFSwitch sw) throws IOException {
+        SwitchEcho echo = switchEchoes.get(sw);
+        if (echo == null) {
+            echo = new SwitchEcho(sw.getId());
+            switchEchoes.put(sw, echo);
+        }
+
+        EchoProbe previous = echo.pending;
+        if (previous != null && (!previous.isDone() || previous.result == null)) {
+            previous.cancel(true);
+            ++echo.missed;
+            if (++echo.consecutiveMissed >= maxMissed) {
+                log.warn("Switch {} missed {} echo requests, disconnecting",
+                        sw, echo.consecutiveMissed);
+                echo.pending = null;
+                controller.disconnectSwitch(sw);
+                return;
+            }
+        }
+
+        OFEchoRequest request = new OFEchoRequest();
+        request.setXid(sw.getNextTransactionId());
+        EchoProbe probe = new EchoProbe(sw, request.getXid(), echo);
+        echo.pending = probe;
+        sw.addPendingReply(request.getXid(), probe);
+        ++echo.sent;
+        sw.getOutputStream().write(request);
+    }
+
+    /**
+     * Forgets a disconnected switch
+     * @param sw
+     */
+    public void removeSwitch(IOFSwitch sw) {
+        SwitchEcho echo = switchEchoes.remove(sw);
+        if (echo != null && echo.pending != null)
+            echo.pending.cancel(true);
+    }
+
+    /**
+     * @return the statistics of every connected switch that has been probed
+     */
+    public List<EchoStatistics> getStatistics() {
+        return new ArrayList<EchoStatistics>(switchEchoes.values());
+    }
+}
@@ -0,0 +1,126 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.beaconcontroller.core.EventChannelStatistics;
+import net.beaconcontroller.core.IEventBus;
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventSubscriber;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An IEventBus delivering from a small fixed set of threads. A channel with
+ * undelivered events is placed once on the ready queue, so the ready queue
+ * never holds more entries than there are channels, and the thread taking it
+ * delivers everything it has queued in one batch.
+ *
+ * Events may be published before startUp is called, they are delivered once
+ * the bus is started.
+ */
+public class EventBus implements IEventBus {
+    protected static Logger log = LoggerFactory.getLogger(EventBus.class);
+
+    protected List<EventChannel<?>> channels;
+    protected ThreadLocal<Boolean> dispatching;
+    protected BlockingQueue<EventChannel<?>> ready;
+    protected volatile boolean shuttingDown = false;
+    protected int threadCount = 2;
+    protected List<Thread> threads;
+
+    public EventBus() {
+        this.channels = new CopyOnWriteArrayList<EventChannel<?>>();
+        this.dispatching = new ThreadLocal<Boolean>();
+        this.ready = new LinkedBlockingQueue<EventChannel<?>>();
+        this.threads = new ArrayList<Thread>();
+    }
+
+    public void startUp() {
+        for (int i = 0; i < threadCount; ++i) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatching.set(Boolean.TRUE);
+                    while (!shuttingDown) {
+                        try {
+                            EventChannel<?> channel = ready.take();
+                            if (deliver(channel))
+                                ready.add(channel);
+                        } catch (InterruptedException e) {
+                            if (shuttingDown)
+                                return;
+                        }
+                    }
+                }}, "Beacon Event Bus " + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+    }
+
+    public void shutDown() {
+        shuttingDown = true;
+        for (EventChannel<?> channel : channels)
+            channel.close();
+        for (Thread t : threads)
+            t.interrupt();
+    }
+
+    @Override
+    public <E> IEventChannel<E> createChannel(String name, int capacity,
+            IEventSubscriber<E> subscriber, IEventCoalescer<E> coalescer) {
+        EventChannel<E> channel = new EventChannel<E>(this, name, capacity,
+                subscriber, coalescer);
+        channels.add(channel);
+        return channel;
+    }
+
+    @Override
+    public void removeChannel(IEventChannel<?> channel) {
+        if (channels.remove(channel))
+            ((EventChannel<?>) channel).close();
+    }
+
+    @Override
+    public List<EventChannelStatistics> getStatistics() {
+        return new ArrayList<EventChannelStatistics>(channels);
+    }
+
+    /**
+     * Queues a channel that has events waiting, called by the channel at
+     * most once until its events have been delivered
+     * @param channel
+     */
+    protected void schedule(EventChannel<?> channel) {
+        ready.add(channel);
+    }
+
+    /**
+     * Delivers the channel's queued events
+     * @param channel
+     * @return true if more events were published during delivery
+     */
+    protected boolean deliver(EventChannel<?> channel) {
+        return channel.deliver();
+    }
+
+    /**
+     * @return true if the calling thread is one of the bus's delivery threads
+     */
+    protected boolean isDispatchThread() {
+        return dispatching.get() != null;
+    }
+
+    /**
+     * @param threadCount the number of threads delivering events
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+}
@@ -0,0 +1,250 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.beaconcontroller.core.EventChannelStatistics;
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventResyncSubscriber;
+import net.beaconcontroller.core.IEventSubscriber;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The undelivered events of one subscriber. Events are kept in publish order,
+ * with the latest queued event for each coalescer key indexed so merging a
+ * repeat into it is a single lookup. The channel is handed to the bus when
+ * its first event is queued and delivered by one bus thread at a time,
+ * events published during delivery go in the next batch.
+ */
+public class EventChannel<E> implements IEventChannel<E>, EventChannelStatistics {
+    protected static Logger log = LoggerFactory.getLogger(EventChannel.class);
+
+    protected static class Pending<E> {
+        public E event;
+        public long published;
+
+        public Pending(E event, long published) {
+            this.event = event;
+            this.published = published;
+        }
+    }
+
+    protected volatile long batches;
+    protected EventBus bus;
+    protected int capacity;
+    protected volatile boolean closed = false;
+    protected IEventCoalescer<E> coalescer;
+    protected long coalesced;
+    protected volatile long delivered;
+    protected volatile long maxLag;
+    protected Map<Object, Pending<E>> latest;
+    protected String name;
+    protected long overflowed;
+    protected List<Pending<E>> pending;
+    protected long published;
+    protected boolean resyncNeeded = false;
+    protected boolean scheduled = false;
+    protected IEventSubscriber<E> subscriber;
+
+    public EventChannel(EventBus bus, String name, int capacity,
+            IEventSubscriber<E> subscriber, IEventCoalescer<E> coalescer) {
+        this.bus = bus;
+        this.name = name;
+        this.capacity = capacity;
+        this.subscriber = subscriber;
+        this.coalescer = coalescer;
+        this.latest = new HashMap<Object, Pending<E>>();
+        this.pending = new ArrayList<Pending<E>>();
+    }
+
+    @Override
+    public void publish(E event) {
+        enqueue(event, true);
+    }
+
+    @Override
+    public boolean offer(E event) {
+        return enqueue(event, false);
+    }
+
+    /**
+     * @param event
+     * @param block whether to wait while the channel is full
+     * @return false if the event was discarded because the channel was full
+     */
+    protected boolean enqueue(E event, boolean block) {
+        Object key = (coalescer == null) ? null : coalescer.getKey(event);
+        boolean interrupted = false;
+        boolean schedule = false;
+        synchronized (this) {
+            if (closed)
+                return true;
+            ++published;
+            while (true) {
+                Pending<E> p = (key == null) ? null : latest.get(key);
+                if (p != null) {
+                    E merged = coalescer.coalesce(p.event, event);
+                    if (merged != null) {
+                        p.event = merged;
+                        ++coalesced;
+                        return true;
+                    }
+                }
+                // Bus threads never wait, they may be the ones needed to
+                // drain this channel
+                if (pending.size() < capacity || interrupted
+                        || bus.isDispatchThread())
+                    break;
+                if (!block) {
+                    ++overflowed;
+                    if (subscriber instanceof IEventResyncSubscriber) {
+                        resyncNeeded = true;
+                    } else {
+                        log.warn("Channel {} is full, discarding event {}",
+                                name, event);
+                    }
+                    return false;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (closed)
+                    break;
+            }
+            if (!closed) {
+                Pending<E> p = new Pending<E>(event, System.nanoTime());
+                pending.add(p);
+                if (key != null)
+                    latest.put(key, p);
+                schedule = !scheduled;
+                scheduled = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (schedule)
+            bus.schedule(this);
+        return true;
+    }
+
+    /**
+     * Passes the queued events to the subscriber as one batch, or has it
+     * resync if events were discarded, called by the bus on one thread at a
+     * time
+     * @return true if more events were published during delivery
+     */
+    protected boolean deliver() {
+        List<E> events = null;
+        long oldest;
+        synchronized (this) {
+            if (pending.isEmpty() || closed) {
+                scheduled = false;
+                return false;
+            }
+            oldest = pending.get(0).published;
+            if (!resyncNeeded) {
+                events = new ArrayList<E>(pending.size());
+                for (Pending<E> p : pending)
+                    events.add(p.event);
+            }
+            resyncNeeded = false;
+            pending.clear();
+            latest.clear();
+            notifyAll();
+        }
+
+        long lag = (System.nanoTime() - oldest) / 1000000;
+        if (lag > maxLag)
+            maxLag = lag;
+        try {
+            if (events == null)
+                ((IEventResyncSubscriber<E>) subscriber).resync();
+            else
+                subscriber.handleEvents(Collections.unmodifiableList(events));
+        } catch (Exception e) {
+            log.error("Failure delivering events on channel " + name, e);
+        }
+        if (events != null) {
+            delivered += events.size();
+            ++batches;
+        }
+
+        synchronized (this) {
+            if (pending.isEmpty() || closed) {
+                scheduled = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Discards undelivered events and wakes any blocked publishers
+     */
+    protected synchronized void close() {
+        closed = true;
+        pending.clear();
+        latest.clear();
+        notifyAll();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized int getQueued() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    @Override
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public synchronized long getOverflowed() {
+        return overflowed;
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered;
+    }
+
+    @Override
+    public long getBatches() {
+        return batches;
+    }
+
+    @Override
+    public synchronized long getLag() {
+        if (pending.isEmpty())
+            return 0;
+        return (System.nanoTime() - pending.get(0).published) / 1000000;
+    }
+
+    @Override
+    public long getMaxLag() {
+        return maxLag;
+    }
+}
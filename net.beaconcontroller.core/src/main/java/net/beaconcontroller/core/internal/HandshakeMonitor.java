@@ -0,0 +1,105 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.beaconcontroller.core.HandshakeStatistics;
+
+/**
+ * Collects the counters updated by each SwitchHandshake
+ */
+public class HandshakeMonitor implements HandshakeStatistics {
+    protected AtomicLong accepted = new AtomicLong();
+    protected volatile long acceptRate;
+    protected AtomicLong completed = new AtomicLong();
+    protected volatile long completionRate;
+    protected AtomicLong failed = new AtomicLong();
+    protected long lastAccepted;
+    protected long lastCompleted;
+    protected volatile long maxHandshakeTime;
+    protected AtomicLong retries = new AtomicLong();
+    protected AtomicLong totalHandshakeTime = new AtomicLong();
+
+    protected void accepted() {
+        accepted.incrementAndGet();
+    }
+
+    /**
+     * @param elapsed milliseconds taken by the handshake
+     */
+    protected void completed(long elapsed) {
+        totalHandshakeTime.addAndGet(elapsed);
+        completed.incrementAndGet();
+        synchronized (this) {
+            if (elapsed > maxHandshakeTime)
+                maxHandshakeTime = elapsed;
+        }
+    }
+
+    /**
+     * Called when a connection closes before completing the handshake
+     */
+    protected void abandoned() {
+        failed.incrementAndGet();
+    }
+
+    protected void retried() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Updates the rates from the counts since the previous sample. Only one
+     * thread should be sampling.
+     * @param elapsed milliseconds since the previous sample
+     */
+    protected void sampleRates(long elapsed) {
+        long a = accepted.get();
+        long c = completed.get();
+        if (elapsed > 0) {
+            acceptRate = (a - lastAccepted) * 1000 / elapsed;
+            completionRate = (c - lastCompleted) * 1000 / elapsed;
+        }
+        lastAccepted = a;
+        lastCompleted = c;
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getInProgress() {
+        return accepted.get() - completed.get() - failed.get();
+    }
+
+    @Override
+    public long getAcceptRate() {
+        return acceptRate;
+    }
+
+    @Override
+    public long getCompletionRate() {
+        return completionRate;
+    }
+
+    @Override
+    public long getMeanHandshakeTime() {
+        long c = completed.get();
+        return (c == 0) ? 0 : totalHandshakeTime.get() / c;
+    }
+
+    @Override
+    public long getMaxHandshakeTime() {
+        return maxHandshakeTime;
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.internal;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.IScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An IScheduler backed by a hashed timing wheel. A single thread advances the
+ * wheel once per tick and hands expired tasks to a small fixed pool of worker
+ * threads, so scheduling and cancelling are constant time regardless of how
+ * many timeouts are outstanding. Deadlines are rounded up to the next tick.
+ *
+ * Tasks may be scheduled before startUp is called, their delay counts from
+ * when they were scheduled but none runs before the wheel is started.
+ */
+public class HashedWheelScheduler implements IScheduler {
+    protected static Logger log = LoggerFactory.getLogger(HashedWheelScheduler.class);
+
+    protected class Task implements IScheduledTask {
+        protected Runnable runnable;
+        protected long deadline;
+        protected long period;
+        protected long remainingRounds;
+        protected volatile boolean cancelled = false;
+        protected volatile boolean expired = false;
+
+        public Task(Runnable runnable, long deadline, long period) {
+            this.runnable = runnable;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled || expired)
+                return false;
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        protected void run() {
+            if (cancelled)
+                return;
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                log.error("Exception in scheduled task " + runnable, e);
+            }
+            if (period > 0) {
+                // Fixed rate, but never allow a backlog of missed executions
+                deadline = Math.max(deadline + period, System.nanoTime());
+                if (!cancelled)
+                    newTasks.add(this);
+            } else {
+                expired = true;
+            }
+        }
+    }
+
+    protected List<Task>[] wheel;
+    protected int mask;
+    protected Queue<Task> newTasks;
+    protected long tickNanos;
+    protected long tick = 0;
+    protected long startTime;
+    protected int threadCount = 2;
+    protected ExecutorService workers;
+    protected Thread wheelThread;
+    protected volatile boolean shuttingDown = false;
+
+    public HashedWheelScheduler() {
+        this(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param tickDuration granularity of the wheel
+     * @param unit unit of tickDuration
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelScheduler(long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        if (size == 0)
+            size = 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; ++i) {
+            this.wheel[i] = new LinkedList<Task>();
+        }
+        this.mask = size - 1;
+        this.newTasks = new ConcurrentLinkedQueue<Task>();
+    }
+
+    @Override
+    public IScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        Task t = new Task(task, System.nanoTime() + unit.toNanos(delay), 0);
+        newTasks.add(t);
+        return t;
+    }
+
+    @Override
+    public IScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay,
+            long period, TimeUnit unit) {
+        if (period <= 0)
+            throw new IllegalArgumentException("period must be positive");
+        Task t = new Task(task, System.nanoTime() + unit.toNanos(initialDelay),
+                unit.toNanos(period));
+        newTasks.add(t);
+        return t;
+    }
+
+    public void startUp() {
+        final AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Beacon Scheduler Worker "
+                        + workerCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        startTime = System.nanoTime();
+        wheelThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }}, "Beacon Scheduler");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    public void shutDown() {
+        shuttingDown = true;
+        if (wheelThread != null)
+            wheelThread.interrupt();
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    protected void runWheel() {
+        while (!shuttingDown) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                } catch (InterruptedException e) {
+                    if (shuttingDown)
+                        return;
+                }
+                continue;
+            }
+            transferNewTasks();
+            expire(wheel[(int) (tick & mask)]);
+            ++tick;
+        }
+    }
+
+    /**
+     * Places newly scheduled tasks into their buckets, only called from the
+     * wheel thread
+     */
+    protected void transferNewTasks() {
+        Task t;
+        while ((t = newTasks.poll()) != null) {
+            if (t.cancelled)
+                continue;
+            // Ticks are counted from startTime, round up so tasks never run early
+            long ticks = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+            if (ticks < tick)
+                ticks = tick;
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    protected void expire(List<Task> bucket) {
+        for (Iterator<Task> it = bucket.iterator(); it.hasNext();) {
+            final Task t = it.next();
+            if (t.cancelled) {
+                it.remove();
+            } else if (t.remainingRounds > 0) {
+                --t.remainingRounds;
+            } else {
+                it.remove();
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            t.run();
+                        }});
+                } catch (Exception e) {
+                    log.warn("Unable to run scheduled task {}", t.runnable);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param threadCount the number of threads used to run expired tasks
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
+
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the IOFMessageListener chain on a pool of worker threads instead of
+ * the switch IO threads. Each switch is hashed by its datapath id onto a
+ * single worker so that its messages are delivered to listeners in the order
+ * they were received. Only PACKET_INs count against the capacity of a
+ * worker's queue, those arriving at a full queue are handled according to the
+ * configured DropPolicy. All other message types are queued behind them
+ * without waiting, so that no control traffic is lost and a slow listener
+ * never stops the IO thread from reading echo and barrier replies.
+ */
+public class ListenerPipeline {
+    protected static Logger log = LoggerFactory.getLogger(ListenerPipeline.class);
+
+    public enum DropPolicy {
+        /**
+         * Discard the arriving PACKET_IN
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest PACKET_IN queued for the worker
+         */
+        DROP_OLDEST,
+        /**
+         * Block the IO thread until the worker has room for the PACKET_IN, or
+         * the pipeline is shut down
+         */
+        BLOCK
+    }
+
+    protected static class Event {
+        public IOFSwitch sw;
+        public LazyOFMessage m;
+
+        public Event(IOFSwitch sw, LazyOFMessage m) {
+            this.sw = sw;
+            this.m = m;
+        }
+    }
+
+    protected Controller controller;
+    protected AtomicLong dropped;
+    protected DropPolicy dropPolicy;
+    protected List<Semaphore> packetInRoom;
+    protected List<BlockingQueue<Event>> queues;
+    protected volatile boolean shuttingDown = false;
+    protected List<Thread> workers;
+
+    /**
+     * @param controller the controller whose listeners are called
+     * @param threadCount number of worker threads
+     * @param queueCapacity maximum PACKET_INs queued per worker
+     * @param dropPolicy what to do with PACKET_INs when a queue is full
+     */
+    public ListenerPipeline(Controller controller, int threadCount,
+            int queueCapacity, DropPolicy dropPolicy) {
+        this.controller = controller;
+        this.dropped = new AtomicLong();
+        this.dropPolicy = dropPolicy;
+        this.packetInRoom = new ArrayList<Semaphore>(threadCount);
+        this.queues = new ArrayList<BlockingQueue<Event>>(threadCount);
+        this.workers = new ArrayList<Thread>(threadCount);
+        for (int i = 0; i < threadCount; ++i) {
+            packetInRoom.add(new Semaphore(queueCapacity));
+            queues.add(new LinkedBlockingQueue<Event>());
+        }
+    }
+
+    public void startUp() {
+        for (int i = 0; i < queues.size(); ++i) {
+            final BlockingQueue<Event> queue = queues.get(i);
+            final Semaphore room = packetInRoom.get(i);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            Event e = queue.take();
+                            if (e.m.getType() == OFType.PACKET_IN)
+                                room.release();
+                            controller.callListeners(e.sw, e.m);
+                        } catch (InterruptedException e) {
+                            if (shuttingDown)
+                                return;
+                        } catch (Exception e) {
+                            log.error("Exception in listener pipeline", e);
+                        }
+                    }
+                }}, "Listener Pipeline " + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public void shutDown() {
+        shuttingDown = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (BlockingQueue<Event> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Queues an already decoded message to be passed to the listeners by the
+     * worker owning the switch. Called from a switch IO thread, only
+     * PACKET_INs under DropPolicy.BLOCK ever wait.
+     * @param sw
+     * @param m
+     */
+    public void enqueue(IOFSwitch sw, LazyOFMessage m) {
+        if (shuttingDown)
+            return;
+        long id = sw.getId();
+        int index = (int) ((id ^ (id >>> 32)) & 0x7fffffff) % queues.size();
+        BlockingQueue<Event> queue = queues.get(index);
+        Event e = new Event(sw, m);
+        if (m.getType() != OFType.PACKET_IN) {
+            queue.add(e);
+            return;
+        }
+
+        Semaphore room = packetInRoom.get(index);
+        if (room.tryAcquire()) {
+            queue.add(e);
+            return;
+        }
+        if (dropPolicy == DropPolicy.BLOCK) {
+            try {
+                // wake periodically so shutDown releases a waiting IO thread
+                while (!shuttingDown) {
+                    if (room.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        queue.add(e);
+                        return;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                log.warn("Interrupted queueing message from {}", sw);
+                Thread.currentThread().interrupt();
+            }
+        } else if (dropPolicy == DropPolicy.DROP_OLDEST) {
+            // make room by evicting the oldest queued PACKET_IN, if any, its
+            // slot is handed to the arriving one
+            for (Iterator<Event> it = queue.iterator(); it.hasNext();) {
+                Event oldest = it.next();
+                if (oldest.m.getType() == OFType.PACKET_IN) {
+                    // the worker may have taken it in the meantime
+                    if (queue.remove(oldest)) {
+                        dropped.incrementAndGet();
+                        queue.add(e);
+                        return;
+                    }
+                    break;
+                }
+            }
+            if (room.tryAcquire()) {
+                queue.add(e);
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * @return the number of PACKET_INs discarded because a queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the current number of messages queued for each worker
+     */
+    public List<Integer> getQueueDepths() {
+        List<Integer> depths = new ArrayList<Integer>(queues.size());
+        for (BlockingQueue<Event> queue : queues) {
+            depths.add(queue.size());
+        }
+        return depths;
+    }
+}
@@ -0,0 +1,174 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.beaconcontroller.core.IOFMessageListener;
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.TapStatistics;
+import net.beaconcontroller.core.io.LazyOFMessage;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes messages to a passive listener on its own thread. Messages are
+ * queued from the switch IO threads in a bounded ring buffer, when it is full
+ * the arriving message is dropped and counted rather than holding up the IO
+ * thread. A listener tapping several message types gets a single buffer so
+ * it sees them in the order they were received.
+ */
+public class MessageTap implements TapStatistics {
+    protected static Logger log = LoggerFactory.getLogger(MessageTap.class);
+
+    protected static class Event {
+        public IOFSwitch sw;
+        public OFMessage m;
+
+        public Event(IOFSwitch sw, OFMessage m) {
+            this.sw = sw;
+            this.m = m;
+        }
+    }
+
+    protected int capacity;
+    protected volatile long delivered;
+    protected AtomicLong dropped;
+    protected volatile Map<OFType, OFMessageInterest> interests;
+    protected IOFMessageListener listener;
+    protected BlockingQueue<Event> ring;
+    protected volatile boolean shuttingDown = false;
+    protected Thread worker;
+
+    /**
+     * @param listener
+     * @param capacity maximum messages queued for the listener
+     */
+    public MessageTap(IOFMessageListener listener, int capacity) {
+        this.capacity = capacity;
+        this.dropped = new AtomicLong();
+        this.interests = new EnumMap<OFType, OFMessageInterest>(OFType.class);
+        this.listener = listener;
+        this.ring = new ArrayBlockingQueue<Event>(capacity);
+    }
+
+    public void startUp() {
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Event e;
+                    try {
+                        e = ring.take();
+                    } catch (InterruptedException ie) {
+                        if (shuttingDown)
+                            return;
+                        continue;
+                    }
+                    try {
+                        listener.receive(e.sw, e.m);
+                    } catch (Exception ex) {
+                        log.error("Failure calling tap [" + listener.getName()
+                                + "] with message [" + e.m + "]", ex);
+                    }
+                    if (e.m.getType() == OFType.PACKET_IN)
+                        PacketContext.clear();
+                    ++delivered;
+                }
+            }}, "Tap " + listener.getName());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void shutDown() {
+        shuttingDown = true;
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    /**
+     * Adds or replaces the type of message tapped
+     * @param type
+     * @param interest messages to receive, or null for all of the given type
+     */
+    public synchronized void addType(OFType type, OFMessageInterest interest) {
+        Map<OFType, OFMessageInterest> copy =
+            new EnumMap<OFType, OFMessageInterest>(interests);
+        copy.put(type, interest);
+        interests = copy;
+    }
+
+    /**
+     * @param type
+     * @return true if no types are left
+     */
+    public synchronized boolean removeType(OFType type) {
+        Map<OFType, OFMessageInterest> copy =
+            new EnumMap<OFType, OFMessageInterest>(interests);
+        copy.remove(type);
+        interests = copy;
+        return copy.isEmpty();
+    }
+
+    /**
+     * @return the tapped message types
+     */
+    public Set<OFType> getTypes() {
+        return interests.keySet();
+    }
+
+    /**
+     * Queues the message if the listener is interested in it, called from a
+     * switch IO thread. The read buffer is reused once the caller returns, so
+     * the message is decoded before it is queued.
+     * @param sw
+     * @param m
+     */
+    public void offer(IOFSwitch sw, LazyOFMessage m) {
+        OFMessageInterest interest = interests.get(m.getType());
+        if (interest != null && !interest.matches(sw, m))
+            return;
+        if (!ring.offer(new Event(sw, m.getMessage())))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * @return the listener
+     */
+    public IOFMessageListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public String getName() {
+        return listener.getName();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getQueued() {
+        return ring.size();
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,98 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+/**
+ * Tracks a batch of messages followed by a barrier, see
+ * {@link IOFSwitch#sendBatch(List)}. It is registered as a pending reply
+ * under the transaction id of every message in the batch and of the barrier.
+ * Errors for the batch's messages are collected as they arrive, and the
+ * Future completes with them once the barrier is answered, by either a
+ * BARRIER_REPLY or an OFError.
+ */
+public class OFBatchFuture extends OFMessageFuture<OFMessage, List<OFError>> {
+    protected List<OFError> errors;
+    protected int[] transactionIds;
+
+    /**
+     * @param beaconProvider
+     * @param sw
+     * @param transactionIds transaction ids of the batch's messages
+     * @param barrierTransactionId transaction id of the trailing barrier
+     */
+    public OFBatchFuture(IBeaconProvider beaconProvider, IOFSwitch sw,
+            int[] transactionIds, int barrierTransactionId) {
+        super(beaconProvider, sw, OFType.BARRIER_REPLY, barrierTransactionId);
+        init(transactionIds);
+    }
+
+    public OFBatchFuture(IBeaconProvider beaconProvider, IOFSwitch sw,
+            int[] transactionIds, int barrierTransactionId, long timeout,
+            TimeUnit unit) {
+        super(beaconProvider, sw, OFType.BARRIER_REPLY, barrierTransactionId,
+                timeout, unit);
+        init(transactionIds);
+    }
+
+    private void init(int[] transactionIds) {
+        this.errors = new ArrayList<OFError>();
+        this.transactionIds = transactionIds;
+    }
+
+    /**
+     * Registers this future for the replies to the batch and its barrier
+     */
+    protected void register() {
+        for (int xid : transactionIds) {
+            sw.addPendingReply(xid, this);
+        }
+        sw.addPendingReply(transactionId, this);
+    }
+
+    @Override
+    protected void unRegister() {
+        for (int xid : transactionIds) {
+            sw.removePendingReply(xid, this);
+        }
+        super.unRegister();
+    }
+
+    @Override
+    public Command receive(IOFSwitch sw, OFMessage msg) {
+        if (msg.getXid() == transactionId) {
+            if (msg.getType() == OFType.ERROR)
+                errors.add((OFError) msg);
+            else if (msg.getType() != responseType)
+                return Command.CONTINUE;
+            handleReply(sw, msg);
+            unRegister();
+            this.timeoutTask.cancel();
+            this.latch.countDown();
+            return (msg.getType() == OFType.ERROR) ? Command.CONTINUE
+                    : Command.STOP;
+        }
+        // let the controller log errors for the batch's messages too
+        if (msg.getType() == OFType.ERROR)
+            errors.add((OFError) msg);
+        return Command.CONTINUE;
+    }
+
+    @Override
+    protected void handleReply(IOFSwitch sw, OFMessage msg) {
+        this.result = errors;
+    }
+
+    @Override
+    protected boolean isFinished() {
+        return this.result != null;
+    }
+}
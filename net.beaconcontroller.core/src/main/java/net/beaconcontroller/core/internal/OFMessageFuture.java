@@ -1,7 +1,5 @@
 package net.beaconcontroller.core.internal;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -16,10 +14,14 @@ import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchFilter;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduledTask;
 
 /**
- * A Future object used to retrieve asynchronous OFMessage replies. Unregisters
- * and cancels itself by default after 60 seconds. This class is meant to be
+ * A Future object used to retrieve asynchronous OFMessage replies. It is
+ * registered as a pending reply on the switch under the request's transaction
+ * id, see {@link IOFSwitch#addPendingReply(int, IOFMessageListener)}.
+ * Unregisters and cancels itself by default after 60 seconds, or when an
+ * OFError carrying its transaction id is received. This class is meant to be
  * sub-classed and proper behavior added to the handleReply method, and
  * termination of the Future to be handled in the isFinished method.
  *
@@ -34,7 +36,7 @@ public abstract class OFMessageFuture<T,V> implements Future<V>, IOFMessageListe
     protected OFType responseType;
     protected volatile V result;
     protected IOFSwitch sw;
-    protected Timer timeoutTimer;
+    protected IScheduledTask timeoutTask;
     protected int transactionId;
 
     public OFMessageFuture(IBeaconProvider beaconProvider, IOFSwitch sw,
@@ -51,18 +53,16 @@ public abstract class OFMessageFuture<T,V> implements Future<V>, IOFMessageListe
         this.sw = sw;
         this.transactionId = transactionId;
 
-        this.timeoutTimer = new Timer();
         final OFMessageFuture<T, V> future = this;
-        this.timeoutTimer.schedule(new TimerTask() {
+        this.timeoutTask = beaconProvider.getScheduler().schedule(new Runnable() {
             @Override
             public void run() {
                 future.cancel(true);
-            }}, unit.toMillis(timeout));
+            }}, timeout, unit);
     }
 
     protected void unRegister() {
-        this.beaconProvider.removeOFMessageListener(this.responseType, this);
-        this.beaconProvider.removeOFSwitchListener(this);
+        this.sw.removePendingReply(this.transactionId, this);
     }
 
     @Override
@@ -74,6 +74,7 @@ public abstract class OFMessageFuture<T,V> implements Future<V>, IOFMessageListe
     public void removedSwitch(IOFSwitch sw) {
         if (this.sw.equals(sw)) {
             unRegister();
+            this.timeoutTask.cancel();
             this.latch.countDown();
         }
     }
@@ -89,11 +90,19 @@ public abstract class OFMessageFuture<T,V> implements Future<V>, IOFMessageListe
 
     @Override
     public Command receive(IOFSwitch sw, OFMessage msg) {
-        if (transactionId == msg.getXid()) {
+        if (transactionId != msg.getXid()) {
+            return Command.CONTINUE;
+        } else if (msg.getType() == OFType.ERROR) {
+            // the request failed, let the controller log the error too
+            unRegister();
+            this.timeoutTask.cancel();
+            this.latch.countDown();
+            return Command.CONTINUE;
+        } else if (msg.getType() == responseType) {
             handleReply(sw, msg);
             if (isFinished()) {
                 unRegister();
-                this.timeoutTimer.cancel();
+                this.timeoutTask.cancel();
                 this.latch.countDown();
             }
             return Command.STOP;
@@ -135,6 +144,7 @@ public abstract class OFMessageFuture<T,V> implements Future<V>, IOFMessageListe
             return false;
         } else {
             unRegister();
+            this.timeoutTask.cancel();
             canceled = true;
             this.latch.countDown();
             return !isDone();
@@ -0,0 +1,36 @@
+package net.beaconcontroller.core.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+/**
+ * A concrete implementation for requests answered by exactly one reply, such
+ * as barrier, echo and get config requests
+ */
+public class OFReplyFuture extends OFMessageFuture<OFMessage, OFMessage> {
+
+    public OFReplyFuture(IBeaconProvider beaconProvider, IOFSwitch sw,
+            OFType responseType, int transactionId) {
+        super(beaconProvider, sw, responseType, transactionId);
+    }
+
+    public OFReplyFuture(IBeaconProvider beaconProvider, IOFSwitch sw,
+            OFType responseType, int transactionId, long timeout, TimeUnit unit) {
+        super(beaconProvider, sw, responseType, transactionId, timeout, unit);
+    }
+
+    @Override
+    protected void handleReply(IOFSwitch sw, OFMessage msg) {
+        this.result = msg;
+    }
+
+    @Override
+    protected boolean isFinished() {
+        return this.result != null;
+    }
+}
@@ -3,6 +3,7 @@ package net.beaconcontroller.core.internal;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -12,11 +13,16 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.OFWritePriority;
 
 import org.openflow.io.OFMessageInStream;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFError;
 import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFPhysicalPort.OFPortConfig;
 import org.openflow.protocol.OFPhysicalPort.OFPortState;
@@ -36,6 +42,7 @@ public class OFSwitchImpl implements IOFSwitch {
     protected OFFeaturesReply featuresReply;
     protected OFMessageInStream inStream;
     protected OFMessageSafeOutStream outStream;
+    protected ConcurrentMap<Integer, IOFMessageListener> pendingReplies;
     protected SocketChannel socketChannel;
     protected AtomicInteger transactionIdSource;
     protected HashMap<Short, OFPhysicalPort> ports;
@@ -45,6 +52,7 @@ public class OFSwitchImpl implements IOFSwitch {
         this.connectedSince = new Date();
         this.transactionIdSource = new AtomicInteger();
         this.ports = new HashMap<Short, OFPhysicalPort>();
+        this.pendingReplies = new ConcurrentHashMap<Integer, IOFMessageListener>();
     }
 
     public SocketChannel getSocketChannel() {
@@ -150,12 +158,88 @@ public class OFSwitchImpl implements IOFSwitch {
     public Future<List<OFStatistics>> getStatistics(OFStatisticsRequest request) throws IOException {
         request.setXid(getNextTransactionId());
         OFStatisticsFuture future = new OFStatisticsFuture(beaconProvider, this, request.getXid());
-        this.beaconProvider.addOFMessageListener(OFType.STATS_REPLY, future);
-        this.beaconProvider.addOFSwitchListener(future);
+        addPendingReply(request.getXid(), future);
         this.getOutputStream().write(request);
         return future;
     }
 
+    @Override
+    public Future<OFMessage> sendRequest(OFMessage request) throws IOException {
+        OFType responseType;
+        switch (request.getType()) {
+            case BARRIER_REQUEST:
+                responseType = OFType.BARRIER_REPLY;
+                break;
+            case ECHO_REQUEST:
+                responseType = OFType.ECHO_REPLY;
+                break;
+            case FEATURES_REQUEST:
+                responseType = OFType.FEATURES_REPLY;
+                break;
+            case GET_CONFIG_REQUEST:
+                responseType = OFType.GET_CONFIG_REPLY;
+                break;
+            case QUEUE_GET_CONFIG_REQUEST:
+                responseType = OFType.QUEUE_GET_CONFIG_REPLY;
+                break;
+            default:
+                throw new IllegalArgumentException("No single reply to " + request.getType());
+        }
+        request.setXid(getNextTransactionId());
+        OFReplyFuture future = new OFReplyFuture(beaconProvider, this, responseType, request.getXid());
+        addPendingReply(request.getXid(), future);
+        this.getOutputStream().write(request);
+        return future;
+    }
+
+    @Override
+    public Future<List<OFError>> sendBatch(List<OFMessage> messages)
+            throws IOException {
+        return sendBatch(messages, OFWritePriority.FLOW_SETUP);
+    }
+
+    @Override
+    public Future<List<OFError>> sendBatch(List<OFMessage> messages,
+            OFWritePriority priority) throws IOException {
+        List<OFMessage> batch = new ArrayList<OFMessage>(messages.size() + 1);
+        int[] xids = new int[messages.size()];
+        for (int i = 0; i < xids.length; ++i) {
+            OFMessage m = messages.get(i);
+            xids[i] = getNextTransactionId();
+            m.setXid(xids[i]);
+            batch.add(m);
+        }
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(getNextTransactionId());
+        batch.add(barrier);
+
+        OFBatchFuture future = new OFBatchFuture(beaconProvider, this, xids,
+                barrier.getXid());
+        future.register();
+        this.getOutputStream().write(batch, priority);
+        return future;
+    }
+
+    @Override
+    public void addPendingReply(int xid, IOFMessageListener listener) {
+        this.pendingReplies.put(xid, listener);
+    }
+
+    @Override
+    public void removePendingReply(int xid, IOFMessageListener listener) {
+        this.pendingReplies.remove(xid, listener);
+    }
+
+    @Override
+    public IOFMessageListener getPendingReply(int xid) {
+        return this.pendingReplies.get(xid);
+    }
+
+    @Override
+    public Collection<IOFMessageListener> getPendingReplies() {
+        return this.pendingReplies.values();
+    }
+
     /**
      * @param beaconProvider the beaconProvider to set
      */
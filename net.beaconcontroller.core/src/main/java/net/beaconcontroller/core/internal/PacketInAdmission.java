@@ -0,0 +1,300 @@
+package net.beaconcontroller.core.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.PacketInStatistics;
+import net.beaconcontroller.core.io.LazyOFMessage;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.util.HexString;
+import org.openflow.util.U16;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket rate limits on the PACKET_INs received from each switch and
+ * from each of its ports, applied before the messages are decoded or passed
+ * to listeners. PACKET_INs over either limit are dropped, except every
+ * sampleInterval'th one which is admitted so listeners still see some of the
+ * excess traffic. A port that stays over its limit for dropFlowDelay
+ * milliseconds gets a temporary flow dropping everything it receives.
+ *
+ * A rate of 0 disables that limit. Each switch's state is only updated from
+ * the thread reading that switch's connection.
+ */
+public class PacketInAdmission {
+    protected static Logger log = LoggerFactory.getLogger(PacketInAdmission.class);
+
+    protected static class TokenBucket {
+        protected double tokens;
+        protected long lastRefill;
+        /**
+         * Time the bucket first ran dry since it last admitted a message, 0
+         * while it is admitting
+         */
+        protected long emptySince = 0;
+        protected long dropFlowUntil = 0;
+
+        public TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * @param rate tokens added per second
+         * @param burst maximum tokens held
+         * @param now current time in nanoseconds
+         * @return true if a token was taken
+         */
+        public boolean take(int rate, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                emptySince = 0;
+                return true;
+            }
+            if (emptySince == 0)
+                emptySince = now;
+            return false;
+        }
+    }
+
+    protected class SwitchState implements PacketInStatistics {
+        protected long switchId;
+        protected TokenBucket bucket;
+        protected ConcurrentMap<Short, TokenBucket> ports;
+        protected volatile long admitted;
+        protected volatile long dropped;
+        protected volatile long sampled;
+        protected volatile long dropFlowsInstalled;
+        protected volatile long shed;
+        protected long excess;
+
+        public SwitchState(long switchId, long now) {
+            this.switchId = switchId;
+            this.bucket = new TokenBucket(switchBurst, now);
+            this.ports = new ConcurrentHashMap<Short, TokenBucket>();
+        }
+
+        @Override
+        public long getSwitchId() {
+            return switchId;
+        }
+
+        @Override
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public long getSampled() {
+            return sampled;
+        }
+
+        @Override
+        public long getDropFlowsInstalled() {
+            return dropFlowsInstalled;
+        }
+
+        @Override
+        public long getShed() {
+            return shed;
+        }
+    }
+
+    protected int dropFlowDelay = 0;
+    protected short dropFlowTimeout = 30;
+    protected int portBurst = 100;
+    protected int portRate = 0;
+    protected int sampleInterval = 100;
+    protected int switchBurst = 1000;
+    protected int switchRate = 0;
+    protected ConcurrentMap<Long, SwitchState> switchStates;
+
+    public PacketInAdmission() {
+        this.switchStates = new ConcurrentHashMap<Long, SwitchState>();
+    }
+
+    /**
+     * @return true if either limit is enabled
+     */
+    public boolean isEnabled() {
+        return switchRate > 0 || portRate > 0;
+    }
+
+    /**
+     * Decides whether a PACKET_IN should be dispatched, using only its header
+     * @param sw
+     * @param m
+     * @return true to dispatch the message, false to drop it
+     */
+    public boolean admit(IOFSwitch sw, LazyOFMessage m) {
+        long now = System.nanoTime();
+        SwitchState state = getState(sw, now);
+
+        boolean allowed = true;
+        if (portRate > 0) {
+            short port = m.getPacketInPort();
+            TokenBucket portBucket = state.ports.get(port);
+            if (portBucket == null) {
+                portBucket = new TokenBucket(portBurst, now);
+                state.ports.put(port, portBucket);
+            }
+            allowed = portBucket.take(portRate, portBurst, now);
+            if (!allowed && dropFlowDelay > 0
+                    && now - portBucket.emptySince >= dropFlowDelay * 1000000L
+                    && (portBucket.dropFlowUntil == 0
+                        || now - portBucket.dropFlowUntil > 0)) {
+                portBucket.dropFlowUntil = now + dropFlowTimeout * 1000000000L;
+                installDropFlow(sw, port);
+                ++state.dropFlowsInstalled;
+            }
+        }
+        if (allowed && switchRate > 0)
+            allowed = state.bucket.take(switchRate, switchBurst, now);
+
+        if (allowed) {
+            ++state.admitted;
+            return true;
+        }
+        if (sampleInterval > 0 && ++state.excess % sampleInterval == 0) {
+            ++state.sampled;
+            return true;
+        }
+        ++state.dropped;
+        return false;
+    }
+
+    /**
+     * Counts a PACKET_IN discarded because the switch is not writable, which
+     * happens whether or not the rate limits are enabled
+     * @param sw
+     */
+    public void shed(IOFSwitch sw) {
+        ++getState(sw, System.nanoTime()).shed;
+    }
+
+    protected SwitchState getState(IOFSwitch sw, long now) {
+        SwitchState state = switchStates.get(sw.getId());
+        if (state == null) {
+            state = new SwitchState(sw.getId(), now);
+            switchStates.put(sw.getId(), state);
+        }
+        return state;
+    }
+
+    /**
+     * Installs a flow dropping all traffic received on the port, expiring
+     * after dropFlowTimeout seconds
+     * @param sw
+     * @param port
+     */
+    protected void installDropFlow(IOFSwitch sw, short port) {
+        log.warn("PACKET_IN rate from switch {} port {} over limit for {}ms, "
+                + "dropping its traffic for {}s", new Object[] {
+                HexString.toHexString(sw.getId()), U16.f(port), dropFlowDelay,
+                dropFlowTimeout });
+        OFMatch match = new OFMatch()
+            .setInputPort(port)
+            .setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_IN_PORT);
+        OFFlowMod fm = (OFFlowMod) sw.getInputStream().getMessageFactory()
+            .getMessage(OFType.FLOW_MOD);
+        fm.setMatch(match)
+            .setCommand(OFFlowMod.OFPFC_ADD)
+            .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+            .setHardTimeout(dropFlowTimeout)
+            .setOutPort(OFPort.OFPP_NONE)
+            .setPriority(Short.MAX_VALUE)
+            .setActions(new ArrayList<OFAction>())
+            .setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+        try {
+            sw.getOutputStream().write(fm);
+        } catch (IOException e) {
+            log.error("Failure writing drop flow", e);
+        }
+    }
+
+    /**
+     * Forgets the state of a disconnected switch
+     * @param switchId
+     */
+    public void removeSwitch(long switchId) {
+        switchStates.remove(switchId);
+    }
+
+    /**
+     * @return the counters of every switch that has sent a PACKET_IN
+     */
+    public List<PacketInStatistics> getStatistics() {
+        return new ArrayList<PacketInStatistics>(switchStates.values());
+    }
+
+    /**
+     * @param switchRate PACKET_INs per second admitted from each switch, 0
+     * for no limit
+     */
+    public void setSwitchRate(int switchRate) {
+        this.switchRate = switchRate;
+    }
+
+    /**
+     * @param switchBurst PACKET_INs a switch may send at once after being idle
+     */
+    public void setSwitchBurst(int switchBurst) {
+        this.switchBurst = switchBurst;
+    }
+
+    /**
+     * @param portRate PACKET_INs per second admitted from each switch port, 0
+     * for no limit
+     */
+    public void setPortRate(int portRate) {
+        this.portRate = portRate;
+    }
+
+    /**
+     * @param portBurst PACKET_INs a port may send at once after being idle
+     */
+    public void setPortBurst(int portBurst) {
+        this.portBurst = portBurst;
+    }
+
+    /**
+     * @param sampleInterval admit one of every sampleInterval PACKET_INs over
+     * the limits, 0 to drop them all
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * @param dropFlowDelay milliseconds a port must stay over its limit before
+     * a drop flow is installed for it, 0 to never install drop flows
+     */
+    public void setDropFlowDelay(int dropFlowDelay) {
+        this.dropFlowDelay = dropFlowDelay;
+    }
+
+    /**
+     * @param dropFlowTimeout seconds until an installed drop flow expires
+     */
+    public void setDropFlowTimeout(short dropFlowTimeout) {
+        this.dropFlowTimeout = dropFlowTimeout;
+    }
+}
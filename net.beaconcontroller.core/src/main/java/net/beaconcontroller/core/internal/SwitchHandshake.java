@@ -0,0 +1,221 @@
+package net.beaconcontroller.core.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.IScheduler;
+import net.beaconcontroller.core.io.OFWritePriority;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGetConfigReply;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFSetConfig;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.util.U16;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives a single switch connection through the OpenFlow handshake. Once the
+ * switch's HELLO arrives the FEATURES_REQUEST, the SET_CONFIG asking for
+ * whole packets, the GET_CONFIG_REQUEST confirming it and a flow mod deleting
+ * all flows are written together. Whatever has not been answered is resent
+ * from the shared scheduler, backing off exponentially with some jitter so
+ * that many switches reconnecting at once do not retry in lock step.
+ */
+public class SwitchHandshake implements Runnable {
+    protected static Logger log = LoggerFactory.getLogger(SwitchHandshake.class);
+    protected static Random random = new Random();
+
+    public enum State {
+        /**
+         * Our HELLO has been sent, waiting for the switch's
+         */
+        WAIT_HELLO,
+        /**
+         * Requests sent, waiting for the features reply and config
+         */
+        WAIT_FEATURES,
+        /**
+         * Features reply received, waiting for the config to be confirmed
+         */
+        WAIT_CONFIG,
+        COMPLETE,
+        CLOSED
+    }
+
+    protected boolean configConfirmed = false;
+    protected long delay;
+    protected OFMessageFactory factory;
+    protected long maxDelay;
+    protected HandshakeMonitor monitor;
+    protected IScheduledTask retryTask;
+    protected IScheduler scheduler;
+    protected long startTime;
+    protected State state;
+    protected IOFSwitch sw;
+
+    /**
+     * @param sw
+     * @param factory
+     * @param scheduler used to schedule retries
+     * @param monitor
+     * @param initialDelay milliseconds before the first retry
+     * @param maxDelay upper bound in milliseconds on the backoff
+     */
+    public SwitchHandshake(IOFSwitch sw, OFMessageFactory factory,
+            IScheduler scheduler, HandshakeMonitor monitor, long initialDelay,
+            long maxDelay) {
+        this.sw = sw;
+        this.factory = factory;
+        this.scheduler = scheduler;
+        this.monitor = monitor;
+        this.delay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.startTime = System.currentTimeMillis();
+        this.state = State.WAIT_HELLO;
+        monitor.accepted();
+    }
+
+    /**
+     * Sends our HELLO and starts the retry timer
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        sw.getOutputStream().write(factory.getMessage(OFType.HELLO));
+        scheduleRetry();
+    }
+
+    /**
+     * Called with the switch's HELLO, pipelines the rest of the handshake
+     * @throws IOException
+     */
+    public synchronized void helloReceived() throws IOException {
+        if (state != State.WAIT_HELLO)
+            return;
+        state = State.WAIT_FEATURES;
+        List<OFMessage> msgs = new ArrayList<OFMessage>(4);
+        msgs.add(factory.getMessage(OFType.FEATURES_REQUEST));
+        addConfigRequests(msgs);
+
+        // Delete all pre-existing flows, ahead of any flow setup
+        OFMatch match = new OFMatch().setWildcards(OFMatch.OFPFW_ALL);
+        OFMessage fm = ((OFFlowMod) factory.getMessage(OFType.FLOW_MOD))
+            .setMatch(match)
+            .setCommand(OFFlowMod.OFPFC_DELETE)
+            .setOutPort(OFPort.OFPP_NONE)
+            .setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+        msgs.add(fm);
+        sw.getOutputStream().write(msgs, OFWritePriority.CONTROL);
+    }
+
+    /**
+     * Called once the switch's features reply has been stored
+     */
+    public synchronized void featuresReceived() {
+        if (state != State.WAIT_FEATURES)
+            return;
+        if (configConfirmed)
+            complete();
+        else
+            state = State.WAIT_CONFIG;
+    }
+
+    /**
+     * Called with each GET_CONFIG_REPLY
+     * @param reply
+     */
+    public synchronized void configReceived(OFGetConfigReply reply) {
+        if (reply.getMissSendLength() != (short) 0xffff)
+            return;
+        log.debug("Config Reply from {} confirms miss length set to 0xffff", sw);
+        configConfirmed = true;
+        if (state == State.WAIT_CONFIG)
+            complete();
+    }
+
+    /**
+     * Stops retrying, called when the connection is closed
+     */
+    public synchronized void close() {
+        if (state != State.COMPLETE && state != State.CLOSED)
+            monitor.abandoned();
+        state = State.CLOSED;
+        if (retryTask != null)
+            retryTask.cancel();
+    }
+
+    protected void complete() {
+        state = State.COMPLETE;
+        if (retryTask != null)
+            retryTask.cancel();
+        monitor.completed(System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Resends whatever the switch has not yet answered
+     */
+    @Override
+    public synchronized void run() {
+        if (state == State.COMPLETE || state == State.CLOSED)
+            return;
+        try {
+            if (!sw.getSocketChannel().isConnected()) {
+                close();
+                return;
+            }
+            List<OFMessage> msgs = new ArrayList<OFMessage>(3);
+            if (state == State.WAIT_FEATURES)
+                msgs.add(factory.getMessage(OFType.FEATURES_REQUEST));
+            if (state != State.WAIT_HELLO && !configConfirmed)
+                addConfigRequests(msgs);
+            if (!msgs.isEmpty()) {
+                log.debug("Resending {} handshake messages to {}", msgs.size(), sw);
+                sw.getOutputStream().write(msgs, OFWritePriority.CONTROL);
+                monitor.retried();
+            }
+        } catch (Exception e) {
+            log.error("Exception retrying handshake with " + sw, e);
+        }
+        delay = Math.min(delay * 2, maxDelay);
+        scheduleRetry();
+    }
+
+    /**
+     * Caller must hold this object's lock
+     */
+    protected void scheduleRetry() {
+        // up to 25% jitter
+        long jittered = delay + (long) (random.nextDouble() * delay / 4);
+        retryTask = scheduler.schedule(this, jittered, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the SET_CONFIG asking for whole packets in PACKET_INs, and the
+     * GET_CONFIG_REQUEST used to confirm it
+     * @param msgs
+     */
+    protected void addConfigRequests(List<OFMessage> msgs) {
+        OFSetConfig config = (OFSetConfig) factory
+                .getMessage(OFType.SET_CONFIG);
+        config.setMissSendLength((short) 0xffff)
+            .setLengthU(OFSetConfig.MINIMUM_LENGTH);
+        msgs.add(config);
+        msgs.add(factory.getMessage(OFType.GET_CONFIG_REQUEST));
+    }
+
+    /**
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+}
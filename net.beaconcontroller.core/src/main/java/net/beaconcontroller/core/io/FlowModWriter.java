@@ -0,0 +1,245 @@
+package net.beaconcontroller.core.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+/**
+ * A reusable FLOW_MOD with a single output action, so that installing a flow
+ * for a PACKET_IN does not allocate a flow mod, match, action list and action
+ * each time. Output streams serialize messages as they are written, so the
+ * same flow mod can be changed and written again as soon as a write returns.
+ *
+ * Each thread has its own writer, obtained with {@link #get()}. The writer is
+ * reset by every call to get(), so it must not be held across calls to code
+ * that may itself write flow mods.
+ */
+public class FlowModWriter {
+    protected static ThreadLocal<FlowModWriter> writers = new ThreadLocal<FlowModWriter>() {
+        @Override
+        protected FlowModWriter initialValue() {
+            return new FlowModWriter();
+        }
+    };
+
+    protected List<OFAction> actions;
+    protected byte[] dataLayerDestination = new byte[6];
+    protected byte[] dataLayerSource = new byte[6];
+    protected OFFlowMod flowMod;
+    protected OFMatch match;
+    protected OFActionOutput output;
+
+    public FlowModWriter() {
+        this.match = new OFMatch();
+        this.output = new OFActionOutput();
+        this.actions = new ArrayList<OFAction>(1);
+        this.actions.add(output);
+        this.flowMod = new OFFlowMod();
+        this.flowMod.setMatch(match)
+            .setActions(actions)
+            .setLengthU(OFFlowMod.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH);
+        reset();
+    }
+
+    /**
+     * @return the calling thread's writer, reset to the defaults of a new
+     * flow mod
+     */
+    public static FlowModWriter get() {
+        return writers.get().reset();
+    }
+
+    /**
+     * Restores the fields of a newly created flow mod, match and output action
+     * @return
+     */
+    public FlowModWriter reset() {
+        flowMod.setXid(0);
+        flowMod.setCookie(0)
+            .setCommand(OFFlowMod.OFPFC_ADD)
+            .setIdleTimeout((short) 0)
+            .setHardTimeout((short) 0)
+            .setPriority((short) 0)
+            .setBufferId(0)
+            .setOutPort((short) 0)
+            .setFlags((short) 0);
+        Arrays.fill(dataLayerSource, (byte) 0);
+        Arrays.fill(dataLayerDestination, (byte) 0);
+        match.setWildcards(OFMatch.OFPFW_ALL)
+            .setInputPort((short) 0)
+            .setDataLayerSource(dataLayerSource)
+            .setDataLayerDestination(dataLayerDestination)
+            .setDataLayerVirtualLan((short) 0)
+            .setDataLayerVirtualLanPriorityCodePoint((byte) 0)
+            .setDataLayerType((short) 0)
+            .setNetworkTypeOfService((byte) 0)
+            .setNetworkProtocol((byte) 0)
+            .setNetworkSource(0)
+            .setNetworkDestination(0)
+            .setTransportSource((short) 0)
+            .setTransportDestination((short) 0);
+        output.setPort((short) 0)
+            .setMaxLength((short) 0);
+        return this;
+    }
+
+    /**
+     * Copies the fields of the given match, including the MAC addresses, into
+     * the flow mod's match, so the given match may be changed or reused
+     * straight away
+     * @param m
+     * @return
+     */
+    public FlowModWriter setMatch(OFMatch m) {
+        System.arraycopy(m.getDataLayerSource(), 0, dataLayerSource, 0,
+                dataLayerSource.length);
+        System.arraycopy(m.getDataLayerDestination(), 0, dataLayerDestination,
+                0, dataLayerDestination.length);
+        match.setWildcards(m.getWildcards())
+            .setInputPort(m.getInputPort())
+            .setDataLayerSource(dataLayerSource)
+            .setDataLayerDestination(dataLayerDestination)
+            .setDataLayerVirtualLan(m.getDataLayerVirtualLan())
+            .setDataLayerVirtualLanPriorityCodePoint(
+                    m.getDataLayerVirtualLanPriorityCodePoint())
+            .setDataLayerType(m.getDataLayerType())
+            .setNetworkTypeOfService(m.getNetworkTypeOfService())
+            .setNetworkProtocol(m.getNetworkProtocol())
+            .setNetworkSource(m.getNetworkSource())
+            .setNetworkDestination(m.getNetworkDestination())
+            .setTransportSource(m.getTransportSource())
+            .setTransportDestination(m.getTransportDestination());
+        return this;
+    }
+
+    /**
+     * @return the flow mod's own match, which may be modified in place
+     */
+    public OFMatch getMatch() {
+        return match;
+    }
+
+    /**
+     * @param port the port the output action sends matching packets to
+     * @return
+     */
+    public FlowModWriter setOutput(short port) {
+        output.setPort(port);
+        return this;
+    }
+
+    /**
+     * @param cookie the cookie to set
+     * @return
+     */
+    public FlowModWriter setCookie(long cookie) {
+        flowMod.setCookie(cookie);
+        return this;
+    }
+
+    /**
+     * @param command the command to set
+     * @return
+     */
+    public FlowModWriter setCommand(short command) {
+        flowMod.setCommand(command);
+        return this;
+    }
+
+    /**
+     * @param idleTimeout the idle timeout to set
+     * @return
+     */
+    public FlowModWriter setIdleTimeout(short idleTimeout) {
+        flowMod.setIdleTimeout(idleTimeout);
+        return this;
+    }
+
+    /**
+     * @param hardTimeout the hard timeout to set
+     * @return
+     */
+    public FlowModWriter setHardTimeout(short hardTimeout) {
+        flowMod.setHardTimeout(hardTimeout);
+        return this;
+    }
+
+    /**
+     * @param priority the priority to set
+     * @return
+     */
+    public FlowModWriter setPriority(short priority) {
+        flowMod.setPriority(priority);
+        return this;
+    }
+
+    /**
+     * @param bufferId the buffer id to set
+     * @return
+     */
+    public FlowModWriter setBufferId(int bufferId) {
+        flowMod.setBufferId(bufferId);
+        return this;
+    }
+
+    /**
+     * @param outPort the out port to set
+     * @return
+     */
+    public FlowModWriter setOutPort(short outPort) {
+        flowMod.setOutPort(outPort);
+        return this;
+    }
+
+    /**
+     * @param flags the flags to set
+     * @return
+     */
+    public FlowModWriter setFlags(short flags) {
+        flowMod.setFlags(flags);
+        return this;
+    }
+
+    /**
+     * @return the reused flow mod, only valid until the writer is next reset
+     */
+    public OFFlowMod getFlowMod() {
+        return flowMod;
+    }
+
+    /**
+     * Writes the flow mod in the class chosen for it by
+     * {@link OFWritePriority#forMessage(org.openflow.protocol.OFMessage)}
+     * @param out
+     * @throws IOException
+     */
+    public void write(OFMessageSafeOutStream out) throws IOException {
+        out.write(flowMod);
+    }
+
+    /**
+     * @param out
+     * @param priority
+     * @throws IOException
+     */
+    public void write(OFMessageSafeOutStream out, OFWritePriority priority)
+            throws IOException {
+        out.write(flowMod, priority);
+    }
+
+    /**
+     * @param sw
+     * @throws IOException
+     */
+    public void write(IOFSwitch sw) throws IOException {
+        write(sw.getOutputStream());
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io;
+
+/**
+ * Load information for one of the threads servicing switch connections
+ */
+public interface IOLoopStatistics {
+    /**
+     * @return the number of switch connections currently assigned to the thread
+     */
+    public int getConnectionCount();
+
+    /**
+     * @return the number of messages per second read by the thread, as of the
+     * most recent sample
+     */
+    public long getMessageRate();
+}
@@ -0,0 +1,301 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.OFActionFactory;
+import org.openflow.protocol.factory.OFActionFactoryAware;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.protocol.factory.OFStatisticsFactory;
+import org.openflow.protocol.factory.OFStatisticsFactoryAware;
+import org.openflow.util.U16;
+
+/**
+ * A received OpenFlow message whose header has been parsed but whose body is
+ * only decoded the first time {@link #getMessage()} is called. This allows
+ * messages that nobody is interested in to be dispatched and dropped without
+ * allocating or decoding anything.
+ *
+ * Instances wrapping wire data are reused by the input stream for each
+ * message it reads, and are only valid for the duration of the
+ * {@link OFMessageHandler#handleMessage(net.beaconcontroller.core.IOFSwitch, LazyOFMessage)}
+ * call they are passed to. Call getMessage() to retain the message, the
+ * message returned by {@link #getTransientMessage()} may reference the read
+ * buffer.
+ */
+public class LazyOFMessage {
+    public static final int PACKET_IN_BUFFER_ID_OFFSET = 8;
+    public static final int PACKET_IN_IN_PORT_OFFSET = 14;
+    public static final int PACKET_IN_DATA_OFFSET = 18;
+
+    protected ByteBuffer data;
+    protected OFMessageFactory factory;
+    protected int length;
+    protected OFMessage message;
+    protected int offset;
+    protected SlicedPacketIn slicedPacketIn;
+    protected SlicedPacketIn spareSlicedPacketIn;
+    protected OFType type;
+    protected int xid;
+
+    /**
+     * Creates an empty wrapper to be filled in with {@link #wrap}
+     */
+    public LazyOFMessage() {
+    }
+
+    /**
+     * Creates a wrapper around an already decoded message
+     * @param message
+     */
+    public LazyOFMessage(OFMessage message) {
+        this.length = message.getLengthU();
+        this.message = message;
+        this.type = message.getType();
+        this.xid = message.getXid();
+    }
+
+    /**
+     * Points this wrapper at the message starting at offset in data. Only the
+     * header is read, data's position and limit are not modified.
+     * @param data buffer holding the complete message
+     * @param offset index of the first byte of the message header
+     * @param factory used to create the message if it is decoded
+     * @throws IOException if the header has an unknown type
+     */
+    public void wrap(ByteBuffer data, int offset, OFMessageFactory factory)
+            throws IOException {
+        byte typeValue = data.get(offset + 1);
+        OFType t = OFType.valueOf(typeValue);
+        if (t == null)
+            throw new IOException("Unknown OpenFlow message type " + typeValue);
+        releaseSlicedPacketIn();
+        this.data = data;
+        this.factory = factory;
+        this.length = U16.f(data.getShort(offset + 2));
+        this.message = null;
+        this.offset = offset;
+        this.type = t;
+        this.xid = data.getInt(offset + 4);
+    }
+
+    /**
+     * Releases the underlying buffer, after which the wrapper must not be used
+     */
+    public void clear() {
+        releaseSlicedPacketIn();
+        this.data = null;
+        this.factory = null;
+        this.message = null;
+    }
+
+    /**
+     * @return the type from the message header
+     */
+    public OFType getType() {
+        return type;
+    }
+
+    /**
+     * @return the transaction id from the message header
+     */
+    public int getXid() {
+        return xid;
+    }
+
+    /**
+     * @return the unsigned length from the message header
+     */
+    public int getLengthU() {
+        return length;
+    }
+
+    /**
+     * Returns the buffer id of a PACKET_IN without decoding its body
+     * @return
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public int getPacketInBufferId() {
+        if (type != OFType.PACKET_IN)
+            throw new IllegalStateException("Not a PACKET_IN: " + type);
+        if (data == null)
+            return ((OFPacketIn) message).getBufferId();
+        return data.getInt(offset + PACKET_IN_BUFFER_ID_OFFSET);
+    }
+
+    /**
+     * Returns the input port of a PACKET_IN without decoding its body
+     * @return
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public short getPacketInPort() {
+        if (type != OFType.PACKET_IN)
+            throw new IllegalStateException("Not a PACKET_IN: " + type);
+        if (data == null)
+            return ((OFPacketIn) message).getInPort();
+        return data.getShort(offset + PACKET_IN_IN_PORT_OFFSET);
+    }
+
+    /**
+     * Returns the length of the packet data carried by a PACKET_IN without
+     * decoding its body
+     * @return
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public int getPacketInDataLength() {
+        if (type != OFType.PACKET_IN)
+            throw new IllegalStateException("Not a PACKET_IN: " + type);
+        if (data == null) {
+            byte[] packetData = ((OFPacketIn) message).getPacketData();
+            return packetData == null ? 0 : packetData.length;
+        }
+        return Math.max(0, length - PACKET_IN_DATA_OFFSET);
+    }
+
+    /**
+     * Returns a read only view of the packet data carried by a PACKET_IN
+     * without copying it. When wrapping wire data the view shares the read
+     * buffer and is only valid for as long as this wrapper is.
+     * @return
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public ByteBuffer getPacketInData() {
+        if (type != OFType.PACKET_IN)
+            throw new IllegalStateException("Not a PACKET_IN: " + type);
+        if (data == null) {
+            byte[] packetData = ((OFPacketIn) message).getPacketData();
+            return ByteBuffer.wrap(packetData == null ? new byte[0]
+                    : packetData).asReadOnlyBuffer();
+        }
+        ByteBuffer view = data.asReadOnlyBuffer();
+        view.limit(offset + Math.max(length, PACKET_IN_DATA_OFFSET));
+        view.position(offset + PACKET_IN_DATA_OFFSET);
+        return view.slice();
+    }
+
+    /**
+     * Returns a byte of the packet data carried by a PACKET_IN without
+     * decoding its body
+     * @param index offset into the packet data, less than
+     * {@link #getPacketInDataLength()}
+     * @return
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public byte getPacketInDataByte(int index) {
+        if (type != OFType.PACKET_IN)
+            throw new IllegalStateException("Not a PACKET_IN: " + type);
+        if (data == null)
+            return ((OFPacketIn) message).getPacketData()[index];
+        return data.get(offset + PACKET_IN_DATA_OFFSET + index);
+    }
+
+    /**
+     * Returns the ethertype of the packet carried by a PACKET_IN, looking
+     * past a single 802.1Q tag, without decoding its body
+     * @return the ethertype, or 0 if the packet is too short to have one
+     * @throws IllegalStateException if this is not a PACKET_IN
+     */
+    public short getPacketInEtherType() {
+        int dataLength = getPacketInDataLength();
+        if (dataLength < 14)
+            return 0;
+        short etherType = (short) ((getPacketInDataByte(12) << 8)
+                | (getPacketInDataByte(13) & 0xff));
+        if (etherType == (short) 0x8100) {
+            if (dataLength < 18)
+                return 0;
+            etherType = (short) ((getPacketInDataByte(16) << 8)
+                    | (getPacketInDataByte(17) & 0xff));
+        }
+        return etherType;
+    }
+
+    /**
+     * @return true if the body has already been decoded
+     */
+    public boolean isDecoded() {
+        return message != null;
+    }
+
+    /**
+     * Returns the fully decoded message, decoding it on the first call
+     * @return
+     */
+    public OFMessage getMessage() {
+        if (message != null)
+            return message;
+
+        OFMessage m = factory.getMessage(type);
+        if (m instanceof OFActionFactoryAware
+                && factory instanceof OFActionFactory)
+            ((OFActionFactoryAware) m).setActionFactory(
+                    (OFActionFactory) factory);
+        if (m instanceof OFStatisticsFactoryAware
+                && factory instanceof OFStatisticsFactory)
+            ((OFStatisticsFactoryAware) m).setStatisticsFactory(
+                    (OFStatisticsFactory) factory);
+
+        // constrain decoding to this message, restoring the caller's view
+        int oldLimit = data.limit();
+        int oldPosition = data.position();
+        try {
+            data.limit(offset + length);
+            data.position(offset);
+            m.readFrom(data);
+        } finally {
+            data.limit(oldLimit);
+            data.position(oldPosition);
+        }
+        message = m;
+        return m;
+    }
+
+    /**
+     * Returns the message for listeners called while it is being handled.
+     * A PACKET_IN read from wire data that has not been decoded is returned
+     * as a {@link SlicedPacketIn} referencing the read buffer, so its packet
+     * data is only copied if a listener asks for it. Every other message is
+     * decoded as by {@link #getMessage()}.
+     *
+     * The SlicedPacketIn is reused for the next PACKET_IN this wrapper is
+     * pointed at, unless a listener copied its packet data in order to keep
+     * it.
+     * @return
+     */
+    public OFMessage getTransientMessage() {
+        if (message != null || type != OFType.PACKET_IN)
+            return getMessage();
+        if (slicedPacketIn == null) {
+            if (spareSlicedPacketIn != null) {
+                slicedPacketIn = spareSlicedPacketIn.wrap(data, offset);
+                spareSlicedPacketIn = null;
+            } else {
+                slicedPacketIn = new SlicedPacketIn(data, offset);
+            }
+        }
+        return slicedPacketIn;
+    }
+
+    protected void releaseSlicedPacketIn() {
+        if (slicedPacketIn != null) {
+            slicedPacketIn.release();
+            if (!slicedPacketIn.isCopied())
+                spareSlicedPacketIn = slicedPacketIn;
+            slicedPacketIn = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (message != null)
+            return message.toString();
+        return "LazyOFMessage [type=" + type + ", length=" + length + ", xid="
+                + xid + "]";
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io;
+
+import java.io.IOException;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+/**
+ * Callback invoked by a switch's input stream for each OpenFlow message
+ * framed from the connection, in the order they were received. Message bodies
+ * are not decoded until requested through the LazyOFMessage.
+ */
+public interface OFMessageHandler {
+    /**
+     * Called on the switch's IO thread with each received message
+     * @param sw the switch the message was read from
+     * @param m the message, only valid until this call returns
+     * @throws IOException
+     */
+    public void handleMessage(IOFSwitch sw, LazyOFMessage m) throws IOException;
+}
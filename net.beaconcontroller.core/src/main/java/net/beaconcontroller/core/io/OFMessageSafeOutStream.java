@@ -3,12 +3,66 @@
  */
 package net.beaconcontroller.core.io;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.openflow.io.OFMessageOutStream;
+import org.openflow.protocol.OFMessage;
 
 /**
- * This is a thread-safe implementation of the OFMessageOutStream
+ * This is a thread-safe implementation of the OFMessageOutStream. Messages
+ * written without a priority are queued in the class chosen by
+ * {@link OFWritePriority#forMessage(OFMessage)}.
  * @author David Erickson (daviderickson@cs.stanford.edu)
  *
  */
 public interface OFMessageSafeOutStream extends OFMessageOutStream {
+    /**
+     * Buffers a message in the given priority class
+     * @param m
+     * @param priority
+     * @throws IOException
+     */
+    public void write(OFMessage m, OFWritePriority priority) throws IOException;
+
+    /**
+     * Buffers a list of messages in the given priority class, they are sent
+     * in order
+     * @param l
+     * @param priority
+     * @throws IOException
+     */
+    public void write(List<OFMessage> l, OFWritePriority priority) throws IOException;
+
+    /**
+     * Returns the total number of bytes of messages written to this stream
+     * @return
+     */
+    public long getBytesQueued();
+
+    /**
+     * Returns the total number of bytes actually written to the socket
+     * @return
+     */
+    public long getBytesFlushed();
+
+    /**
+     * Returns false once more than the high watermark of written data is
+     * waiting to be sent to the switch, and true again once it has drained
+     * below the low watermark. Writes still succeed while not writable, but
+     * callers generating bulk traffic should hold off until notified.
+     * @return
+     */
+    public boolean isWritable();
+
+    /**
+     * Adds a listener notified each time {@link #isWritable()} changes
+     * @param listener
+     */
+    public void addWritabilityListener(OFWritabilityListener listener);
+
+    /**
+     * @param listener
+     */
+    public void removeWritabilityListener(OFWritabilityListener listener);
 }
@@ -0,0 +1,19 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io;
+
+/**
+ * Notified when a switch connection's output buffer crosses its watermarks,
+ * see {@link OFMessageSafeOutStream#isWritable()}
+ */
+public interface OFWritabilityListener {
+    /**
+     * Called when the stream stops or resumes being writable. Called on the
+     * thread whose write filled the buffer, or the IO thread that drained it,
+     * so implementations must be quick and must not block.
+     * @param stream
+     * @param writable the new writability
+     */
+    public void writabilityChanged(OFMessageSafeOutStream stream, boolean writable);
+}
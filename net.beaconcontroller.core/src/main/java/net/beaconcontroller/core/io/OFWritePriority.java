@@ -0,0 +1,68 @@
+package net.beaconcontroller.core.io;
+
+import org.openflow.protocol.OFMessage;
+
+/**
+ * Classes of outgoing traffic on a switch connection. Each class is queued
+ * separately and drained by weighted round robin, so that liveness and flow
+ * setup messages are not stuck behind bulk flow programming. Messages within
+ * a class are always sent in the order they were written, but no ordering is
+ * guaranteed between classes. Every message other than handshake and
+ * liveness traffic therefore defaults to FLOW_SETUP: a packet out sent to
+ * OFPP_TABLE must not overtake the flow mod installed for it, a barrier must
+ * not overtake the port mod or vendor message it is meant to confirm, and a
+ * stats request must not overtake the flow mods written before it.
+ */
+public enum OFWritePriority {
+    /**
+     * Handshake and liveness messages
+     */
+    CONTROL(4),
+    /**
+     * Everything else, including packet outs, flow mods and barriers
+     */
+    FLOW_SETUP(2),
+    /**
+     * Only used when a caller asks for it, for flow programming that may wait
+     * behind flow setup. It is unordered with respect to FLOW_SETUP, so it
+     * must be fenced with barriers written in this class.
+     */
+    BULK(1);
+
+    protected int weight;
+
+    private OFWritePriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the number of buffered chunks drained from this class for each
+     * chunk drained from BULK
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the class used for a message written without an explicit
+     * priority. Everything but handshake and liveness messages shares
+     * FLOW_SETUP so that it keeps the order it was written in, and never
+     * BULK.
+     * @param m
+     * @return
+     */
+    public static OFWritePriority forMessage(OFMessage m) {
+        switch (m.getType()) {
+            case HELLO:
+            case ERROR:
+            case ECHO_REQUEST:
+            case ECHO_REPLY:
+            case FEATURES_REQUEST:
+            case GET_CONFIG_REQUEST:
+            case SET_CONFIG:
+                return CONTROL;
+            default:
+                return FLOW_SETUP;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package net.beaconcontroller.core.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+/**
+ * Builds PACKET_OUTs that send on the payload of a PACKET_IN without copying
+ * it. The payload is referenced, not copied, and is written straight from
+ * the PACKET_IN into the output buffer when the message is serialized, so it
+ * is copied once on its way out. The payload is only attached when the
+ * switch did not buffer the packet.
+ *
+ * Payloads referencing the read buffer of a {@link LazyOFMessage} or a
+ * {@link SlicedPacketIn} are only valid while that message is being handled, the PACKET_OUT must be written
+ * before the handler returns.
+ *
+ * Each thread has its own builder, reset by {@link #get()} and the
+ * forPacketIn methods. The builder reuses its PACKET_OUT and output actions,
+ * so a built message is only valid until the thread's next build, which is
+ * enough as output streams serialize messages as they are written.
+ */
+public class PacketOutBuilder {
+    /**
+     * A PACKET_OUT whose payload is a slice of another buffer
+     */
+    protected static class SlicedPacketOut extends OFPacketOut {
+        protected ByteBuffer payload;
+
+        @Override
+        public void writeTo(ByteBuffer data) {
+            super.writeTo(data);
+            // restore the position rather than allocate a duplicate
+            int position = payload.position();
+            data.put(payload);
+            payload.position(position);
+        }
+
+        /**
+         * Copies the payload, only meant for logging and comparisons
+         */
+        @Override
+        public byte[] getPacketData() {
+            byte[] packetData = new byte[payload.remaining()];
+            payload.duplicate().get(packetData);
+            return packetData;
+        }
+    }
+
+    protected static ThreadLocal<PacketOutBuilder> builders = new ThreadLocal<PacketOutBuilder>() {
+        @Override
+        protected PacketOutBuilder initialValue() {
+            return new PacketOutBuilder();
+        }
+    };
+
+    protected List<OFAction> actions = new ArrayList<OFAction>(2);
+    protected int actionsLength = 0;
+    protected int bufferId = OFPacketOut.BUFFER_ID_NONE;
+    protected short inPort = OFPort.OFPP_NONE.getValue();
+    protected List<OFActionOutput> outputs = new ArrayList<OFActionOutput>(2);
+    protected int outputsUsed = 0;
+    protected byte[] packetData;
+    protected OFPacketOut packetOut = new OFPacketOut();
+    protected ByteBuffer payload;
+    protected SlicedPacketOut slicedPacketOut = new SlicedPacketOut();
+
+    /**
+     * @return the calling thread's builder, reset
+     */
+    public static PacketOutBuilder get() {
+        return builders.get().reset();
+    }
+
+    /**
+     * Starts a PACKET_OUT for the given PACKET_IN, carrying its buffer id,
+     * input port and, if unbuffered, a reference to its packet data. The data
+     * of a {@link SlicedPacketIn} that has not been copied is referenced in
+     * the read buffer.
+     * @param pi
+     * @return
+     */
+    public static PacketOutBuilder forPacketIn(OFPacketIn pi) {
+        PacketOutBuilder builder = get()
+            .setBufferId(pi.getBufferId())
+            .setInPort(pi.getInPort());
+        if (pi.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
+            ByteBuffer payload = (pi instanceof SlicedPacketIn)
+                    ? ((SlicedPacketIn) pi).payload : null;
+            if (payload != null)
+                builder.setPayload(payload);
+            else
+                builder.setPacketData(pi.getPacketData());
+        }
+        return builder;
+    }
+
+    /**
+     * Starts a PACKET_OUT for the given PACKET_IN without decoding it, if
+     * unbuffered the payload references the slice of the read buffer holding
+     * the packet
+     * @param m
+     * @return
+     * @throws IllegalStateException if m is not a PACKET_IN
+     */
+    public static PacketOutBuilder forPacketIn(LazyOFMessage m) {
+        if (m.isDecoded())
+            return forPacketIn((OFPacketIn) m.getMessage());
+        PacketOutBuilder builder = get()
+            .setBufferId(m.getPacketInBufferId())
+            .setInPort(m.getPacketInPort());
+        if (m.getPacketInBufferId() == OFPacketOut.BUFFER_ID_NONE)
+            builder.setPayload(m.getPacketInData());
+        return builder;
+    }
+
+    /**
+     * Clears the actions and payload and restores the default buffer id and
+     * input port
+     * @return
+     */
+    public PacketOutBuilder reset() {
+        actions.clear();
+        actionsLength = 0;
+        bufferId = OFPacketOut.BUFFER_ID_NONE;
+        inPort = OFPort.OFPP_NONE.getValue();
+        outputsUsed = 0;
+        packetData = null;
+        payload = null;
+        return this;
+    }
+
+    /**
+     * @param bufferId the buffer id to set
+     * @return
+     */
+    public PacketOutBuilder setBufferId(int bufferId) {
+        this.bufferId = bufferId;
+        return this;
+    }
+
+    /**
+     * @param inPort the input port to set
+     * @return
+     */
+    public PacketOutBuilder setInPort(short inPort) {
+        this.inPort = inPort;
+        return this;
+    }
+
+    /**
+     * References, without copying, the packet to send
+     * @param packetData
+     * @return
+     */
+    public PacketOutBuilder setPacketData(byte[] packetData) {
+        this.packetData = packetData;
+        this.payload = null;
+        return this;
+    }
+
+    /**
+     * References, without copying, the packet to send as the remaining bytes
+     * of the given buffer. The buffer's position and limit must not be
+     * changed until the PACKET_OUT has been written.
+     * @param payload
+     * @return
+     */
+    public PacketOutBuilder setPayload(ByteBuffer payload) {
+        this.payload = payload;
+        this.packetData = null;
+        return this;
+    }
+
+    /**
+     * Appends an action
+     * @param action
+     * @return
+     */
+    public PacketOutBuilder addAction(OFAction action) {
+        actions.add(action);
+        actionsLength += action.getLengthU();
+        return this;
+    }
+
+    /**
+     * Appends an output action sending the whole packet to the given port
+     * @param port
+     * @return
+     */
+    public PacketOutBuilder addOutput(short port) {
+        if (outputsUsed == outputs.size())
+            outputs.add(new OFActionOutput());
+        OFActionOutput output = outputs.get(outputsUsed++);
+        output.setPort(port)
+            .setMaxLength((short) 0);
+        return addAction(output);
+    }
+
+    /**
+     * @return the length of the payload that will be sent
+     */
+    public int getPayloadLength() {
+        if (payload != null)
+            return payload.remaining();
+        return (packetData == null) ? 0 : packetData.length;
+    }
+
+    /**
+     * @return the builder's PACKET_OUT, referencing its actions and payload
+     * and only valid until the next build
+     */
+    public OFPacketOut build() {
+        OFPacketOut po;
+        if (payload != null) {
+            slicedPacketOut.payload = payload;
+            po = slicedPacketOut;
+        } else {
+            packetOut.setPacketData(packetData);
+            po = packetOut;
+        }
+        po.setXid(0);
+        po.setBufferId(bufferId)
+            .setInPort(inPort)
+            .setActions(actions)
+            .setActionsLength((short) actionsLength)
+            .setLengthU(OFPacketOut.MINIMUM_LENGTH + actionsLength
+                    + getPayloadLength());
+        return po;
+    }
+
+    /**
+     * Builds the PACKET_OUT and writes it to the switch
+     * @param sw
+     * @throws IOException
+     */
+    public void write(IOFSwitch sw) throws IOException {
+        sw.getOutputStream().write(build());
+    }
+}
@@ -0,0 +1,157 @@
+package net.beaconcontroller.core.io;
+
+import java.nio.ByteBuffer;
+
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.util.U16;
+
+/**
+ * A PACKET_IN whose header is decoded but whose packet data is left in the
+ * buffer it was read into. Listeners called on the IO threads receive these,
+ * so a packet sent back out with
+ * {@link PacketOutBuilder#forPacketIn(OFPacketIn)} is copied only once, from
+ * the read buffer into the output buffer.
+ *
+ * The view of the read buffer is only valid while the message is being
+ * dispatched. {@link #getPacketData()} copies the data into an array the
+ * first time it is called, and that array stays valid, so a listener keeping
+ * the message past its receive call must call it before returning. Messages
+ * whose data was never copied are reused for later PACKET_INs.
+ */
+public class SlicedPacketIn extends OFPacketIn {
+    protected static final byte[] EMPTY = new byte[0];
+    protected static final OFPacketInReason[] REASONS = OFPacketInReason.values();
+
+    protected boolean copied = false;
+    protected ByteBuffer payload;
+    protected ByteBuffer source;
+    protected ByteBuffer view;
+
+    /**
+     * Decodes the header of the PACKET_IN starting at offset in data, and
+     * references its packet data without copying it. data's position and
+     * limit are not modified.
+     * @param data buffer holding the complete message
+     * @param offset index of the first byte of the message header
+     */
+    public SlicedPacketIn(ByteBuffer data, int offset) {
+        wrap(data, offset);
+    }
+
+    /**
+     * Reuses this message for the PACKET_IN starting at offset in data, as
+     * the constructor does. Only meant for released messages whose packet
+     * data was never copied, which nobody can still be holding.
+     * @param data buffer holding the complete message
+     * @param offset index of the first byte of the message header
+     * @return this
+     */
+    public SlicedPacketIn wrap(ByteBuffer data, int offset) {
+        int length = U16.f(data.getShort(offset + 2));
+        setVersion(data.get(offset));
+        setLengthU(length);
+        setXid(data.getInt(offset + 4));
+        setBufferId(data.getInt(offset + LazyOFMessage.PACKET_IN_BUFFER_ID_OFFSET));
+        setTotalLength(data.getShort(offset + 12));
+        setInPort(data.getShort(offset + LazyOFMessage.PACKET_IN_IN_PORT_OFFSET));
+        setReason(REASONS[0xff & data.get(offset + 16)]);
+        // the view is kept for as long as the same read buffer is wrapped
+        if (source != data) {
+            source = data;
+            view = data.asReadOnlyBuffer();
+        }
+        view.limit(offset + Math.max(length, LazyOFMessage.PACKET_IN_DATA_OFFSET));
+        view.position(offset + LazyOFMessage.PACKET_IN_DATA_OFFSET);
+        // written ahead of the payload by OFPacketIn.writeTo
+        super.setPacketData(EMPTY);
+        this.copied = false;
+        this.payload = view;
+        return this;
+    }
+
+    /**
+     * @return true once the packet data has been copied into an array, or
+     * replaced
+     */
+    public boolean isCopied() {
+        return copied;
+    }
+
+    /**
+     * Returns a read only view of the packet data in the read buffer
+     * @return the view, or null once the data has been copied or released
+     */
+    public ByteBuffer getPayload() {
+        return (payload == null) ? null : payload.duplicate();
+    }
+
+    /**
+     * Drops the view of the read buffer once dispatch is complete, so that a
+     * retained message never reads data belonging to a later one
+     */
+    public void release() {
+        payload = null;
+    }
+
+    /**
+     * Copies the packet data into an array on the first call
+     * @throws IllegalStateException if it was neither copied nor replaced
+     * before the message was released
+     */
+    @Override
+    public byte[] getPacketData() {
+        if (!copied) {
+            checkPayload();
+            byte[] packetData = new byte[payload.remaining()];
+            getPacketData(packetData);
+            setPacketData(packetData);
+        }
+        return super.getPacketData();
+    }
+
+    /**
+     * Copies the start of the packet data into dst without allocating
+     * @param dst
+     * @return the number of bytes copied, the smaller of the packet data's
+     * length and dst's
+     * @throws IllegalStateException if it was neither copied nor replaced
+     * before the message was released
+     */
+    public int getPacketData(byte[] dst) {
+        if (copied) {
+            byte[] packetData = super.getPacketData();
+            int length = Math.min(packetData.length, dst.length);
+            System.arraycopy(packetData, 0, dst, 0, length);
+            return length;
+        }
+        checkPayload();
+        int position = payload.position();
+        int length = Math.min(payload.remaining(), dst.length);
+        payload.get(dst, 0, length);
+        payload.position(position);
+        return length;
+    }
+
+    protected void checkPayload() {
+        if (payload == null)
+            throw new IllegalStateException(
+                    "PACKET_IN data is only readable while it is dispatched");
+    }
+
+    @Override
+    public OFPacketIn setPacketData(byte[] packetData) {
+        copied = true;
+        payload = null;
+        return super.setPacketData(packetData);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer data) {
+        super.writeTo(data);
+        if (!copied) {
+            int position = payload.position();
+            data.put(payload);
+            payload.position(position);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of fixed size direct ByteBuffers. Allocating direct
+ * buffers is expensive, so streams take their output chunks from the pool of
+ * the IOLoop they belong to and hand them back once they have been written to
+ * the socket.
+ */
+public class BufferPool {
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    protected int chunkSize;
+    protected Queue<ByteBuffer> free;
+    protected AtomicInteger freeCount;
+    protected int maxPooled;
+
+    public BufferPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param chunkSize capacity in bytes of each pooled buffer
+     * @param maxPooled maximum number of idle buffers retained by the pool
+     */
+    public BufferPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+        this.freeCount = new AtomicInteger();
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Retrieves a cleared buffer of chunkSize capacity, allocating a new one
+     * if the pool is empty
+     * @return
+     */
+    public ByteBuffer take() {
+        ByteBuffer buf = free.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(chunkSize);
+        freeCount.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers not allocated by this pool, or
+     * arriving while the pool is full, are dropped for the garbage collector.
+     * @param buf
+     */
+    public void recycle(ByteBuffer buf) {
+        if (buf.capacity() != chunkSize || !buf.isDirect())
+            return;
+        if (freeCount.incrementAndGet() > maxPooled) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        free.add(buf);
+    }
+
+    /**
+     * @return the capacity of the buffers handed out by this pool
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the number of idle buffers currently held
+     */
+    public int getFreeCount() {
+        return freeCount.get();
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package net.beaconcontroller.core.io.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.beaconcontroller.core.io.IOLoopStatistics;
+
+import org.openflow.example.SelectListener;
+
+/**
+ * A select loop servicing switch connections. In addition to dispatching
+ * selected keys to its SelectListener, it records the thread it runs on so
+ * that OFStreams can tell whether a write came from the loop itself or from
+ * some other thread, and it flushes streams that have been written to since
+ * the last iteration before selecting again.
+ *
+ * Wakeups requested by other threads are coalesced, at most one wakeup is
+ * issued per select() call regardless of how many streams were written to.
+ * Each loop also owns the BufferPool its streams queue outgoing data in, and
+ * a single direct buffer that all of its streams read into in turn.
+ */
+public class IOLoop implements IOLoopStatistics {
+    public static final int DEFAULT_READ_BUFFER_SIZE = 131072;
+
+    protected BufferPool bufferPool;
+    protected SelectListener callback;
+    protected volatile long messageRate;
+    protected Queue<OFStream> pendingStreams;
+    protected ByteBuffer readBuffer;
+    protected Selector selector;
+    protected volatile boolean shuttingDown = false;
+    protected Set<OFStream> streams;
+    protected Queue<Runnable> tasks;
+    protected volatile Thread thread;
+    protected long timeout;
+    protected AtomicBoolean wakeupPending;
+
+    /**
+     * @param callback listener invoked for each selected key
+     * @param timeout select timeout in milliseconds, 0 blocks indefinitely
+     * @throws IOException
+     */
+    public IOLoop(SelectListener callback, long timeout) throws IOException {
+        this.bufferPool = new BufferPool();
+        this.callback = callback;
+        this.pendingStreams = new ConcurrentLinkedQueue<OFStream>();
+        this.readBuffer = ByteBuffer.allocateDirect(DEFAULT_READ_BUFFER_SIZE);
+        this.streams = Collections.newSetFromMap(
+                new ConcurrentHashMap<OFStream, Boolean>());
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.timeout = timeout;
+        this.wakeupPending = new AtomicBoolean(false);
+    }
+
+    /**
+     * @return the selector the loop's channels are registered with
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Registers the channel with this loop's selector. Registration is
+     * performed on the loop thread to avoid blocking against an in progress
+     * select, the calling thread waits until it has completed.
+     * @param ch
+     * @param ops
+     * @param arg attachment for the resulting key
+     * @return the registered key
+     * @throws IOException
+     */
+    public SelectionKey registerBlocking(final SelectableChannel ch,
+            final int ops, final Object arg) throws IOException {
+        if (isLoopThread())
+            return ch.register(selector, ops, arg);
+
+        FutureTask<SelectionKey> task = new FutureTask<SelectionKey>(
+                new Callable<SelectionKey>() {
+                    @Override
+                    public SelectionKey call() throws Exception {
+                        return ch.register(selector, ops, arg);
+                    }
+                });
+        execute(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted registering channel " + ch);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the given task on the loop thread after the current select
+     * iteration completes
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Queues a stream with buffered outgoing data to be flushed by the loop
+     * thread. If called from a different thread the loop is woken up, if
+     * called from the loop thread the flush happens at the end of the current
+     * iteration, before select() is called again.
+     * @param stream
+     */
+    public void addPendingStream(OFStream stream) {
+        pendingStreams.add(stream);
+        if (!isLoopThread())
+            wakeup();
+    }
+
+    /**
+     * Wake up the selector, coalescing with any wakeup already requested
+     * since the last select returned
+     */
+    public void wakeup() {
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Records a stream as being serviced by this loop
+     * @param stream
+     */
+    public void addStream(OFStream stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * @param stream
+     */
+    public void removeStream(OFStream stream) {
+        streams.remove(stream);
+    }
+
+    /**
+     * @return the streams currently serviced by this loop
+     */
+    public Set<OFStream> getStreams() {
+        return streams;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return streams.size();
+    }
+
+    @Override
+    public long getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * Updates the message rate of this loop and each of its streams from the
+     * messages read since the previous sample
+     * @param elapsed milliseconds since the previous sample
+     */
+    public void sampleMessageRate(long elapsed) {
+        long total = 0;
+        for (OFStream stream : streams) {
+            total += stream.sampleMessageRate(elapsed);
+        }
+        messageRate = total;
+    }
+
+    /**
+     * @return the pool output chunks of streams on this loop are taken from
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the buffer streams on this loop read from their sockets into.
+     * It is shared by all of them, so must only be used from the loop thread
+     * and must not be retained across events.
+     * @return
+     */
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * @return true if the calling thread is the one running this loop
+     */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void doLoop() throws IOException {
+        thread = Thread.currentThread();
+        while (!shuttingDown) {
+            int nEvents = selector.select(timeout);
+            // must be reset before draining the queues so no request is missed
+            wakeupPending.set(false);
+            if (nEvents > 0) {
+                for (Iterator<SelectionKey> it = selector.selectedKeys()
+                        .iterator(); it.hasNext();) {
+                    SelectionKey sk = it.next();
+                    it.remove();
+                    if (!sk.isValid())
+                        continue;
+                    callback.handleEvent(sk, sk.attachment());
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            OFStream stream;
+            while ((stream = pendingStreams.poll()) != null) {
+                stream.flushFromLoop();
+            }
+        }
+        selector.close();
+    }
+
+    public void shutdown() {
+        shuttingDown = true;
+        selector.wakeup();
+    }
+}
@@ -1,81 +1,624 @@
 /**
- * 
+ *
  */
 package net.beaconcontroller.core.io.internal;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
+import net.beaconcontroller.core.io.OFMessageHandler;
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.OFWritabilityListener;
+import net.beaconcontroller.core.io.OFWritePriority;
 
-import org.openflow.io.OFMessageAsyncStream;
+import org.openflow.io.OFMessageInStream;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.util.U16;
 
 /**
- * This class is a thread-safe implementation of OFMessageAsyncStream, but only
- * for the OutStream portion. The write functions now trigger the select stream
- * to send the messages after being queued.
+ * This class is a thread-safe OpenFlow message stream for a single switch
+ * connection. Incoming messages are framed by their header length and decoded
+ * lazily from the owning IOLoop's shared read buffer. Outgoing messages are
+ * serialized into a queue of direct buffer chunks taken from the owning
+ * IOLoop's BufferPool, and written to the socket with gathering writes by the
+ * loop thread. Chunks are returned to the pool
+ * as soon as they have been fully written.
+ *
+ * Each {@link OFWritePriority} has its own queue of chunks. A flush gathers
+ * chunks from the queues by weighted round robin, always finishing a
+ * partially written chunk first so messages are never interleaved on the wire.
+ *
+ * When more than the high watermark of output is buffered the stream becomes
+ * unwritable until the switch has drained the buffer below the low
+ * watermark. Reading carries on regardless, so replies such as ECHO_REPLY
+ * and BARRIER_REPLY are never left unread; it is up to the controller to
+ * shed the messages that would generate more output.
+ *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  *
  */
-public class OFStream extends OFMessageAsyncStream implements OFMessageSafeOutStream {
-    protected SelectionKey key;
+public class OFStream implements OFMessageInStream, OFMessageSafeOutStream {
+    public static final int DEFAULT_HIGH_WATERMARK = 512 * 1024;
+    public static final int DEFAULT_LOW_WATERMARK = 128 * 1024;
+    public static final int DEFAULT_REMAINDER_SIZE = 2048;
+
+    protected long bytesFlushed;
+    protected long bytesQueued;
+    protected BufferPool bufferPool;
+    protected int highWatermark = DEFAULT_HIGH_WATERMARK;
+    protected volatile boolean inputClosed = false;
+    protected volatile IOLoop ioLoop;
+    protected volatile SelectionKey key;
+    protected LazyOFMessage lazyMessage;
+    protected long lastSampleCount;
+    protected int lowWatermark = DEFAULT_LOW_WATERMARK;
+    protected OFMessageFactory messageFactory;
+    protected volatile long messageCount;
+    protected volatile long messageRate;
+    /**
+     * Chunks waiting to be written, indexed by OFWritePriority ordinal
+     */
+    protected Deque<ByteBuffer>[] outChunks;
+    protected ByteBuffer[] outArray;
+    /**
+     * Queue each entry of outArray was taken from, -1 for outHead
+     */
+    protected int[] outClasses;
+    /**
+     * Chunk that a previous flush stopped part way through, in read mode and
+     * removed from its queue. It must be finished before any other chunk.
+     */
+    protected ByteBuffer outHead;
+    /**
+     * Guards outChunks, outArray, outClasses, outHead and the byte counters
+     */
+    protected Object outLock;
+    /**
+     * Trailing partial message from the previous read, if any
+     */
+    protected ByteBuffer remainder;
+    protected SocketChannel sock;
+    protected volatile boolean writable = true;
+    protected List<OFWritabilityListener> writabilityListeners;
+    protected AtomicBoolean writeNotified;
 
     /**
      * @param sock
      * @param messageFactory
+     * @param key
+     * @param ioLoop the loop the key is registered with
      * @throws IOException
      */
-    public OFStream(SocketChannel sock, OFMessageFactory messageFactory, SelectionKey key)
-            throws IOException {
-        super(sock, messageFactory);
+    @SuppressWarnings("unchecked")
+    public OFStream(SocketChannel sock, OFMessageFactory messageFactory,
+            SelectionKey key, IOLoop ioLoop) throws IOException {
+        this.bufferPool = ioLoop.getBufferPool();
+        this.ioLoop = ioLoop;
         this.key = key;
+        this.lazyMessage = new LazyOFMessage();
+        this.messageFactory = messageFactory;
+        this.outArray = new ByteBuffer[8];
+        this.outClasses = new int[8];
+        this.outChunks = new Deque[OFWritePriority.values().length];
+        for (int i = 0; i < outChunks.length; ++i) {
+            this.outChunks[i] = new ArrayDeque<ByteBuffer>();
+        }
+        this.outLock = new Object();
+        this.sock = sock;
+        this.writabilityListeners = new CopyOnWriteArrayList<OFWritabilityListener>();
+        this.writeNotified = new AtomicBoolean(false);
+    }
+
+    @Override
+    public List<OFMessage> read() throws IOException {
+        return read(0);
+    }
+
+    @Override
+    public List<OFMessage> read(int limit) throws IOException {
+        final List<OFMessage> l = new ArrayList<OFMessage>();
+        int count = read(null, new OFMessageHandler() {
+            @Override
+            public void handleMessage(IOFSwitch sw, LazyOFMessage m) {
+                l.add(m.getMessage());
+            }
+        }, limit);
+        return (count == -1) ? null : l;
+    }
+
+    /**
+     * Reads available data from the socket into the owning IOLoop's read
+     * buffer and passes each complete message to the handler as soon as it is
+     * framed, its body is only decoded if the handler asks for it. Any
+     * trailing partial message is retained until the next read. A partial
+     * message too large for the read buffer is instead read straight into
+     * the retained remainder until it is complete.
+     * Must only be called from the owning IOLoop thread.
+     * @param sw the switch passed through to the handler
+     * @param handler
+     * @param limit maximum number of messages to decode, 0 for no limit
+     * @return the number of messages read, or -1 if the connection was
+     * closed by the remote end
+     * @throws IOException
+     */
+    public int read(IOFSwitch sw, OFMessageHandler handler, int limit)
+            throws IOException {
+        ByteBuffer buf = ioLoop.getReadBuffer();
+        int pending = getRemainderMessageLength();
+        if (remainder != null
+                && Math.max(pending, remainder.position()) > buf.capacity()) {
+            if (remainder.capacity() < pending) {
+                ByteBuffer grown = ByteBuffer.allocate(pending);
+                remainder.flip();
+                grown.put(remainder);
+                remainder = grown;
+            }
+            buf = remainder;
+        } else {
+            buf.clear();
+            if (remainder != null && remainder.position() > 0) {
+                remainder.flip();
+                buf.put(remainder);
+                remainder.clear();
+            }
+        }
+        if (sock.read(buf) == -1) {
+            inputClosed = true;
+            return -1;
+        }
+        buf.flip();
+
+        int count = 0;
+        int end = buf.limit();
+        while (buf.remaining() >= OFMessage.MINIMUM_LENGTH
+                && (limit == 0 || count < limit)) {
+            int start = buf.position();
+            int length = U16.f(buf.getShort(start + 2));
+            if (length < OFMessage.MINIMUM_LENGTH)
+                throw new IOException("Invalid OpenFlow message length "
+                        + length + " from " + sock);
+            if (buf.remaining() < length)
+                break;
+
+            lazyMessage.wrap(buf, start, messageFactory);
+            ++count;
+            try {
+                handler.handleMessage(sw, lazyMessage);
+            } finally {
+                lazyMessage.clear();
+            }
+            buf.limit(end);
+            buf.position(start + length);
+        }
+        messageCount += count;
+
+        if (buf == remainder) {
+            remainder.compact();
+        } else if (buf.hasRemaining()) {
+            if (remainder == null || remainder.capacity() < buf.remaining())
+                remainder = ByteBuffer.allocate(Math.max(buf.remaining(),
+                        DEFAULT_REMAINDER_SIZE));
+            remainder.put(buf);
+        }
+        return count;
+    }
+
+    /**
+     * @return the length of the first message held in the remainder, or 0 if
+     * its length has not been received yet
+     */
+    protected int getRemainderMessageLength() {
+        if (remainder == null || remainder.position() < 4)
+            return 0;
+        return U16.f(remainder.getShort(2));
     }
 
     /**
-     * Buffers a single outgoing openflow message
+     * Buffers a single outgoing openflow message in its default class
      */
     @Override
     public void write(OFMessage m) throws IOException {
-        synchronized (outBuf) {
-            appendMessageToOutBuf(m);
+        write(m, OFWritePriority.forMessage(m));
+    }
+
+    @Override
+    public void write(OFMessage m, OFWritePriority priority) throws IOException {
+        boolean filled;
+        synchronized (outLock) {
+            appendMessage(m, outChunks[priority.ordinal()]);
+            filled = checkHighWatermark();
         }
-      }
+        if (filled)
+            fireWritabilityChanged(false);
+        writeNotify();
+    }
 
     /**
-     * Buffers a list of OpenFlow messages
+     * Buffers a list of OpenFlow messages, all in the default class of the
+     * least urgent message so that their order is preserved
      */
     @Override
     public void write(List<OFMessage> l) throws IOException {
-        synchronized (outBuf) {
+        OFWritePriority priority = OFWritePriority.CONTROL;
+        for (OFMessage m : l) {
+            OFWritePriority p = OFWritePriority.forMessage(m);
+            if (p.ordinal() > priority.ordinal())
+                priority = p;
+        }
+        write(l, priority);
+    }
+
+    @Override
+    public void write(List<OFMessage> l, OFWritePriority priority)
+            throws IOException {
+        boolean filled;
+        synchronized (outLock) {
+            Deque<ByteBuffer> chunks = outChunks[priority.ordinal()];
             for (OFMessage m : l) {
-                appendMessageToOutBuf(m);
+                appendMessage(m, chunks);
             }
+            filled = checkHighWatermark();
+        }
+        if (filled)
+            fireWritabilityChanged(false);
+        writeNotify();
+    }
+
+    /**
+     * Marks the stream unwritable if the buffered output has passed the high
+     * watermark. Caller must hold outLock.
+     * @return true if the stream just became unwritable
+     */
+    protected boolean checkHighWatermark() {
+        if (writable && bytesQueued - bytesFlushed > highWatermark) {
+            writable = false;
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Marks the stream writable if the buffered output has drained to the low
+     * watermark. Caller must hold outLock.
+     * @return true if the stream just became writable
+     */
+    protected boolean checkLowWatermark() {
+        if (!writable && bytesQueued - bytesFlushed <= lowWatermark) {
+            writable = true;
+            return true;
+        }
+        return false;
+    }
+
+    protected void fireWritabilityChanged(boolean writable) {
+        for (OFWritabilityListener listener : writabilityListeners) {
+            listener.writabilityChanged(this, writable);
+        }
+    }
+
+    /**
+     * Serializes the message onto the tail chunk, starting a new chunk if it
+     * does not fit. Messages larger than a pooled chunk get a dedicated buffer
+     * that is discarded once written. Caller must hold outLock.
+     * @param m
+     * @param chunks the queue of the message's priority class
+     */
+    protected void appendMessage(OFMessage m, Deque<ByteBuffer> chunks) {
+        int len = m.getLengthU();
+        ByteBuffer tail = chunks.peekLast();
+        if (tail == null || tail.remaining() < len) {
+            if (len <= bufferPool.getChunkSize())
+                tail = bufferPool.take();
+            else
+                tail = ByteBuffer.allocate(len);
+            chunks.addLast(tail);
+        }
+        m.writeTo(tail);
+        bytesQueued += len;
+    }
+
+    /**
+     * Notifies the owning IOLoop that this stream has data to send. Only the
+     * first write since the last flush queues the stream, later writes are
+     * picked up by the same flush.
+     */
+    protected void writeNotify() {
+        if (writeNotified.compareAndSet(false, true))
+            ioLoop.addPendingStream(this);
+    }
+
+    /**
+     * Called from the owning IOLoop thread, attempts to write buffered data
+     * directly to the socket and registers for OP_WRITE if any remains.
+     */
+    public void flushFromLoop() {
+        if (!ioLoop.isLoopThread()) {
+            // migrated since it was queued, hand it to the new loop
+            ioLoop.addPendingStream(this);
+            return;
+        }
+        writeNotified.set(false);
+        if (!key.isValid())
+            return;
+        try {
+            flush();
+        } catch (IOException e) {
+            // Leave the data buffered, the write event selected next will hit
+            // the same failure and disconnect the switch
+        }
+        if (key.isValid())
+            updateInterestOps();
+    }
+
+    /**
+     * Registers interest in writing while output is buffered, and in reading.
+     * Once the switch has closed its end, reading resumes only after all
+     * output is flushed, so the closed end is seen again and the connection
+     * torn down. Must only be called from the owning IOLoop thread with a
+     * valid key.
+     *
+     * The old stream had to register for reading or writing but never both,
+     * otherwise it deadlocked after a while: it flushed and changed interest
+     * ops from whichever thread wrote, racing the loop thread doing the
+     * same. Here writers only buffer under outLock and queue the stream with
+     * {@link #writeNotify()}, and both flushing and interest ops are left to
+     * the loop thread, so registering for both cannot race.
+     */
+    public void updateInterestOps() {
+        int ops = 0;
+        boolean flushNeeded = needsFlush();
+        if (flushNeeded)
+            ops |= SelectionKey.OP_WRITE;
+        if (!inputClosed || !flushNeeded)
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
     }
 
     /**
-     * Flush buffered outgoing data. Keep flushing until needsFlush() returns
-     * false. Each flush() corresponds to a SocketChannel.write(), so this is
-     * designed for one flush() per select() event
+     * Flush buffered outgoing data using gathering writes, stopping once
+     * everything is written or the socket would block. Fully written chunks
+     * are returned to the pool.
      */
+    @Override
     public void flush() throws IOException {
-        synchronized (outBuf) {
-            outBuf.flip(); // swap pointers; lim = pos; pos = 0;
-            sock.write(outBuf); // write data starting at pos up to lim
-            outBuf.compact();
+        boolean drained;
+        synchronized (outLock) {
+            drained = flushChunks();
         }
+        if (drained)
+            fireWritabilityChanged(true);
+    }
+
+    /**
+     * Caller must hold outLock
+     * @return true if the stream just became writable
+     * @throws IOException
+     */
+    protected boolean flushChunks() throws IOException {
+        int count = gatherChunks();
+        if (count == 0)
+            return false;
+
+        long remaining = 0;
+        for (int i = 0; i < count; ++i) {
+            remaining += outArray[i].remaining();
+        }
+
+        try {
+            while (remaining > 0) {
+                long written = sock.write(outArray, 0, count);
+                if (written <= 0)
+                    break;
+                bytesFlushed += written;
+                remaining -= written;
+            }
+        } finally {
+            // Gathered chunks from the same queue are in queue order, so the
+            // drained ones are always at the head of their queue
+            for (int i = 0; i < count; ++i) {
+                ByteBuffer chunk = outArray[i];
+                int cls = outClasses[i];
+                outArray[i] = null;
+                if (!chunk.hasRemaining()) {
+                    if (cls < 0)
+                        outHead = null;
+                    else
+                        outChunks[cls].pollFirst();
+                    bufferPool.recycle(chunk);
+                } else if (cls >= 0 && chunk.position() > 0) {
+                    // partially written, finish it before anything else
+                    outChunks[cls].pollFirst();
+                    outHead = chunk;
+                } else if (cls >= 0) {
+                    // untouched, return it to write mode
+                    chunk.position(chunk.limit());
+                    chunk.limit(chunk.capacity());
+                }
+            }
+        }
+        return checkLowWatermark();
+    }
+
+    /**
+     * Fills outArray with the chunks to write, starting with outHead and then
+     * taking up to each class's weight in chunks from each queue in turn until
+     * all are taken. Chunks taken from the queues are flipped into read mode.
+     * Caller must hold outLock.
+     * @return the number of chunks gathered
+     */
+    protected int gatherChunks() {
+        int total = (outHead == null) ? 0 : 1;
+        for (Deque<ByteBuffer> chunks : outChunks) {
+            total += chunks.size();
+        }
+        if (total == 0)
+            return 0;
+        if (outArray.length < total) {
+            int size = Math.max(total, outArray.length * 2);
+            outArray = new ByteBuffer[size];
+            outClasses = new int[size];
+        }
+
+        int count = 0;
+        if (outHead != null) {
+            outArray[count] = outHead;
+            outClasses[count++] = -1;
+        }
+        OFWritePriority[] priorities = OFWritePriority.values();
+        @SuppressWarnings("unchecked")
+        Iterator<ByteBuffer>[] its = new Iterator[priorities.length];
+        for (int i = 0; i < priorities.length; ++i) {
+            its[i] = outChunks[i].iterator();
+        }
+        while (count < total) {
+            for (int i = 0; i < priorities.length; ++i) {
+                for (int w = priorities[i].getWeight(); w > 0 && its[i].hasNext(); --w) {
+                    ByteBuffer chunk = its[i].next();
+                    chunk.flip();
+                    outArray[count] = chunk;
+                    outClasses[count++] = i;
+                }
+            }
+        }
+        return count;
     }
 
     /**
      * Is there outgoing buffered data that needs to be flush()'d?
      */
+    @Override
     public boolean needsFlush() {
-        synchronized (outBuf) {
-            return outBuf.position() > 0;
+        synchronized (outLock) {
+            if (outHead != null)
+                return true;
+            for (Deque<ByteBuffer> chunks : outChunks) {
+                if (!chunks.isEmpty())
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public long getBytesQueued() {
+        synchronized (outLock) {
+            return bytesQueued;
+        }
+    }
+
+    @Override
+    public long getBytesFlushed() {
+        synchronized (outLock) {
+            return bytesFlushed;
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public void addWritabilityListener(OFWritabilityListener listener) {
+        writabilityListeners.add(listener);
+    }
+
+    @Override
+    public void removeWritabilityListener(OFWritabilityListener listener) {
+        writabilityListeners.remove(listener);
+    }
+
+    /**
+     * @param highWatermark bytes of buffered output above which the stream
+     * becomes unwritable
+     * @param lowWatermark bytes of buffered output at or below which an
+     * unwritable stream becomes writable again
+     */
+    public void setWatermarks(int highWatermark, int lowWatermark) {
+        if (lowWatermark > highWatermark)
+            throw new IllegalArgumentException("Low watermark " + lowWatermark
+                    + " exceeds high watermark " + highWatermark);
+        synchronized (outLock) {
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
         }
     }
+
+    /**
+     * Moves this stream to a new loop. Must be called from the new loop's
+     * thread after the channel has been registered with it, and after the key
+     * from the previous loop has been cancelled.
+     * @param ioLoop
+     * @param key the key registered with the new loop
+     */
+    public void setIOLoop(IOLoop ioLoop, SelectionKey key) {
+        synchronized (outLock) {
+            this.bufferPool = ioLoop.getBufferPool();
+        }
+        this.key = key;
+        this.ioLoop = ioLoop;
+    }
+
+    /**
+     * @return the loop currently servicing this stream
+     */
+    public IOLoop getIOLoop() {
+        return ioLoop;
+    }
+
+    /**
+     * @return the key registered with the current loop
+     */
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the socket this stream reads from and writes to
+     */
+    public SocketChannel getSocketChannel() {
+        return sock;
+    }
+
+    /**
+     * @return the number of messages per second read as of the last sample
+     */
+    public long getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * Updates the message rate from the messages read since the previous
+     * sample. Only one thread should be sampling.
+     * @param elapsed milliseconds since the previous sample
+     * @return the updated rate
+     */
+    protected long sampleMessageRate(long elapsed) {
+        long count = messageCount;
+        messageRate = (elapsed > 0) ? (count - lastSampleCount) * 1000 / elapsed : 0;
+        lastSampleCount = count;
+        return messageRate;
+    }
+
+    @Override
+    public OFMessageFactory getMessageFactory() {
+        return messageFactory;
+    }
+
+    @Override
+    public void setMessageFactory(OFMessageFactory messageFactory) {
+        this.messageFactory = messageFactory;
+    }
 }
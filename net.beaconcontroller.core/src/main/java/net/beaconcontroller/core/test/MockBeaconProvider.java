@@ -7,11 +7,25 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.beaconcontroller.core.EchoStatistics;
+import net.beaconcontroller.core.HandshakeStatistics;
 import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IEventBus;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduler;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.PacketInStatistics;
+import net.beaconcontroller.core.TapStatistics;
 import net.beaconcontroller.core.IOFMessageListener.Command;
+import net.beaconcontroller.core.internal.EventBus;
+import net.beaconcontroller.core.internal.EventChannel;
+import net.beaconcontroller.core.internal.HandshakeMonitor;
+import net.beaconcontroller.core.internal.HashedWheelScheduler;
+import net.beaconcontroller.core.io.IOLoopStatistics;
+import net.beaconcontroller.core.io.LazyOFMessage;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
@@ -21,15 +35,23 @@ import org.openflow.protocol.OFType;
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class MockBeaconProvider implements IBeaconProvider {
+    protected Map<IOFMessageListener, OFMessageInterest> interests;
     protected Map<OFType, List<IOFMessageListener>> listeners;
+    protected Map<IOFMessageListener, OFMessageInterest> tapInterests;
+    protected Map<OFType, List<IOFMessageListener>> taps;
     protected List<IOFSwitchListener> switchListeners;
     protected Map<Long, IOFSwitch> switches;
+    protected EventBus eventBus;
+    protected HashedWheelScheduler scheduler;
 
     /**
      * 
      */
     public MockBeaconProvider() {
+        interests = new ConcurrentHashMap<IOFMessageListener, OFMessageInterest>();
         listeners = new ConcurrentHashMap<OFType, List<IOFMessageListener>>();
+        tapInterests = new ConcurrentHashMap<IOFMessageListener, OFMessageInterest>();
+        taps = new ConcurrentHashMap<OFType, List<IOFMessageListener>>();
         switches = new ConcurrentHashMap<Long, IOFSwitch>();
         switchListeners = new CopyOnWriteArrayList<IOFSwitchListener>();
     }
@@ -41,8 +63,38 @@ public class MockBeaconProvider implements IBeaconProvider {
         listeners.get(type).add(listener);
     }
 
+    public void addOFMessageListener(OFType type, IOFMessageListener listener,
+            OFMessageInterest interest) {
+        addOFMessageListener(type, listener);
+        if (interest != null)
+            interests.put(listener, interest);
+    }
+
     public void removeOFMessageListener(OFType type, IOFMessageListener listener) {
         listeners.get(type).remove(listener);
+        interests.remove(listener);
+    }
+
+    public void addOFMessageTap(OFType type, IOFMessageListener listener,
+            OFMessageInterest interest) {
+        if (!taps.containsKey(type)) {
+            taps.put(type, new ArrayList<IOFMessageListener>());
+        }
+        taps.get(type).add(listener);
+        if (interest != null)
+            tapInterests.put(listener, interest);
+    }
+
+    public void removeOFMessageTap(OFType type, IOFMessageListener listener) {
+        taps.get(type).remove(listener);
+        tapInterests.remove(listener);
+    }
+
+    /**
+     * @return the taps
+     */
+    public Map<OFType, List<IOFMessageListener>> getTaps() {
+        return taps;
     }
 
     /**
@@ -78,14 +130,107 @@ public class MockBeaconProvider implements IBeaconProvider {
         switchListeners.remove(listener);
     }
 
+    @Override
+    public List<IOLoopStatistics> getIOLoopStatistics() {
+        return new ArrayList<IOLoopStatistics>();
+    }
+
+    @Override
+    public List<EchoStatistics> getEchoStatistics() {
+        return new ArrayList<EchoStatistics>();
+    }
+
+    @Override
+    public List<TapStatistics> getTapStatistics() {
+        return new ArrayList<TapStatistics>();
+    }
+
+    @Override
+    public HandshakeStatistics getHandshakeStatistics() {
+        return new HandshakeMonitor();
+    }
+
+    @Override
+    public List<PacketInStatistics> getPacketInStatistics() {
+        return new ArrayList<PacketInStatistics>();
+    }
+
+    /**
+     * Stops the scheduler, if one was started
+     */
+    public synchronized void shutDown() {
+        if (scheduler != null) {
+            scheduler.shutDown();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public synchronized IScheduler getScheduler() {
+        if (scheduler == null) {
+            scheduler = new HashedWheelScheduler();
+            scheduler.startUp();
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns an event bus delivering each event on the publishing thread
+     * before publish returns
+     */
+    @Override
+    public synchronized IEventBus getEventBus() {
+        if (eventBus == null) {
+            eventBus = new EventBus() {
+                @Override
+                protected void schedule(EventChannel<?> channel) {
+                    while (deliver(channel));
+                }
+            };
+        }
+        return eventBus;
+    }
+
+    /**
+     * Passes the message to the taps and then the listeners registered for
+     * its type, all on the calling thread
+     * @param sw
+     * @param msg
+     */
     public void dispatchMessage(IOFSwitch sw, OFMessage msg) {
-        List<IOFMessageListener> listeners = this.listeners.get(msg.getType());
+        dispatchMessage(sw, new LazyOFMessage(msg));
+    }
+
+    /**
+     * Passes the message to the taps and then the listeners registered for
+     * its type, all on the calling thread. As in the controller, taps get
+     * the decoded message and listeners get
+     * {@link LazyOFMessage#getTransientMessage()}, so a PACKET_IN wrapping
+     * wire data reaches the listeners without its packet data being copied.
+     * @param sw
+     * @param m
+     */
+    public void dispatchMessage(IOFSwitch sw, LazyOFMessage m) {
+        List<IOFMessageListener> taps = this.taps.get(m.getType());
+        if (taps != null) {
+            for (IOFMessageListener tap : taps) {
+                OFMessageInterest interest = tapInterests.get(tap);
+                if (interest == null || interest.matches(sw, m))
+                    tap.receive(sw, m.getMessage());
+            }
+            PacketContext.clear();
+        }
+        List<IOFMessageListener> listeners = this.listeners.get(m.getType());
         if (listeners != null) {
             Command result = Command.CONTINUE;
             Iterator<IOFMessageListener> it = listeners.iterator();
             while (it.hasNext() && !Command.STOP.equals(result)) {
-                result = it.next().receive(sw, msg);
+                IOFMessageListener listener = it.next();
+                OFMessageInterest interest = interests.get(listener);
+                if (interest == null || interest.matches(sw, m))
+                    result = listener.receive(sw, m.getTransientMessage());
             }
+            PacketContext.clear();
         }
     }
 
@@ -9,8 +9,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -54,14 +52,15 @@ public class ConcurrentCounter implements ICounter {
   
   static {
     liveCounters = Collections.newSetFromMap(new ConcurrentHashMap<ConcurrentCounter, Boolean>()); //nifty way to get concurrent hash set
-    //Set a background thread to flush any liveCounters every 100 milliseconds
-    Timer flushTimer = new Timer();
-    flushTimer.scheduleAtFixedRate(new TimerTask() {
-        public void run() {
-          for(ConcurrentCounter c : liveCounters) {
-            c.flush();
-          }
-        }}, 100, 100);
+  }
+
+  /**
+   * Flushes all liveCounters, the CounterStore calls this periodically
+   */
+  protected static void flushLiveCounters() {
+    for(ConcurrentCounter c : liveCounters) {
+      c.flush();
+    }
   }
 
   /**
@@ -8,11 +8,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
+import net.beaconcontroller.core.EchoStatistics;
+import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IScheduledTask;
 import net.beaconcontroller.counter.ICounter;
 import net.beaconcontroller.counter.ICounterStoreProvider;
 
@@ -41,6 +43,14 @@ public class CounterStore implements ICounterStoreProvider {
   protected Map<ICounter, CounterEntry> counterToCEIndex = new HashMap<ICounter, CounterEntry>();
   protected ICounter heartbeatCounter;
   protected ICounter randomCounter;
+  protected IBeaconProvider beaconProvider;
+  protected IScheduledTask flushTask;
+  protected IScheduledTask healthCheckTask;
+  protected IScheduledTask echoTask;
+  /**
+   * Echo requests sent and missed per switch as of the previous echo sample
+   */
+  protected Map<Long, long[]> lastEchoCounts = new HashMap<Long, long[]>();
   
   /* 
    * @see net.beaconcontroller.counter.ICounterStoreProvider#createCounter(java.lang.String)
@@ -71,14 +81,70 @@ public class CounterStore implements ICounterStoreProvider {
     System.out.println("CounterStore startUp");
     this.heartbeatCounter = this.createCounter("CounterStore heartbeat");
     this.randomCounter = this.createCounter("CounterStore random");
-  //Set a background thread to flush any liveCounters every 100 milliseconds
-    Timer healthCheckTimer = new Timer();
-    healthCheckTimer.scheduleAtFixedRate(new TimerTask() {
+    //Flush any liveCounters every 100 milliseconds
+    flushTask = beaconProvider.getScheduler().scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          ConcurrentCounter.flushLiveCounters();
+        }
+    }, 100, 100, TimeUnit.MILLISECONDS);
+    healthCheckTask = beaconProvider.getScheduler().scheduleAtFixedRate(new Runnable() {
         public void run() {
           heartbeatCounter.increment();
           randomCounter.increment(new Date(), (long) (Math.random() * 100)); //TODO - pull this in to random timing
         }
-    }, 100, 100);
+    }, 100, 100, TimeUnit.MILLISECONDS);
+    echoTask = beaconProvider.getScheduler().scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          sampleEchoStatistics();
+        }
+    }, 1, 1, TimeUnit.SECONDS);
+  }
+
+  public void shutDown() {
+    flushTask.cancel();
+    healthCheckTask.cancel();
+    echoTask.cancel();
+  }
+
+  /**
+   * Feeds the switch keepalive results into per switch counters tagged "echo",
+   * the round trip in microseconds of each newly answered echo request and
+   * the number of newly missed ones
+   */
+  protected void sampleEchoStatistics() {
+    Date now = new Date();
+    for (EchoStatistics echo : beaconProvider.getEchoStatistics()) {
+      long[] last = lastEchoCounts.get(echo.getSwitchId());
+      if (last == null) {
+        last = new long[2];
+        lastEchoCounts.put(echo.getSwitchId(), last);
+      }
+      long sent = echo.getSent();
+      long missed = echo.getMissed();
+      String dpid = Long.toHexString(echo.getSwitchId());
+      if (sent > last[0] && echo.getLastRtt() > 0)
+        getEchoCounter(dpid + " echo rtt us").increment(now, echo.getLastRtt());
+      if (missed > last[1])
+        getEchoCounter(dpid + " echo missed").increment(now, missed - last[1]);
+      last[0] = sent;
+      last[1] = missed;
+    }
+  }
+
+  protected ICounter getEchoCounter(String title) {
+    ICounter c = getCounter(title);
+    if (c == null) {
+      c = createCounter(title);
+      addTag(c, "echo");
+    }
+    return c;
+  }
+
+  /**
+   * @param beaconProvider the beaconProvider to set
+   */
+  public void setBeaconProvider(IBeaconProvider beaconProvider) {
+    this.beaconProvider = beaconProvider;
   }
   
   public ICounter getCounter(String title) {
@@ -0,0 +1,130 @@
+package net.beaconcontroller.devicemanager.internal;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.test.MockBeaconProvider;
+import net.beaconcontroller.packet.ARP;
+import net.beaconcontroller.packet.Ethernet;
+import net.beaconcontroller.packet.IPv4;
+import net.beaconcontroller.test.BeaconTestCase;
+import net.beaconcontroller.topology.ITopology;
+import net.beaconcontroller.topology.SwitchPortTuple;
+
+import org.junit.Test;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketIn.OFPacketInReason;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+public class ArpProxyTest extends BeaconTestCase {
+    protected ArpProxy getArpProxy() {
+        return (ArpProxy) getApplicationContext().getBean("arpProxy");
+    }
+
+    protected DeviceManagerImpl getDeviceManager() {
+        return (DeviceManagerImpl) getApplicationContext().getBean("deviceManager");
+    }
+
+    protected MockBeaconProvider getMockBeaconProvider() {
+        return (MockBeaconProvider) getApplicationContext().getBean("mockBeaconProvider");
+    }
+
+    protected OFPacketIn arpPacketIn(short opCode, String senderMac, String senderIp,
+            String targetMac, String targetIp, String destinationMac, short inPort) {
+        byte[] packet = new Ethernet()
+            .setSourceMACAddress(senderMac)
+            .setDestinationMACAddress(destinationMac)
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                    new ARP()
+                    .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                    .setProtocolType(ARP.PROTO_TYPE_IP)
+                    .setHardwareAddressLength((byte) 6)
+                    .setProtocolAddressLength((byte) 4)
+                    .setOpCode(opCode)
+                    .setSenderHardwareAddress(Ethernet.toMACAddress(senderMac))
+                    .setSenderProtocolAddress(IPv4.toIPv4AddressBytes(senderIp))
+                    .setTargetHardwareAddress(Ethernet.toMACAddress(targetMac))
+                    .setTargetProtocolAddress(IPv4.toIPv4AddressBytes(targetIp)))
+            .serialize();
+        return new OFPacketIn()
+            .setBufferId(-1)
+            .setInPort(inPort)
+            .setPacketData(packet)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) packet.length);
+    }
+
+    @Test
+    public void testArpProxy() throws Exception {
+        ArpProxy arpProxy = getArpProxy();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+
+        // the reply on behalf of 192.168.1.101 back out the requester's port
+        byte[] reply = new Ethernet()
+            .setSourceMACAddress("00:00:00:00:00:01")
+            .setDestinationMACAddress("00:00:00:00:00:09")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPad(true)
+            .setPayload(
+                    new ARP()
+                    .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                    .setProtocolType(ARP.PROTO_TYPE_IP)
+                    .setHardwareAddressLength((byte) 6)
+                    .setProtocolAddressLength((byte) 4)
+                    .setOpCode(ARP.OP_REPLY)
+                    .setSenderHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:01"))
+                    .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.101"))
+                    .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:09"))
+                    .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.9")))
+            .serialize();
+        OFPacketOut po = new OFPacketOut()
+            .setActions(Arrays.asList(new OFAction[] {new OFActionOutput().setPort((short) 3)}))
+            .setActionsLength((short) OFActionOutput.MINIMUM_LENGTH)
+            .setBufferId(-1)
+            .setInPort(OFPort.OFPP_NONE.getValue())
+            .setPacketData(reply);
+        po.setLengthU(OFPacketOut.MINIMUM_LENGTH + po.getActionsLengthU() + reply.length);
+
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
+        ITopology mockTopology = createMock(ITopology.class);
+        expect(mockSwitch.getId()).andReturn(1L).anyTimes();
+        expect(mockSwitch.getOutputStream()).andReturn(mockStream);
+        expect(mockTopology.isInternal((SwitchPortTuple) anyObject())).andReturn(false).anyTimes();
+        mockStream.write(po);
+        replay(mockSwitch, mockStream, mockTopology);
+        getDeviceManager().setTopology(mockTopology);
+
+        // the device manager learns 192.168.1.101 from its reply
+        mockBeaconProvider.dispatchMessage(mockSwitch, arpPacketIn(ARP.OP_REPLY,
+                "00:00:00:00:00:01", "192.168.1.101", "00:11:22:33:44:55", "192.168.1.2",
+                "00:11:22:33:44:55", (short) 1));
+        mockBeaconProvider.dispatchMessage(mockSwitch, arpPacketIn(ARP.OP_REQUEST,
+                "00:00:00:00:00:09", "192.168.1.9", "00:00:00:00:00:00", "192.168.1.101",
+                "ff:ff:ff:ff:ff:ff", (short) 3));
+        assertEquals(1, arpProxy.getAnswered());
+
+        // an unknown address is left to flood once, then dropped
+        OFPacketIn unknown = arpPacketIn(ARP.OP_REQUEST,
+                "00:00:00:00:00:09", "192.168.1.9", "00:00:00:00:00:00", "192.168.1.150",
+                "ff:ff:ff:ff:ff:ff", (short) 3);
+        mockBeaconProvider.dispatchMessage(mockSwitch, unknown);
+        assertEquals(0, arpProxy.getSuppressed());
+        mockBeaconProvider.dispatchMessage(mockSwitch, unknown);
+        assertEquals(1, arpProxy.getSuppressed());
+
+        verify(mockSwitch, mockStream, mockTopology);
+    }
+}
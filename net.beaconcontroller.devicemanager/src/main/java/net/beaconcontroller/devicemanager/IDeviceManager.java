@@ -21,6 +21,14 @@ public interface IDeviceManager {
      */
     public Device getDeviceByDataLayerAddress(byte[] address);
 
+    /**
+     * Returns the device last seen using the given network address, without
+     * taking any locks so it may be called on the packet in path
+     * @param address
+     * @return the device, or null if the address is unknown
+     */
+    public Device getDeviceByNetworkLayerAddress(int address);
+
     /**
      * Returns a list of all known devices in the system
      * @return
@@ -0,0 +1,236 @@
+package net.beaconcontroller.devicemanager.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IOFMessageListener;
+import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.OFMessageInterest.DestinationClass;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.io.PacketOutBuilder;
+import net.beaconcontroller.devicemanager.Device;
+import net.beaconcontroller.devicemanager.IDeviceManager;
+import net.beaconcontroller.packet.ARP;
+import net.beaconcontroller.packet.Ethernet;
+import net.beaconcontroller.packet.IPv4;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers broadcast ARP requests for addresses the device manager knows with
+ * a reply sent straight back out the port the request arrived on, so the
+ * request is not flooded. Requests for unknown addresses are left to be
+ * flooded by the listeners after this one, but only once per switch and
+ * address within the flood window, and no more than maxFloodsPerSecond in
+ * total, the rest are dropped.
+ */
+public class ArpProxy implements IOFMessageListener {
+    protected static Logger log = LoggerFactory.getLogger(ArpProxy.class);
+
+    // must be a power of two
+    protected static final int RECENT_SLOTS = 1024;
+
+    protected AtomicLong answered;
+    protected IBeaconProvider beaconProvider;
+    protected IDeviceManager deviceManager;
+    protected int floodWindow = 1000;
+    protected AtomicLong floods;
+    protected int maxFloodsPerSecond = 1000;
+    // each slot holds a fingerprint of the switch and address in its high
+    // 32 bits and the low 32 bits of the time it was last flooded
+    protected AtomicLongArray recent;
+    protected AtomicLong suppressed;
+
+    public ArpProxy() {
+        this.answered = new AtomicLong();
+        this.floods = new AtomicLong();
+        this.recent = new AtomicLongArray(RECENT_SLOTS);
+        this.suppressed = new AtomicLong();
+    }
+
+    public void startUp() {
+        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this,
+                new OFMessageInterest()
+                    .setEtherTypes(Ethernet.TYPE_ARP)
+                    .setDestinationClasses(DestinationClass.BROADCAST));
+    }
+
+    public void shutDown() {
+        beaconProvider.removeOFMessageListener(OFType.PACKET_IN, this);
+    }
+
+    @Override
+    public String getName() {
+        return "arpproxy";
+    }
+
+    @Override
+    public Command receive(IOFSwitch sw, OFMessage msg) {
+        OFPacketIn pi = (OFPacketIn) msg;
+        Ethernet eth = PacketContext.get(pi).getEthernet();
+        if (!(eth.getPayload() instanceof ARP))
+            return Command.CONTINUE;
+        ARP arp = (ARP) eth.getPayload();
+        if (arp.getOpCode() != ARP.OP_REQUEST
+                || arp.getProtocolType() != ARP.PROTO_TYPE_IP)
+            return Command.CONTINUE;
+
+        // gratuitous ARPs announce the sender, everyone should hear them
+        int target = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
+        if (target == IPv4.toIPv4Address(arp.getSenderProtocolAddress()))
+            return Command.CONTINUE;
+
+        Device device = deviceManager.getDeviceByNetworkLayerAddress(target);
+        if (device != null && !Arrays.equals(device.getDataLayerAddress(),
+                arp.getSenderHardwareAddress())) {
+            writeReply(sw, pi, eth, arp, device);
+            answered.incrementAndGet();
+            return Command.STOP;
+        }
+
+        if (!allowFlood(sw.getId(), target, System.currentTimeMillis())) {
+            releaseBuffer(sw, pi);
+            suppressed.incrementAndGet();
+            return Command.STOP;
+        }
+        return Command.CONTINUE;
+    }
+
+    /**
+     * Records the flood of a request for the address on the switch
+     * @param switchId
+     * @param address
+     * @param now the time in milliseconds
+     * @return false if the same request was flooded within the flood window
+     * or too many requests have been flooded in the last second
+     */
+    protected boolean allowFlood(long switchId, int address, long now) {
+        long h = switchId * 31 + address;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        int i = (int) h & (RECENT_SLOTS - 1);
+        long fingerprint = h & 0xffffffff00000000L;
+        long entry = recent.get(i);
+        // compared as ints so the truncated times may wrap
+        if ((entry & 0xffffffff00000000L) == fingerprint
+                && (int) now - (int) entry < floodWindow)
+            return false;
+
+        if (maxFloodsPerSecond > 0) {
+            long second = now / 1000;
+            while (true) {
+                long current = floods.get();
+                long count = ((current >>> 32) == second) ? (current & 0xffffffffL) : 0;
+                if (count >= maxFloodsPerSecond)
+                    return false;
+                if (floods.compareAndSet(current, (second << 32) | (count + 1)))
+                    break;
+            }
+        }
+        recent.set(i, fingerprint | (now & 0xffffffffL));
+        return true;
+    }
+
+    protected void writeReply(IOFSwitch sw, OFPacketIn pi, Ethernet eth,
+            ARP request, Device device) {
+        Ethernet reply = new Ethernet()
+            .setDestinationMACAddress(eth.getSourceMACAddress())
+            .setSourceMACAddress(device.getDataLayerAddress())
+            .setPriorityCode(eth.getPriorityCode())
+            .setVlanID(eth.getVlanID())
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPad(true);
+        reply.setPayload(new ARP()
+            .setHardwareType(ARP.HW_TYPE_ETHERNET)
+            .setProtocolType(ARP.PROTO_TYPE_IP)
+            .setHardwareAddressLength((byte) 6)
+            .setProtocolAddressLength((byte) 4)
+            .setOpCode(ARP.OP_REPLY)
+            .setSenderHardwareAddress(device.getDataLayerAddress())
+            .setSenderProtocolAddress(request.getTargetProtocolAddress())
+            .setTargetHardwareAddress(request.getSenderHardwareAddress())
+            .setTargetProtocolAddress(request.getSenderProtocolAddress()));
+        releaseBuffer(sw, pi);
+        try {
+            PacketOutBuilder.get()
+                .setPacketData(reply.serialize())
+                .addOutput(pi.getInPort())
+                .write(sw);
+        } catch (IOException e) {
+            log.error("could not write ARP reply to switch", e);
+        }
+    }
+
+    /**
+     * Drops the request from the switch's buffer, if it was buffered
+     * @param sw
+     * @param pi
+     */
+    protected void releaseBuffer(IOFSwitch sw, OFPacketIn pi) {
+        if (pi.getBufferId() == OFPacketOut.BUFFER_ID_NONE)
+            return;
+        try {
+            // no actions, so the switch drops it
+            PacketOutBuilder.get()
+                .setBufferId(pi.getBufferId())
+                .setInPort(pi.getInPort())
+                .write(sw);
+        } catch (IOException e) {
+            log.error("could not release buffered ARP request on switch", e);
+        }
+    }
+
+    /**
+     * @param beaconProvider the beaconProvider to set
+     */
+    public void setBeaconProvider(IBeaconProvider beaconProvider) {
+        this.beaconProvider = beaconProvider;
+    }
+
+    /**
+     * @param deviceManager the deviceManager to set
+     */
+    public void setDeviceManager(IDeviceManager deviceManager) {
+        this.deviceManager = deviceManager;
+    }
+
+    /**
+     * @param floodWindow milliseconds after flooding a request during which
+     * the same request on the same switch is dropped
+     */
+    public void setFloodWindow(int floodWindow) {
+        this.floodWindow = floodWindow;
+    }
+
+    /**
+     * @param maxFloodsPerSecond requests for unknown addresses flooded each
+     * second before the rest are dropped, or 0 for no limit
+     */
+    public void setMaxFloodsPerSecond(int maxFloodsPerSecond) {
+        this.maxFloodsPerSecond = maxFloodsPerSecond;
+    }
+
+    /**
+     * @return the number of requests answered
+     */
+    public long getAnswered() {
+        return answered.get();
+    }
+
+    /**
+     * @return the number of requests for unknown addresses dropped
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+}
@@ -9,15 +9,18 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventSubscriber;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.PacketContext;
 import net.beaconcontroller.devicemanager.Device;
 import net.beaconcontroller.devicemanager.IDeviceManager;
 import net.beaconcontroller.devicemanager.IDeviceManagerAware;
@@ -55,12 +58,13 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
     protected Map<Long, Device> dataLayerAddressDeviceMap;
     protected Set<IDeviceManagerAware> deviceManagerAware;
     protected ReentrantReadWriteLock lock;
+    protected ConcurrentMap<Integer, Device> networkLayerAddressDeviceMap;
     protected volatile boolean shuttingDown = false;
     protected Map<IOFSwitch, Set<Device>> switchDeviceMap;
     protected Map<SwitchPortTuple, Set<Device>> switchPortDeviceMap;
     protected ITopology topology;
-    protected BlockingQueue<Update> updates;
-    protected Thread updatesThread;
+    protected IEventChannel<Update> updates;
+    protected int updatesCapacity = 1024;
     protected IDeviceManagerDao deviceManagerDao;
 
     protected enum UpdateType {
@@ -68,7 +72,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
     }
 
     /**
-     * Used internally to feed the update queue for IDeviceManagerAware listeners
+     * Used internally to feed the update channel for IDeviceManagerAware listeners
      */
     protected class Update {
         public Device device;
@@ -89,60 +93,91 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
     public DeviceManagerImpl() {
         this.dataLayerAddressDeviceMap = new ConcurrentHashMap<Long, Device>();
         this.lock = new ReentrantReadWriteLock();
+        this.networkLayerAddressDeviceMap = new ConcurrentHashMap<Integer, Device>();
         this.switchDeviceMap = new ConcurrentHashMap<IOFSwitch, Set<Device>>();
         this.switchPortDeviceMap = new ConcurrentHashMap<SwitchPortTuple, Set<Device>>();
-        this.updates = new LinkedBlockingQueue<Update>();
     }
 
     public void startUp() {
-        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this);
-        beaconProvider.addOFMessageListener(OFType.PORT_STATUS, this);
-        beaconProvider.addOFSwitchListener(this);
+        updates = beaconProvider.getEventBus().createChannel("Device Updates",
+                updatesCapacity, new IEventSubscriber<Update>() {
+            @Override
+            public void handleEvents(List<Update> events) {
+                updateDeviceManagerAware(events);
+            }}, new IEventCoalescer<Update>() {
+            @Override
+            public Object getKey(Update update) {
+                return Ethernet.toLong(update.device.getDataLayerAddress());
+            }
 
-        updatesThread = new Thread(new Runnable () {
             @Override
-            public void run() {
-                while (true) {
-                    try {
-                        Update update = updates.take();
-                        if (deviceManagerAware != null) {
-                            for (IDeviceManagerAware dma : deviceManagerAware) {
-                                try {
-                                    switch (update.updateType) {
-                                        case ADDED:
-                                            dma.deviceAdded(update.device);
-                                            break;
-                                        case REMOVED:
-                                            dma.deviceRemoved(update.device);
-                                            break;
-                                        case MOVED:
-                                            dma.deviceMoved(update.device,
-                                                    update.oldSw,
-                                                    update.oldSwPort,
-                                                    update.sw, update.swPort);
-                                            break;
-                                    }
-                                } catch (Exception e) {
-                                    log.error("Exception in callback", e);
-                                }
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        log.warn("DeviceManager Updates thread interupted", e);
-                        if (shuttingDown)
-                            return;
-                    }
-                }
-            }}, "DeviceManager Updates");
-        updatesThread.start();
+            public Update coalesce(Update pending, Update next) {
+                return coalesceUpdates(pending, next);
+            }});
+
+        // learning only observes packets, so keep it off the flow setup path
+        beaconProvider.addOFMessageTap(OFType.PACKET_IN, this, null);
+        beaconProvider.addOFMessageTap(OFType.PORT_STATUS, this, null);
+        beaconProvider.addOFSwitchListener(this);
     }
 
     public void shutDown() {
         shuttingDown = true;
-        beaconProvider.removeOFMessageListener(OFType.PACKET_IN, this);
-        beaconProvider.removeOFMessageListener(OFType.PORT_STATUS, this);
+        beaconProvider.removeOFMessageTap(OFType.PACKET_IN, this);
+        beaconProvider.removeOFMessageTap(OFType.PORT_STATUS, this);
         beaconProvider.removeOFSwitchListener(this);
-        updatesThread.interrupt();
+        beaconProvider.getEventBus().removeChannel(updates);
+    }
+
+    /**
+     * Passes a batch of device updates to the IDeviceManagerAware listeners,
+     * called on an event bus thread
+     * @param updates
+     */
+    protected void updateDeviceManagerAware(List<Update> updates) {
+        if (deviceManagerAware == null)
+            return;
+        for (Update update : updates) {
+            for (IDeviceManagerAware dma : deviceManagerAware) {
+                try {
+                    switch (update.updateType) {
+                        case ADDED:
+                            dma.deviceAdded(update.device);
+                            break;
+                        case REMOVED:
+                            dma.deviceRemoved(update.device);
+                            break;
+                        case MOVED:
+                            dma.deviceMoved(update.device,
+                                    update.oldSw,
+                                    update.oldSwPort,
+                                    update.sw, update.swPort);
+                            break;
+                    }
+                } catch (Exception e) {
+                    log.error("Exception in callback", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges two undelivered updates of the same type for the same data layer
+     * address, a device moved several times is delivered as one move from
+     * its first location to its last. Updates of different types are all
+     * delivered, as listeners may have acted on the device in between.
+     * @param pending
+     * @param next
+     * @return the merged update, or null to deliver both
+     */
+    protected Update coalesceUpdates(Update pending, Update next) {
+        if (pending.updateType != next.updateType)
+            return null;
+        if (next.updateType == UpdateType.MOVED) {
+            next.oldSw = pending.oldSw;
+            next.oldSwPort = pending.oldSwPort;
+        }
+        return next;
     }
 
     @Override
@@ -157,6 +192,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                         (((OFPortConfig.OFPPC_PORT_DOWN.getValue() & ps.getDesc().getConfig()) > 0) ||
                                 ((OFPortState.OFPPS_LINK_DOWN.getValue() & ps.getDesc().getState()) > 0)))) {
             SwitchPortTuple id = new SwitchPortTuple(sw, ps.getDesc().getPortNumber());
+            List<Update> removals = new ArrayList<Update>();
             lock.writeLock().lock();
             try {
                 if (switchPortDeviceMap.containsKey(id)) {
@@ -168,12 +204,13 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                     for (Device device : switchPortDevices) {
                         // Remove the device from the switch->device mapping
                         switchDeviceMap.get(id.getSw()).remove(device);
-                        delDevice(device);
+                        delDevice(device, removals);
                     }
                 }
             } finally {
                 lock.writeLock().unlock();
             }
+            publishUpdates(removals);
         }
         return Command.CONTINUE;
     }
@@ -183,11 +220,16 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
      * Does NOT remove the device from switch and switch:port level maps.
      * Must be called from within a write lock.
      * @param device
+     * @param changes collects the removal, to be published once the write
+     * lock is released
      */
-    protected void delDevice(Device device) {
+    protected void delDevice(Device device, List<Update> changes) {
         dataLayerAddressDeviceMap.remove(Ethernet.toLong(device.getDataLayerAddress()));
+        // only the addresses not since taken over by another device
+        for (Integer address : device.getNetworkAddresses())
+            networkLayerAddressDeviceMap.remove(address, device);
         deviceManagerDao.removeDevice(device);
-        updateStatus(device, false);
+        updateStatus(device, false, changes);
         if (log.isDebugEnabled()) {
             log.debug("Removed device {}", device);
         }
@@ -199,18 +241,21 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
             return handlePortStatus(sw, (OFPortStatus) msg);
         }
         OFPacketIn pi = (OFPacketIn) msg;
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pi.getPacketData(), pi.getInPort());
+        PacketContext context = PacketContext.get(pi);
+        OFMatch match = context.getMatch();
 
         // if the source is multicast/broadcast ignore it
         if ((match.getDataLayerSource()[0] & 0x1) != 0)
             return Command.CONTINUE;
 
-        Long dlAddr = Ethernet.toLong(match.getDataLayerSource());
+        // as a tap we also see the LLDPs topology consumes, they are not hosts
+        if (match.getDataLayerType() == Ethernet.TYPE_LLDP)
+            return Command.CONTINUE;
+
+        Long dlAddr = context.getSourceMAC();
 
         Integer nwSrc = 0;
-        Ethernet eth = new Ethernet();
-        eth.deserialize(pi.getPacketData(), 0, pi.getPacketData().length);
+        Ethernet eth = context.getEthernet();
         if (eth.getPayload() instanceof ARP) {
             ARP arp = (ARP) eth.getPayload();
             if ((arp.getProtocolType() == ARP.PROTO_TYPE_IP)
@@ -227,6 +272,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
             lock.readLock().unlock();
         }
         SwitchPortTuple ipt = new SwitchPortTuple(sw, pi.getInPort());
+        List<Update> changes = new ArrayList<Update>(1);
         if (!topology.isInternal(ipt)) {
             if (device != null) {
                 // Write lock is expensive, check if we have an update first
@@ -262,7 +308,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                             device.getSwPorts().add(ipt);
                             addSwitchDeviceMapping(ipt.getSw(), device);
                             addSwitchPortDeviceMapping(ipt, device);
-                            updateMoved(device, ipt, ipt);
+                            updateMoved(device, ipt, ipt, changes);
                             log.info("Device {} added {}", device, ipt);
                         }
                         if (addedNW) {
@@ -275,6 +321,9 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                         lock.writeLock().unlock();
                     }
                 }
+                // the address may have been used by another device since
+                if (nwSrc != 0 && networkLayerAddressDeviceMap.get(nwSrc) != device)
+                    networkLayerAddressDeviceMap.put(nwSrc, device);
                 deviceManagerDao.updateDevice(device);
             } else {
                 device = new Device();
@@ -284,18 +333,20 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                 try {
                     if (nwSrc != 0) {
                         device.getNetworkAddresses().add(nwSrc);
+                        networkLayerAddressDeviceMap.put(nwSrc, device);
                     }
                     this.dataLayerAddressDeviceMap.put(dlAddr, device);
                     deviceManagerDao.addDevice(device);
                     addSwitchDeviceMapping(ipt.getSw(), device);
                     addSwitchPortDeviceMapping(ipt, device);
-                    updateStatus(device, true);
+                    updateStatus(device, true, changes);
                     log.info("New device {}", device);
                 } finally {
                     lock.writeLock().unlock();
                 }
             }
         }
+        publishUpdates(changes);
 
         return Command.CONTINUE;
     }
@@ -358,6 +409,11 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
         }
     }
 
+    @Override
+    public Device getDeviceByNetworkLayerAddress(int address) {
+        return this.networkLayerAddressDeviceMap.get(address);
+    }
+
     @Override
     public List<Device> getDevices() {
         lock.readLock().lock();
@@ -375,6 +431,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
     @Override
     public void removedSwitch(IOFSwitch sw) {
         // remove all devices attached to this switch
+        List<Update> removals = new ArrayList<Update>();
         lock.writeLock().lock();
         try {
             if (switchDeviceMap.get(sw) != null) {
@@ -390,12 +447,13 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                 // Remove all devices on this switch
                 Set<Device> devices = switchDeviceMap.remove(sw);
                 for (Device device : devices) {
-                    delDevice(device);
+                    delDevice(device, removals);
                 }
             }
         } finally {
             lock.writeLock().unlock();
         }
+        publishUpdates(removals);
     }
 
     @Override
@@ -404,6 +462,7 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
         if (added) {
             // Remove all devices living on this switch:port now that it is internal
             SwitchPortTuple id = new SwitchPortTuple(dst, dstPort);
+            List<Update> removals = new ArrayList<Update>();
             lock.writeLock().lock();
             try {
                 if (switchPortDeviceMap.containsKey(id)) {
@@ -413,12 +472,13 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
                     for (Device device : devices) {
                         // Remove the device from the switch->device mapping
                         delSwitchDeviceMapping(id.getSw(), device);
-                        delDevice(device);
+                        delDevice(device, removals);
                     }
                 }
             } finally {
                 lock.writeLock().unlock();
             }
+            publishUpdates(removals);
         }
     }
 
@@ -437,12 +497,21 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
     }
 
     /**
-     * Puts an update in queue for the Device.  Must be called from within the
+     * @param updatesCapacity maximum device updates waiting for the
+     * IDeviceManagerAware listeners
+     */
+    public void setUpdatesCapacity(int updatesCapacity) {
+        this.updatesCapacity = updatesCapacity;
+    }
+
+    /**
+     * Queues an update for the Device.  Must be called from within the
      * write lock.
      * @param device
      * @param added
+     * @param changes collects the update for publishUpdates
      */
-    protected void updateStatus(Device device, boolean added) {
+    protected void updateStatus(Device device, boolean added, List<Update> changes) {
         Update update;
         if (added) {
             update = new Update(UpdateType.ADDED);
@@ -450,25 +519,37 @@ public class DeviceManagerImpl implements IDeviceManager, IOFMessageListener,
             update = new Update(UpdateType.REMOVED);
         }
         update.device = device;
-        this.updates.add(update);
+        changes.add(update);
     }
 
     /**
-     * Puts an update in queue to indicate the Device moved.  Must be called
+     * Queues an update to indicate the Device moved.  Must be called
      * from within the write lock.
      * @param device
-     * @param oldSw
-     * @param oldPort
-     * @param sw
-     * @param port
+     * @param oldSwPort
+     * @param swPort
+     * @param changes collects the update for publishUpdates
      */
-    protected void updateMoved(Device device, SwitchPortTuple oldSwPort, SwitchPortTuple swPort) {
+    protected void updateMoved(Device device, SwitchPortTuple oldSwPort,
+            SwitchPortTuple swPort, List<Update> changes) {
         Update update = new Update(UpdateType.MOVED);
         update.device = device;
         update.oldSw = oldSwPort.getSw();
         update.oldSwPort = oldSwPort.getPort();
         update.sw = swPort.getSw();
         update.swPort = swPort.getPort();
-        this.updates.add(update);
+        changes.add(update);
+    }
+
+    /**
+     * Publishes the queued updates to the IDeviceManagerAware listeners.
+     * Must be called after the write lock is released, publishing blocks
+     * while the channel is full and the bus threads draining it may be
+     * waiting on the lock in removedSwitch, linkUpdate or handlePortStatus.
+     * @param changes
+     */
+    protected void publishUpdates(List<Update> changes) {
+        for (Update update : changes)
+            this.updates.publish(update);
     }
 }
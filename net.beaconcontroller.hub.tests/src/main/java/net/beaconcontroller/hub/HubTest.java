@@ -1,15 +1,22 @@
 package net.beaconcontroller.hub;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.SlicedPacketIn;
 import net.beaconcontroller.core.test.MockBeaconProvider;
 import net.beaconcontroller.packet.Data;
 import net.beaconcontroller.packet.Ethernet;
@@ -18,9 +25,10 @@ import net.beaconcontroller.packet.IPv4;
 import net.beaconcontroller.packet.UDP;
 import net.beaconcontroller.test.BeaconTestCase;
 
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
-import org.openflow.io.OFMessageInStream;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketIn.OFPacketInReason;
 import org.openflow.protocol.OFPacketOut;
@@ -88,22 +96,19 @@ public class HubTest extends BeaconTestCase {
 
         // Mock up our expected behavior
         IOFSwitch mockSwitch = createMock(IOFSwitch.class);
-        OFMessageInStream mockInStream = createMock(OFMessageInStream.class);
         OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
-        expect(mockSwitch.getInputStream()).andReturn(mockInStream);
-        expect(mockInStream.getMessageFactory()).andReturn(new BasicFactory());
         expect(mockSwitch.getOutputStream()).andReturn(mockStream);
         mockStream.write(po);
 
         // Start recording the replay on the mocks
-        replay(mockSwitch, mockStream, mockInStream);
+        replay(mockSwitch, mockStream);
         // Get the listener and trigger the packet in
         IOFMessageListener listener = mockBeaconProvider.getListeners().get(
                 OFType.PACKET_IN).get(0);
         listener.receive(mockSwitch, this.packetIn);
 
         // Verify the replay matched our expectations
-        verify(mockSwitch, mockStream, mockInStream);
+        verify(mockSwitch, mockStream);
     }
 
     @Test
@@ -121,21 +126,58 @@ public class HubTest extends BeaconTestCase {
 
         // Mock up our expected behavior
         IOFSwitch mockSwitch = createMock(IOFSwitch.class);
-        OFMessageInStream mockInStream = createMock(OFMessageInStream.class);
         OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
-        expect(mockSwitch.getInputStream()).andReturn(mockInStream);
-        expect(mockInStream.getMessageFactory()).andReturn(new BasicFactory());
         expect(mockSwitch.getOutputStream()).andReturn(mockStream);
         mockStream.write(po);
 
         // Start recording the replay on the mocks
-        replay(mockSwitch, mockStream, mockInStream);
+        replay(mockSwitch, mockStream);
         // Get the listener and trigger the packet in
         IOFMessageListener listener = mockBeaconProvider.getListeners().get(
                 OFType.PACKET_IN).get(0);
         listener.receive(mockSwitch, this.packetIn);
 
         // Verify the replay matched our expectations
-        verify(mockSwitch, mockStream, mockInStream);
+        verify(mockSwitch, mockStream);
+    }
+
+    /**
+     * Verify a PACKET_IN dispatched from the read buffer is flooded without
+     * its packet data being copied out of that buffer
+     * @throws Exception
+     */
+    @Test
+    public void testFloodFromReadBuffer() throws Exception {
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        this.packetIn.setLengthU(OFPacketIn.MINIMUM_LENGTH
+                + this.testPacketSerialized.length);
+        ByteBuffer buf = ByteBuffer.allocate(this.packetIn.getLengthU());
+        this.packetIn.writeTo(buf);
+        LazyOFMessage m = new LazyOFMessage();
+        m.wrap(buf, 0, new BasicFactory());
+
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        expect(mockSwitch.getOutputStream()).andReturn(mockStream);
+        mockStream.write(capture(written));
+
+        replay(mockSwitch, mockStream);
+        mockBeaconProvider.dispatchMessage(mockSwitch, m);
+        verify(mockSwitch, mockStream);
+
+        // the packet went out whole, straight from the read buffer
+        OFPacketOut po = (OFPacketOut) written.getValue();
+        assertEquals(-1, po.getBufferId());
+        assertEquals(OFPacketOut.MINIMUM_LENGTH + OFActionOutput.MINIMUM_LENGTH
+                + this.testPacketSerialized.length, po.getLengthU());
+        ByteBuffer out = ByteBuffer.allocate(po.getLengthU());
+        po.writeTo(out);
+        byte[] sent = new byte[this.testPacketSerialized.length];
+        out.position(po.getLengthU() - sent.length);
+        out.get(sent);
+        assertArrayEquals(this.testPacketSerialized, sent);
+        assertFalse(((SlicedPacketIn) m.getTransientMessage()).isCopied());
+        assertFalse(m.isDecoded());
     }
 }
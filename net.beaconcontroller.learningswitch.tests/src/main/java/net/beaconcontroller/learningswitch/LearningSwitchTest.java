@@ -1,16 +1,32 @@
 package net.beaconcontroller.learningswitch;
 
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.io.LazyOFMessage;
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.OFWritabilityListener;
+import net.beaconcontroller.core.io.OFWritePriority;
+import net.beaconcontroller.core.io.SlicedPacketIn;
 import net.beaconcontroller.core.test.MockBeaconProvider;
 import net.beaconcontroller.packet.Data;
 import net.beaconcontroller.packet.Ethernet;
@@ -19,25 +35,35 @@ import net.beaconcontroller.packet.IPv4;
 import net.beaconcontroller.packet.UDP;
 import net.beaconcontroller.test.BeaconTestCase;
 
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
 import org.openflow.io.OFMessageInStream;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketIn.OFPacketInReason;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFPortStatus;
+import org.openflow.protocol.OFPortStatus.OFPortReason;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class LearningSwitchTest extends BeaconTestCase {
+    protected static Logger log = LoggerFactory.getLogger(LearningSwitchTest.class);
+
     protected OFPacketIn packetIn;
     protected IPacket testPacket;
     protected byte[] testPacketSerialized;
@@ -100,6 +126,7 @@ public class LearningSwitchTest extends BeaconTestCase {
 
         // Mock up our expected behavior
         IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        expect(mockSwitch.getId()).andReturn(1L).anyTimes();
         OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
         expect(mockSwitch.getOutputStream()).andReturn(mockStream);
         mockStream.write(po);
@@ -119,6 +146,49 @@ public class LearningSwitchTest extends BeaconTestCase {
                 Ethernet.toLong(Ethernet.toMACAddress("00:44:33:22:11:00")), (short) 42).shortValue());
     }
 
+    /**
+     * Verify a PACKET_IN dispatched from the read buffer is learned and
+     * flooded without its packet data being copied out of that buffer
+     * @throws Exception
+     */
+    @Test
+    public void testFloodFromReadBuffer() throws Exception {
+        LearningSwitch learningSwitch = getLearningSwitch();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        this.packetIn.setLengthU(OFPacketIn.MINIMUM_LENGTH
+                + this.testPacketSerialized.length);
+        ByteBuffer buf = ByteBuffer.allocate(this.packetIn.getLengthU());
+        this.packetIn.writeTo(buf);
+        LazyOFMessage m = new LazyOFMessage();
+        m.wrap(buf, 0, new BasicFactory());
+
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        expect(mockSwitch.getId()).andReturn(5L).anyTimes();
+        OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
+        expect(mockSwitch.getOutputStream()).andReturn(mockStream);
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        mockStream.write(capture(written));
+
+        replay(mockSwitch, mockStream);
+        mockBeaconProvider.dispatchMessage(mockSwitch, m);
+        verify(mockSwitch, mockStream);
+
+        // the headers were read in place, including the VLAN tag
+        assertEquals(1, learningSwitch.getFromPortMap(mockSwitch,
+                Ethernet.toLong(Ethernet.toMACAddress("00:44:33:22:11:00")), (short) 42).shortValue());
+        // and the packet went out whole, straight from the read buffer
+        OFPacketOut po = (OFPacketOut) written.getValue();
+        ByteBuffer out = ByteBuffer.allocate(po.getLengthU());
+        po.writeTo(out);
+        byte[] sent = new byte[this.testPacketSerialized.length];
+        out.position(po.getLengthU() - sent.length);
+        out.get(sent);
+        assertArrayEquals(this.testPacketSerialized, sent);
+        assertFalse(((SlicedPacketIn) m.getTransientMessage()).isCopied());
+        assertFalse(m.isDecoded());
+        learningSwitch.removedSwitch(mockSwitch);
+    }
+
     @Test
     public void testFlowMod() throws Exception {
         LearningSwitch learningSwitch = getLearningSwitch();
@@ -143,6 +213,7 @@ public class LearningSwitchTest extends BeaconTestCase {
 
         // Mock up our expected behavior
         IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        expect(mockSwitch.getId()).andReturn(1L).anyTimes();
         OFMessageInStream mockInStream = createMock(OFMessageInStream.class);
         OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
         expect(mockSwitch.getOutputStream()).andReturn(mockStream);
@@ -167,4 +238,427 @@ public class LearningSwitchTest extends BeaconTestCase {
         assertEquals(1, learningSwitch.getFromPortMap(mockSwitch,
                 Ethernet.toLong(Ethernet.toMACAddress("00:44:33:22:11:00")), (short) 42).shortValue());
     }
+
+    @Test
+    public void testMacTable() throws Exception {
+        MacTable table = new MacTable(4);
+        long mac = Ethernet.toLong(Ethernet.toMACAddress("00:11:22:33:44:55"));
+
+        // the same address on different VLANs are separate entries
+        table.learn(mac, (short) 1, (short) 2);
+        table.learn(mac, (short) 2, (short) 3);
+        assertEquals(2, table.getPort(mac, (short) 1));
+        assertEquals(3, table.getPort(mac, (short) 2));
+        assertEquals(MacTable.PORT_NONE, table.getPort(mac, (short) 3));
+        assertEquals(2, table.size());
+
+        // moving updates the entry in place
+        table.learn(mac, (short) 1, (short) 4);
+        assertEquals(4, table.getPort(mac, (short) 1));
+        assertEquals(2, table.size());
+
+        assertTrue(table.remove(mac, (short) 2));
+        assertFalse(table.remove(mac, (short) 2));
+        assertEquals(MacTable.PORT_NONE, table.getPort(mac, (short) 2));
+        assertEquals(1, table.size());
+
+        // the table never grows past its bound, recently used entries survive
+        for (int i = 0; i < 100; ++i) {
+            table.getPort(mac, (short) 1);
+            table.learn(mac + 1 + i, (short) 1, (short) 5);
+            assertTrue(table.size() <= 4);
+        }
+        assertEquals(4, table.getPort(mac, (short) 1));
+        assertEquals(5, table.getPort(mac + 100, (short) 1));
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(MacTable.PORT_NONE, table.getPort(mac, (short) 1));
+    }
+
+    @Test
+    public void testMacTableEviction() throws Exception {
+        // a table must be able to hold the address it is learning
+        try {
+            new MacTable(0);
+            fail("MacTable accepted no entries");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // an entry is still evicted when every one was used since the hand
+        // last passed
+        MacTable table = new MacTable(1);
+        for (long mac = 1; mac <= 4; ++mac) {
+            table.getPort(mac - 1, (short) 0);
+            table.learn(mac, (short) 0, (short) 1);
+            assertEquals(1, table.size());
+            assertEquals(1, table.getPort(mac, (short) 0));
+        }
+        table = new MacTable(4);
+        for (long mac = 1; mac <= 100; ++mac) {
+            for (long used = Math.max(1, mac - 4); used < mac; ++used)
+                table.getPort(used, (short) 0);
+            table.learn(mac, (short) 0, (short) 1);
+            assertTrue(table.size() <= 4);
+        }
+        assertEquals(1, table.getPort(100, (short) 0));
+    }
+
+    @Test
+    public void testMacTablePerSwitch() throws Exception {
+        LearningSwitch learningSwitch = getLearningSwitch();
+        IOFSwitch sw1 = createMock(IOFSwitch.class);
+        expect(sw1.getId()).andReturn(1L).anyTimes();
+        IOFSwitch sw2 = createMock(IOFSwitch.class);
+        expect(sw2.getId()).andReturn(2L).anyTimes();
+        replay(sw1, sw2);
+
+        // tables are found by DPID, and removed with their switch
+        learningSwitch.addedSwitch(sw2);
+        learningSwitch.addedSwitch(sw1);
+        learningSwitch.addToPortMap(sw1, 1L, (short) 0, (short) 1);
+        learningSwitch.addToPortMap(sw2, 1L, (short) 0, (short) 2);
+        assertEquals(1, learningSwitch.getFromPortMap(sw1, 1L, (short) 0).shortValue());
+        assertEquals(2, learningSwitch.getFromPortMap(sw2, 1L, (short) 0).shortValue());
+        learningSwitch.removedSwitch(sw1);
+        assertEquals(null, learningSwitch.getMacTable(sw1));
+        assertEquals(2, learningSwitch.getFromPortMap(sw2, 1L, (short) 0).shortValue());
+        learningSwitch.removedSwitch(sw2);
+        verify(sw1, sw2);
+    }
+
+    @Test
+    public void testMacAging() throws Exception {
+        MacTable table = new MacTable(10);
+        table.learn(1L, (short) 0, (short) 1, 1000);
+        table.learn(2L, (short) 0, (short) 2, 2000);
+        table.learn(3L, (short) 0, (short) 3, 3000);
+
+        // relearning refreshes the entry, stale entries miss until relearned
+        table.learn(1L, (short) 0, (short) 1, 4000);
+        assertTrue(table.markStale(3L, (short) 0));
+        assertEquals(MacTable.PORT_NONE, table.getPort(3L, (short) 0));
+        table.learn(3L, (short) 0, (short) 4, 4000);
+        assertEquals(4, table.getPort(3L, (short) 0));
+
+        assertTrue(table.markStale(3L, (short) 0));
+        assertEquals(2, table.expire(2500));
+        assertEquals(1, table.getPort(1L, (short) 0));
+        assertEquals(MacTable.PORT_NONE, table.getPort(2L, (short) 0));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testMacHotStale() throws Exception {
+        MacTable table = new MacTable(10);
+        table.learn(1L, (short) 0, (short) 1, 1000);
+        table.learn(2L, (short) 0, (short) 2, 1000);
+        assertTrue(table.markHot(1L, (short) 0));
+        assertTrue(table.markStale(1L, (short) 0));
+        assertTrue(table.markStale(2L, (short) 0));
+
+        // the sweep keeps the hot entry, still stale, and drops the other
+        assertEquals(1, table.expire(500));
+        assertEquals(MacTable.PORT_NONE, table.getPort(1L, (short) 0));
+        assertTrue(table.isHot(1L, (short) 0));
+        assertFalse(table.isHot(2L, (short) 0));
+        assertEquals(1, table.size());
+
+        // relearning revives it, still hot
+        table.learn(1L, (short) 0, (short) 3, 2000);
+        assertEquals(3, table.getPort(1L, (short) 0));
+        assertTrue(table.isHot(1L, (short) 0));
+
+        // hot entries still age out
+        assertTrue(table.markStale(1L, (short) 0));
+        assertEquals(1, table.expire(2500));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testBidirectional() throws Exception {
+        LearningSwitch learningSwitch = getLearningSwitch();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        long src = Ethernet.toLong(Ethernet.toMACAddress("00:44:33:22:11:00"));
+        long dst = Ethernet.toLong(Ethernet.toMACAddress("00:11:22:33:44:55"));
+        this.packetIn.setBufferId(50);
+
+        // the forward flow as usual, then the reverse flow back to the
+        // source, which is hot so gets the longer idle timeout
+        OFMessage forward = new OFFlowMod()
+            .setActions(Arrays.asList(new OFAction[] {new OFActionOutput().setPort((short) 2)}))
+            .setBufferId(50)
+            .setCommand(OFFlowMod.OFPFC_ADD)
+            .setIdleTimeout((short) 5)
+            .setMatch(new OFMatch().loadFromPacket(testPacketSerialized, (short) 1)
+                    .setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_VLAN & ~OFMatch.OFPFW_DL_DST))
+            .setOutPort(OFPort.OFPP_NONE.getValue())
+            .setCookie(1L << 52)
+            .setPriority((short) 100)
+            .setFlags((short)(1 << 0))
+            .setLengthU(OFFlowMod.MINIMUM_LENGTH+OFActionOutput.MINIMUM_LENGTH);
+        OFMessage reverse = new OFFlowMod()
+            .setActions(Arrays.asList(new OFAction[] {new OFActionOutput().setPort((short) 1)}))
+            .setBufferId(-1)
+            .setCommand(OFFlowMod.OFPFC_ADD)
+            .setIdleTimeout((short) 30)
+            .setMatch(new OFMatch().loadFromPacket(testPacketSerialized, (short) 1)
+                    .setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_VLAN & ~OFMatch.OFPFW_DL_DST)
+                    .setDataLayerDestination(Ethernet.toMACAddress(src)))
+            .setOutPort(OFPort.OFPP_NONE.getValue())
+            .setCookie(1L << 52)
+            .setPriority((short) 100)
+            .setFlags((short)(1 << 0))
+            .setLengthU(OFFlowMod.MINIMUM_LENGTH+OFActionOutput.MINIMUM_LENGTH);
+
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
+        expect(mockSwitch.getId()).andReturn(5L).anyTimes();
+        expect(mockSwitch.getOutputStream()).andReturn(mockStream);
+        // both directions in a single append
+        mockStream.write(Arrays.asList(new OFMessage[] {forward, reverse}));
+        replay(mockSwitch, mockStream);
+
+        learningSwitch.addToPortMap(mockSwitch, dst, (short) 42, (short) 2);
+        learningSwitch.addToPortMap(mockSwitch, src, (short) 42, (short) 1);
+        assertTrue(learningSwitch.getMacTable(mockSwitch).markHot(src, (short) 42));
+        learningSwitch.setBidirectional(true);
+        learningSwitch.setHotIdleTimeout((short) 30);
+        try {
+            IOFMessageListener listener = mockBeaconProvider.getListeners().get(
+                    OFType.PACKET_IN).get(0);
+            listener.receive(mockSwitch, this.packetIn);
+        } finally {
+            learningSwitch.setBidirectional(false);
+            learningSwitch.setHotIdleTimeout((short) 0);
+        }
+
+        verify(mockSwitch, mockStream);
+        // hot survives relearning the address
+        assertTrue(learningSwitch.getMacTable(mockSwitch).isHot(src, (short) 42));
+        assertFalse(learningSwitch.getMacTable(mockSwitch).isHot(dst, (short) 42));
+        learningSwitch.removedSwitch(mockSwitch);
+    }
+
+    @Test
+    public void testFlowRemoved() throws Exception {
+        LearningSwitch learningSwitch = getLearningSwitch();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        expect(mockSwitch.getId()).andReturn(3L).anyTimes();
+        replay(mockSwitch);
+
+        long dst = Ethernet.toLong(Ethernet.toMACAddress("00:11:22:33:44:55"));
+        learningSwitch.addToPortMap(mockSwitch, dst, (short) 42, (short) 2);
+        OFFlowRemoved fr = new OFFlowRemoved();
+        fr.setMatch(new OFMatch().loadFromPacket(testPacketSerialized, (short) 1));
+
+        // flows of other apps are ignored
+        fr.setCookie(2L << 52);
+        IOFMessageListener listener = mockBeaconProvider.getListeners().get(
+                OFType.FLOW_REMOVED).get(0);
+        listener.receive(mockSwitch, fr);
+        assertEquals(2, learningSwitch.getFromPortMap(mockSwitch, dst, (short) 42).shortValue());
+
+        fr.setCookie(1L << 52);
+        listener.receive(mockSwitch, fr);
+        assertEquals(null, learningSwitch.getFromPortMap(mockSwitch, dst, (short) 42));
+        learningSwitch.removedSwitch(mockSwitch);
+        verify(mockSwitch);
+    }
+
+    @Test
+    public void testPortDown() throws Exception {
+        LearningSwitch learningSwitch = getLearningSwitch();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        long mac1 = Ethernet.toLong(Ethernet.toMACAddress("00:00:00:00:00:01"));
+        long mac2 = Ethernet.toLong(Ethernet.toMACAddress("00:00:00:00:00:02"));
+
+        IOFSwitch mockSwitch = createMock(IOFSwitch.class);
+        OFMessageSafeOutStream mockStream = createMock(OFMessageSafeOutStream.class);
+        expect(mockSwitch.getId()).andReturn(4L).anyTimes();
+        expect(mockSwitch.getOutputStream()).andReturn(mockStream);
+        Capture<OFMessage> written = new Capture<OFMessage>();
+        mockStream.write(capture(written));
+        replay(mockSwitch, mockStream);
+
+        learningSwitch.addToPortMap(mockSwitch, mac1, (short) 0, (short) 1);
+        learningSwitch.addToPortMap(mockSwitch, mac2, (short) 0, (short) 2);
+        OFPhysicalPort port = new OFPhysicalPort();
+        port.setPortNumber((short) 1);
+        OFPortStatus ps = new OFPortStatus();
+        ps.setReason((byte) OFPortReason.OFPPR_DELETE.ordinal());
+        ps.setDesc(port);
+        IOFMessageListener listener = mockBeaconProvider.getListeners().get(
+                OFType.PORT_STATUS).get(0);
+        listener.receive(mockSwitch, ps);
+
+        verify(mockSwitch, mockStream);
+        // only the flows to the address learned on the port, sending out of it
+        OFFlowMod fm = (OFFlowMod) written.getValue();
+        assertEquals(OFFlowMod.OFPFC_DELETE, fm.getCommand());
+        assertEquals(OFPacketOut.BUFFER_ID_NONE, fm.getBufferId());
+        assertEquals(1, fm.getOutPort());
+        OFMatch match = fm.getMatch();
+        assertEquals(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST, match.getWildcards());
+        assertArrayEquals(Ethernet.toMACAddress(mac1), match.getDataLayerDestination());
+        assertEquals(null, learningSwitch.getFromPortMap(mockSwitch, mac1, (short) 0));
+        assertEquals(2, learningSwitch.getFromPortMap(mockSwitch, mac2, (short) 0).shortValue());
+        learningSwitch.removedSwitch(mockSwitch);
+    }
+
+    /**
+     * Output stream serializing each message into the same buffer, so that
+     * writing allocates nothing
+     */
+    protected static class SerializingOutStream implements OFMessageSafeOutStream {
+        protected ByteBuffer buffer = ByteBuffer.allocate(65536);
+        protected long bytesQueued = 0;
+
+        @Override
+        public void write(OFMessage m) throws IOException {
+            buffer.clear();
+            m.writeTo(buffer);
+            bytesQueued += buffer.position();
+        }
+
+        @Override
+        public void write(List<OFMessage> l) throws IOException {
+            for (int i = 0; i < l.size(); ++i)
+                write(l.get(i));
+        }
+
+        @Override
+        public void write(OFMessage m, OFWritePriority priority) throws IOException {
+            write(m);
+        }
+
+        @Override
+        public void write(List<OFMessage> l, OFWritePriority priority) throws IOException {
+            write(l);
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public boolean needsFlush() {
+            return false;
+        }
+
+        @Override
+        public long getBytesQueued() {
+            return bytesQueued;
+        }
+
+        @Override
+        public long getBytesFlushed() {
+            return bytesQueued;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public void addWritabilityListener(OFWritabilityListener listener) {
+        }
+
+        @Override
+        public void removeWritabilityListener(OFWritabilityListener listener) {
+        }
+    }
+
+    protected void dispatchPacketIns(MockBeaconProvider mockBeaconProvider,
+            IOFSwitch sw, ByteBuffer buf, LazyOFMessage m, int count)
+            throws IOException {
+        BasicFactory factory = new BasicFactory();
+        for (int i = 0; i < count; ++i) {
+            // as the input stream does for each message it reads
+            m.wrap(buf, 0, factory);
+            mockBeaconProvider.dispatchMessage(sw, m);
+            m.clear();
+        }
+    }
+
+    /**
+     * Allocation benchmark, verify flooding an unbuffered PACKET_IN read
+     * into a buffer allocates neither a copy of the packet nor any per
+     * packet state
+     * @throws Exception
+     */
+    @Test
+    public void testPacketInAllocation() throws Exception {
+        // getThreadAllocatedBytes is a HotSpot extension of ThreadMXBean
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        if (threads.getThreadAllocatedBytes(threadId) < 0)
+            return;
+
+        LearningSwitch learningSwitch = getLearningSwitch();
+        MockBeaconProvider mockBeaconProvider = getMockBeaconProvider();
+        // a full sized packet to a destination that is never learned, any
+        // copy of it costs more than the bound below
+        byte[] packet = new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setPayload(new UDP()
+                            .setSourcePort((short) 5000)
+                            .setDestinationPort((short) 5001)
+                            .setPayload(new Data(new byte[1024]))))
+            .serialize();
+        OFPacketIn pi = new OFPacketIn()
+            .setBufferId(-1)
+            .setInPort((short) 1)
+            .setPacketData(packet)
+            .setReason(OFPacketInReason.NO_MATCH)
+            .setTotalLength((short) packet.length);
+        pi.setLengthU(OFPacketIn.MINIMUM_LENGTH + packet.length);
+        ByteBuffer buf = ByteBuffer.allocate(pi.getLengthU());
+        pi.writeTo(buf);
+
+        // a proxy rather than a mock, whose recorded calls would allocate
+        final Long id = 6L;
+        final SerializingOutStream out = new SerializingOutStream();
+        IOFSwitch sw = (IOFSwitch) Proxy.newProxyInstance(
+                IOFSwitch.class.getClassLoader(),
+                new Class<?>[] {IOFSwitch.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getId"))
+                    return id;
+                if (method.getName().equals("getOutputStream"))
+                    return out;
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        LazyOFMessage m = new LazyOFMessage();
+        int count = 100000;
+
+        // warm up, creating each thread's context and builders and compiling
+        // the loop
+        dispatchPacketIns(mockBeaconProvider, sw, buf, m, count);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        dispatchPacketIns(mockBeaconProvider, sw, buf, m, count);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        log.info("Allocated {} bytes per packet in", allocated / count);
+
+        assertTrue("Allocated " + allocated / count + " bytes per packet in",
+                allocated < count * 256L);
+        assertEquals(count * 2L * (OFPacketOut.MINIMUM_LENGTH
+                + OFActionOutput.MINIMUM_LENGTH + packet.length),
+                out.getBytesQueued());
+        learningSwitch.removedSwitch(sw);
+    }
 }
@@ -14,18 +14,23 @@ package net.beaconcontroller.learningswitch;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import net.beaconcontroller.core.IBeaconProvider;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.io.FlowModWriter;
+import net.beaconcontroller.core.io.PacketOutBuilder;
 import net.beaconcontroller.packet.Ethernet;
 
 import org.openflow.protocol.OFError;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -34,8 +39,6 @@ import org.openflow.protocol.OFPhysicalPort;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFPortStatus;
 import org.openflow.protocol.OFType;
-import org.openflow.protocol.action.OFAction;
-import org.openflow.protocol.action.OFActionOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,28 +60,55 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
     
     // for managing our map sizes
     protected static final int   MAX_MACS_PER_SWITCH  = 1000;
+    protected static final long  MAC_TIMEOUT_DEFAULT  = 300L * 1000;
+    protected static final long  MAC_SWEEP_DEFAULT    = 15L * 1000;
+    protected static final long  HOT_FLOW_PACKETS_DEFAULT = 100;
 
-    class MacVlanPair {
-        public Long mac;
-        public Short vlan;
-        public MacVlanPair(Long mac, Short vlan) {
-            this.mac = mac;
-            this.vlan = vlan;
-        }
-        public boolean equals(Object o) {
-            return (o instanceof MacVlanPair) && (mac.equals(((MacVlanPair) o).mac))
-                && (vlan.equals(((MacVlanPair) o).vlan));
-        }
-        public int hashCode() {
-            return mac.hashCode() ^ vlan.hashCode();
+    /**
+     * The MAC tables by switch DPID, the DPIDs sorted so a table is found
+     * with a binary search rather than boxing the DPID for a map lookup.
+     * Replaced as a whole when a switch is added or removed.
+     */
+    protected static class MacTables {
+        public final long[] ids;
+        public final MacTable[] tables;
+
+        public MacTables(long[] ids, MacTable[] tables) {
+            this.ids = ids;
+            this.tables = tables;
         }
     }
-    
+
+    /**
+     * The second reusable flow mod of a conversation, the first being the
+     * thread's FlowModWriter, and the list both are written in
+     */
+    protected static class FlowModPair {
+        public final List<OFMessage> messages = new ArrayList<OFMessage>(2);
+        public final FlowModWriter reverse = new FlowModWriter();
+    }
+
+    protected static ThreadLocal<FlowModPair> flowModPairs = new ThreadLocal<FlowModPair>() {
+        @Override
+        protected FlowModPair initialValue() {
+            return new FlowModPair();
+        }
+    };
+
     // for lookup of the port based on mac
-    protected Map<Integer,Map<MacVlanPair,Short>> macVlanToPortMaps;
+    protected volatile MacTables macTables;
+    protected int macTableSize = MAX_MACS_PER_SWITCH;
+    protected long macTimeout = MAC_TIMEOUT_DEFAULT; // ms unseen before expiry
+    protected long macSweepInterval = MAC_SWEEP_DEFAULT;
+    protected IScheduledTask macSweepTask;
+
+    // proactively install the reverse flow of a conversation
+    protected boolean bidirectional = false;
+    protected long hotFlowPackets = HOT_FLOW_PACKETS_DEFAULT;
+    protected short hotIdleTimeout = 0; // 0 leaves hot flows at the default
     
     public LearningSwitch() {
-        this.macVlanToPortMaps = new HashMap<Integer,Map<MacVlanPair,Short>>();
+        this.macTables = new MacTables(new long[0], new MacTable[0]);
     }
     
     /**
@@ -95,10 +125,17 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
         beaconProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
         beaconProvider.addOFMessageListener(OFType.ERROR, this);
         beaconProvider.addOFSwitchListener(this);
+        macSweepTask = beaconProvider.getScheduler().scheduleAtFixedRate(
+                new Runnable() {
+            @Override
+            public void run() {
+                expireMacs(System.currentTimeMillis() - macTimeout);
+            }}, macSweepInterval, macSweepInterval, TimeUnit.MILLISECONDS);
     }
 
     public void shutDown() {
         log.trace("Stopping");
+        macSweepTask.cancel();
         beaconProvider.removeOFMessageListener(OFType.PACKET_IN, this);
         beaconProvider.removeOFMessageListener(OFType.PORT_STATUS, this);
         beaconProvider.removeOFMessageListener(OFType.FLOW_REMOVED, this);
@@ -110,34 +147,146 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
         return "switch";
     }
 
-    private Map<MacVlanPair,Short> getPortMap(IOFSwitch sw) {
-        int switchHash = sw.hashCode();
-        Map<MacVlanPair,Short> macToPortMap = this.macVlanToPortMaps.get(switchHash);
-        if (macToPortMap == null) {
-            macToPortMap = new org.openflow.util.LRULinkedHashMap<MacVlanPair,Short>(
-                    LearningSwitch.MAX_MACS_PER_SWITCH);
-            this.macVlanToPortMaps.put(switchHash, macToPortMap);
+    /**
+     * @param macTimeout milliseconds an address may go unseen before it is
+     * removed from the MAC table
+     */
+    public void setMacTimeout(long macTimeout) {
+        this.macTimeout = macTimeout;
+    }
+
+    /**
+     * @param macSweepInterval milliseconds between removing expired and stale
+     * addresses
+     */
+    public void setMacSweepInterval(long macSweepInterval) {
+        this.macSweepInterval = macSweepInterval;
+    }
+
+    /**
+     * @param bidirectional when the destination of a packet is known, also
+     * install the flow back to its source so the reply is not sent to the
+     * controller
+     */
+    public void setBidirectional(boolean bidirectional) {
+        this.bidirectional = bidirectional;
+    }
+
+    /**
+     * @param hotFlowPackets the packets a removed flow must have matched for
+     * its destination to be considered hot
+     */
+    public void setHotFlowPackets(long hotFlowPackets) {
+        this.hotFlowPackets = hotFlowPackets;
+    }
+
+    /**
+     * @param hotIdleTimeout seconds of idle timeout given to flows to hot
+     * destinations, or 0 to give them the default
+     */
+    public void setHotIdleTimeout(short hotIdleTimeout) {
+        this.hotIdleTimeout = hotIdleTimeout;
+    }
+
+    /**
+     * @param macTableSize the number of addresses learned per switch before
+     * the least recently used are evicted, applies to tables created after
+     * it is set, at least 1
+     */
+    public void setMacTableSize(int macTableSize) {
+        if (macTableSize < 1)
+            throw new IllegalArgumentException("macTableSize must be at least 1");
+        this.macTableSize = macTableSize;
+    }
+
+    /**
+     * @param sw
+     * @return the switch's MAC table, or null if none has been created
+     */
+    public MacTable getMacTable(IOFSwitch sw) {
+        return getMacTable(sw.getId());
+    }
+
+    protected MacTable getMacTable(long id) {
+        MacTables current = macTables;
+        int i = Arrays.binarySearch(current.ids, id);
+        return (i < 0) ? null : current.tables[i];
+    }
+
+    /**
+     * @param id
+     * @return the switch's MAC table, created if it does not exist
+     */
+    protected synchronized MacTable createMacTable(long id) {
+        MacTables current = macTables;
+        int i = Arrays.binarySearch(current.ids, id);
+        if (i >= 0)
+            return current.tables[i];
+        i = -(i + 1);
+        int n = current.ids.length;
+        long[] ids = new long[n + 1];
+        MacTable[] tables = new MacTable[n + 1];
+        System.arraycopy(current.ids, 0, ids, 0, i);
+        System.arraycopy(current.tables, 0, tables, 0, i);
+        System.arraycopy(current.ids, i, ids, i + 1, n - i);
+        System.arraycopy(current.tables, i, tables, i + 1, n - i);
+        ids[i] = id;
+        tables[i] = new MacTable(macTableSize);
+        macTables = new MacTables(ids, tables);
+        return tables[i];
+    }
+
+    protected synchronized void removeMacTable(long id) {
+        MacTables current = macTables;
+        int i = Arrays.binarySearch(current.ids, id);
+        if (i < 0)
+            return;
+        int n = current.ids.length;
+        long[] ids = new long[n - 1];
+        MacTable[] tables = new MacTable[n - 1];
+        System.arraycopy(current.ids, 0, ids, 0, i);
+        System.arraycopy(current.tables, 0, tables, 0, i);
+        System.arraycopy(current.ids, i + 1, ids, i, n - i - 1);
+        System.arraycopy(current.tables, i + 1, tables, i, n - i - 1);
+        macTables = new MacTables(ids, tables);
+    }
+
+    /**
+     * Removes the addresses last seen before the given time, and those
+     * marked stale, from every switch's table
+     * @param seenBefore the time in milliseconds
+     */
+    protected void expireMacs(long seenBefore) {
+        for (MacTable table : macTables.tables) {
+            int removed = table.expire(seenBefore);
+            if (removed > 0)
+                log.debug("expired {} MAC entries", removed);
         }
-        return macToPortMap;
+    }
+
+    private MacTable getPortMap(IOFSwitch sw) {
+        long id = sw.getId();
+        MacTable table = getMacTable(id);
+        if (table == null)
+            table = createMacTable(id);
+        return table;
     }
 
     protected void addToPortMap(IOFSwitch sw, Long mac, Short vlan, short portVal) {
-        Map<MacVlanPair,Short> macToPortMap = this.getPortMap(sw);
-        if (macToPortMap != null) {
-            macToPortMap.put(new MacVlanPair(mac, vlan), portVal);
-        } else {
-            log.error("Whoa - we should have macToPortMap for the switch");
-        }
+        this.getPortMap(sw).learn(mac, vlan, portVal);
     }
     
     public Short getFromPortMap(IOFSwitch sw, Long mac, Short vlan) {
-        return getPortMap(sw).get(new MacVlanPair(mac, vlan));
+        short port = getPortMap(sw).getPort(mac, vlan);
+        return (port == MacTable.PORT_NONE) ? null : port;
     }
 
-    private void writeFlowModForMatch(IOFSwitch sw,
-                                     int bufferId,
-                                     OFMatch matchFields,
-                                     short egressPort) {
+    private void setFlowModForMatch(FlowModWriter flowMod,
+                                    int bufferId,
+                                    OFMatch matchFields,
+                                    byte[] dataLayerDestination,
+                                    short egressPort,
+                                    short idleTimeout) {
         // from openflow 1.0 spec - need to set these on a struct ofp_flow_mod:
         // struct ofp_flow_mod {
         //    struct ofp_header header;
@@ -161,20 +310,18 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
         //                                            header. */
         //    };
            
-        OFFlowMod flowMod = new OFFlowMod();
-        short flowModLength = (short) OFFlowMod.MINIMUM_LENGTH;
-        
         // match only on VLAN ID and destination MAC address, wildcard all other fields;
         // matching on other fields just wastes flow entries since the action (output port)
         // is always the same for a given VLAN/MAC
-        matchFields.setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_VLAN & ~OFMatch.OFPFW_DL_DST);
         flowMod.setMatch(matchFields);
+        flowMod.getMatch().setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_VLAN & ~OFMatch.OFPFW_DL_DST)
+            .setDataLayerDestination(dataLayerDestination);
         
         // set rest of header fields as listed above
         long cookie = (long) (LEARNING_SWITCH_APP_ID & ((1 << APP_ID_BITS) - 1)) << APP_ID_SHIFT;
         flowMod.setCookie(cookie);
         flowMod.setCommand(OFFlowMod.OFPFC_ADD);
-        flowMod.setIdleTimeout(LearningSwitch.IDLE_TIMEOUT_DEFAULT);
+        flowMod.setIdleTimeout(idleTimeout);
         flowMod.setHardTimeout(LearningSwitch.HARD_TIMEOUT_DEFAULT);
         flowMod.setPriority(LearningSwitch.PRIORITY_DEFAULT);
         flowMod.setBufferId(bufferId);
@@ -187,23 +334,58 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
         // uint16_t len; /* Length is 8. */
         // uint16_t port; /* Output port. */
         // uint16_t max_len; /* Max length to send to controller. */
-        // type/len are set because it is OFActionOutput,
-        // and port, max_len are arguments to this constructor
-        List<OFAction> actions = new ArrayList<OFAction>(1);
-        actions.add(new OFActionOutput(egressPort, (short) 0)); // 0 used only if port is OFPP_CONTROLLER
-        flowMod.setActions(actions);
-        flowModLength += OFActionOutput.MINIMUM_LENGTH;
-        
-        // finally, set the total length
-        flowMod.setLength(flowModLength);
-        
-        // and write it out
+        // max_len is left at 0, it is used only if port is OFPP_CONTROLLER
+        flowMod.setOutput(egressPort);
+    }
+
+    private void writeFlowModForMatch(IOFSwitch sw,
+                                     int bufferId,
+                                     OFMatch matchFields,
+                                     byte[] dataLayerDestination,
+                                     short egressPort,
+                                     short idleTimeout) {
+        // this thread's reusable flow mod, it already has a single output action
+        FlowModWriter flowMod = FlowModWriter.get();
+        setFlowModForMatch(flowMod, bufferId, matchFields, dataLayerDestination,
+                egressPort, idleTimeout);
+
+        // and write it out, the length is fixed by the single output action
         try {
-            sw.getOutputStream().write(flowMod);
+            flowMod.write(sw);
         } catch (IOException e) {
             log.error("could not write flow mod to switch");
         }
     }
+
+    private void writeFlowModsForConversation(IOFSwitch sw,
+                                             OFPacketIn packetInMessage,
+                                             OFMatch matchFields,
+                                             short outPort,
+                                             short idleTimeout,
+                                             short reverseIdleTimeout) {
+        FlowModPair pair = flowModPairs.get();
+        FlowModWriter forward = FlowModWriter.get();
+        setFlowModForMatch(forward, packetInMessage.getBufferId(), matchFields,
+                matchFields.getDataLayerDestination(), outPort, idleTimeout);
+        // the reply goes straight back rather than to us
+        FlowModWriter reverse = pair.reverse.reset();
+        setFlowModForMatch(reverse, OFPacketOut.BUFFER_ID_NONE, matchFields,
+                matchFields.getDataLayerSource(), packetInMessage.getInPort(),
+                reverseIdleTimeout);
+
+        // appended to the stream together, so neither direction is installed
+        // long before the other
+        pair.messages.clear();
+        pair.messages.add(forward.getFlowMod());
+        pair.messages.add(reverse.getFlowMod());
+        try {
+            sw.getOutputStream().write(pair.messages);
+        } catch (IOException e) {
+            log.error("could not write flow mods to switch");
+        } finally {
+            pair.messages.clear();
+        }
+    }
     
     private void writePacketOutForPacketIn(IOFSwitch sw, 
                                           OFPacketIn packetInMessage, 
@@ -217,30 +399,12 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
                                   from the length field in the header.
                                   (Only meaningful if buffer_id == -1.) */
         
-        OFPacketOut packetOutMessage = new OFPacketOut();
-        short packetOutLength = (short)OFPacketOut.MINIMUM_LENGTH; // starting length
-
-        // Set buffer_id, in_port, actions_len
-        packetOutMessage.setBufferId(packetInMessage.getBufferId());
-        packetOutMessage.setInPort(packetInMessage.getInPort());
-        packetOutMessage.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
-        packetOutLength += OFActionOutput.MINIMUM_LENGTH;
-        
-        // set actions
-        List<OFAction> actions = new ArrayList<OFAction>(1);      
-        actions.add(new OFActionOutput(egressPort, (short) 0));
-        packetOutMessage.setActions(actions);
-
-        // set data - only if buffer_id == -1
-        if (packetInMessage.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
-            byte[] packetData = packetInMessage.getPacketData();
-            packetOutMessage.setPacketData(packetData); 
-            packetOutLength += (short)packetData.length;
-        }
-        
-        // finally, set the total length
-        packetOutMessage.setLength(packetOutLength);              
-            
+        // buffer_id and in_port come from the packet in, and the packet data,
+        // only if buffer_id == -1, is referenced rather than copied
+        OFPacketOut packetOutMessage = PacketOutBuilder.forPacketIn(packetInMessage)
+            .addOutput(egressPort)
+            .build();
+
         // and write it out
         try {
             sw.getOutputStream().write(packetOutMessage);
@@ -250,31 +414,48 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
     }
     
     private Command processPacketInMessage(IOFSwitch sw, OFPacketIn packetInMessage) {
-        // read in packet data headers by using OFMatch 
-        OFMatch matchFields = new OFMatch();
-        matchFields.loadFromPacket(packetInMessage.getPacketData(), 
-                                   packetInMessage.getInPort());
-        Long sourceMac = Ethernet.toLong(matchFields.getDataLayerSource());
-        Short vlan = matchFields.getDataLayerVirtualLan();
+        // read in packet data headers by using OFMatch, shared with other listeners
+        PacketContext context = PacketContext.get(packetInMessage);
+        OFMatch matchFields = context.getMatch();
+        long sourceMac = context.getSourceMAC();
+        short vlan = matchFields.getDataLayerVirtualLan();
         if (vlan == (short) 0xffff) {
             // OFMatch.loadFromPacket sets VLAN ID to 0xffff if the packet contains no VLAN tag;
             // for our purposes that is equivalent to the default VLAN ID 0
             vlan = 0;
         }
-        if ((sourceMac & 0x010000000000L) == 0) {
-            // sourceMac is a unicast address
-            this.addToPortMap(sw, sourceMac, vlan, packetInMessage.getInPort());
+        MacTable table = getPortMap(sw);
+        boolean unicastSource = (sourceMac & 0x010000000000L) == 0;
+        if (unicastSource) {
+            table.learn(sourceMac, vlan, packetInMessage.getInPort());
         }
         
         // now output flow-mod and/or packet
-        Short outPort = getFromPortMap(sw, Ethernet.toLong(matchFields.getDataLayerDestination()), vlan);
-        if (outPort == null) {
+        long destinationMac = context.getDestinationMAC();
+        short outPort = table.getPort(destinationMac, vlan);
+        if (outPort == MacTable.PORT_NONE) {
             this.writePacketOutForPacketIn(sw, packetInMessage, OFPort.OFPP_FLOOD.getValue());
         } else {
-            this.writeFlowModForMatch(sw, packetInMessage.getBufferId(), matchFields, outPort);
+            // the flow mods copy the shared match before wildcarding it
+            if (bidirectional && unicastSource) {
+                // both ends are known, so install the reply's flow as well
+                this.writeFlowModsForConversation(sw, packetInMessage, matchFields,
+                        outPort, getIdleTimeout(table, destinationMac, vlan),
+                        getIdleTimeout(table, sourceMac, vlan));
+            } else {
+                this.writeFlowModForMatch(sw, packetInMessage.getBufferId(), matchFields,
+                        matchFields.getDataLayerDestination(), outPort,
+                        getIdleTimeout(table, destinationMac, vlan));
+            }
         }
         return Command.CONTINUE;
     }
+
+    private short getIdleTimeout(MacTable table, long mac, short vlan) {
+        if (hotIdleTimeout > 0 && table.isHot(mac, vlan))
+            return hotIdleTimeout;
+        return IDLE_TIMEOUT_DEFAULT;
+    }
     
     public void addedSwitch(IOFSwitch sw) {
         // go ahead and initialize structures per switch
@@ -286,22 +467,78 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
         // delete the switch structures 
         // they will get recreated on first packetin 
         log.info("removing maps for switch " + sw.getId());
-        int switchHash = sw.hashCode();
-        this.macVlanToPortMaps.remove(switchHash);
+        this.removeMacTable(sw.getId());
     }
     
+    private void processFlowRemovedMessage(IOFSwitch sw, OFFlowRemoved flowRemovedMessage) {
+        // only our flows, whose cookie carries our app id
+        long appId = (flowRemovedMessage.getCookie() >>> APP_ID_SHIFT) & ((1 << APP_ID_BITS) - 1);
+        if (appId != LEARNING_SWITCH_APP_ID)
+            return;
+        MacTable table = getMacTable(sw.getId());
+        if (table == null)
+            return;
+        // the flow to this destination is gone, so don't trust where we last
+        // saw it, a moved host would otherwise keep getting its packets sent
+        // to the old port until it sends a packet in itself
+        OFMatch match = flowRemovedMessage.getMatch();
+        short vlan = match.getDataLayerVirtualLan();
+        if (vlan == (short) 0xffff)
+            vlan = 0;
+        long mac = Ethernet.toLong(match.getDataLayerDestination());
+        // a busy flow that idled out is likely to be set up again soon, so
+        // give its next flows a longer idle timeout
+        if (flowRemovedMessage.getPacketCount() >= hotFlowPackets)
+            table.markHot(mac, vlan);
+        table.markStale(mac, vlan);
+    }
+
     private void processPortStatusMessage(IOFSwitch sw, OFPortStatus portStatusMessage) {
         OFPhysicalPort port = portStatusMessage.getDesc();
         log.info("received port status: " + portStatusMessage.getReason() + " for port " + port.getPortNumber());
         // LOOK! should be using the reason enums - but how?
         if (portStatusMessage.getReason() == 1 || // DELETED
             (portStatusMessage.getReason() == 2 &&  // MODIFIED and is now down
-             ((port.getConfig() & OFPhysicalPort.OFPortConfig.OFPPC_PORT_DOWN.getValue()) > 1 ||
-              (port.getState() & OFPhysicalPort.OFPortState.OFPPS_LINK_DOWN.getValue()) > 1))) {
-            // then we should reset the switch data structures
-            // LOOK! we could be doing something more intelligent like
-            // extract out the macs just assigned to a port, but this is ok for now
-            this.removedSwitch(sw);
+             ((port.getConfig() & OFPhysicalPort.OFPortConfig.OFPPC_PORT_DOWN.getValue()) != 0 ||
+              (port.getState() & OFPhysicalPort.OFPortState.OFPPS_LINK_DOWN.getValue()) != 0))) {
+            // then forget the macs learned on just this port
+            this.removedPort(sw, port.getPortNumber());
+        }
+    }
+
+    /**
+     * Forgets the addresses learned on the port and deletes the flows
+     * sending to them through it, leaving the rest of the switch's table
+     * @param sw
+     * @param portNumber
+     */
+    protected void removedPort(IOFSwitch sw, short portNumber) {
+        MacTable table = getMacTable(sw.getId());
+        if (table == null)
+            return;
+        long[] removed = table.removePort(portNumber);
+        log.info("removed {} macs for switch {} port {}",
+                new Object[] {removed.length, sw.getId(), portNumber});
+        for (long key : removed)
+            this.writeFlowDeleteForMac(sw, MacTable.getMac(key), portNumber);
+    }
+
+    private void writeFlowDeleteForMac(IOFSwitch sw, long mac, short outPort) {
+        // OpenFlow 1.0 ignores the cookie when deleting, so this removes every
+        // flow to this destination on any VLAN that outputs to the port it
+        // was learned on, whichever application installed it; the port is
+        // down or gone, so those flows could only black hole its traffic
+        FlowModWriter flowMod = FlowModWriter.get();
+        flowMod.getMatch()
+            .setWildcards(OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_DST)
+            .setDataLayerDestination(Ethernet.toMACAddress(mac));
+        flowMod.setCommand(OFFlowMod.OFPFC_DELETE);
+        flowMod.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        flowMod.setOutPort(outPort);
+        try {
+            flowMod.write(sw);
+        } catch (IOException e) {
+            log.error("could not write flow delete to switch");
         }
     }
     
@@ -325,6 +562,10 @@ public class LearningSwitch implements IOFMessageListener, IOFSwitchListener {
                 log.info("learning switch got a port_status");
                 this.processPortStatusMessage(sw, (OFPortStatus)msg);
                 break;
+            case FLOW_REMOVED:
+                // forget destinations whose flows have expired
+                this.processFlowRemovedMessage(sw, (OFFlowRemoved)msg);
+                break;
             case ERROR:
                 log.info("received an error");
                 OFError err = (OFError)msg;
@@ -0,0 +1,411 @@
+package net.beaconcontroller.learningswitch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MAC address to port table of a single switch. Each entry packs the
+ * VLAN id and MAC address into one long key, stored in an open addressed
+ * table with linear probing, so neither learning nor lookups allocate.
+ *
+ * The table holds at most maxEntries, when full the entry to replace is
+ * chosen CLOCK style: a hand sweeps the slots, clearing the referenced bit
+ * that lookups and learns set, and evicts the first entry found without it.
+ * Each entry also records when its address was last seen, entries not seen
+ * for a while or marked stale are removed by {@link #expire(long)}. An entry
+ * may be marked hot, which outlives relearning it, to remember that flows to
+ * the address carried a lot of traffic. Hot entries that are stale are kept,
+ * still missing lookups, until they are relearned or not seen for a while.
+ *
+ * Lookups take no locks and may run concurrently with a learn, which are
+ * serialized on the table. A slot's key is written after its value and
+ * removed entries leave a tombstone rather than being moved, so a reader
+ * that reads the same key before and after the value has the port that was
+ * learned for it. A lookup racing with the removal of its entry misses,
+ * which only costs a flood.
+ */
+public class MacTable {
+    /**
+     * Returned by {@link #getPort(long, short)} for unknown addresses,
+     * OFPP_NONE
+     */
+    public static final short PORT_NONE = (short) 0xffff;
+
+    protected static final long EMPTY = 0;
+    protected static final long LIVE = 1L << 63;
+    protected static final long TOMBSTONE = 1;
+
+    // values hold the port in the low 16 bits, then the stale and hot flags,
+    // then the time in milliseconds the address was last seen
+    protected static final long STALE = 1L << 16;
+    protected static final long HOT = 1L << 17;
+    protected static final int TIME_SHIFT = 18;
+
+    /**
+     * One generation of the table, replaced as a whole when rebuilt to
+     * clear out tombstones
+     */
+    protected static class Slots {
+        public final AtomicLongArray keys;
+        public final int mask;
+        public final byte[] referenced;
+        public final int threshold;
+        public final AtomicLongArray values;
+
+        public Slots(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.referenced = new byte[capacity];
+            this.threshold = capacity / 4 * 3;
+            this.values = new AtomicLongArray(capacity);
+        }
+    }
+
+    protected int hand = 0;
+    protected int maxEntries;
+    protected int size = 0;
+    protected volatile Slots slots;
+    protected int tombstones = 0;
+
+    /**
+     * @param maxEntries the number of addresses kept before the least
+     * recently used are evicted, at least 1
+     */
+    public MacTable(int maxEntries) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+        int capacity = 2;
+        while (capacity < maxEntries * 2)
+            capacity <<= 1;
+        this.slots = new Slots(capacity);
+    }
+
+    /**
+     * @param mac
+     * @param vlan
+     * @return the key packing both the VLAN id and the MAC address
+     */
+    public static long key(long mac, short vlan) {
+        return ((long) (vlan & 0xfff) << 48) | (mac & 0xffffffffffffL);
+    }
+
+    /**
+     * @param key
+     * @return the MAC address packed in the key
+     */
+    public static long getMac(long key) {
+        return key & 0xffffffffffffL;
+    }
+
+    /**
+     * @param key
+     * @return the VLAN id packed in the key
+     */
+    public static short getVlan(long key) {
+        return (short) ((key >>> 48) & 0xfff);
+    }
+
+    protected static long value(short port, long now) {
+        return (now << TIME_SHIFT) | (port & 0xffff);
+    }
+
+    protected static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @param mac
+     * @param vlan
+     * @return the port the address was learned on, or {@link #PORT_NONE} if
+     * it is unknown or stale
+     */
+    public short getPort(long mac, short vlan) {
+        long key = key(mac, vlan) | LIVE;
+        Slots s = slots;
+        int i = hash(key) & s.mask;
+        for (int n = 0; n <= s.mask; ++n) {
+            long k = s.keys.get(i);
+            if (k == key) {
+                long value = s.values.get(i);
+                if (s.keys.get(i) != key || (value & STALE) != 0)
+                    return PORT_NONE;
+                s.referenced[i] = 1;
+                return (short) value;
+            }
+            if (k == EMPTY)
+                return PORT_NONE;
+            i = (i + 1) & s.mask;
+        }
+        return PORT_NONE;
+    }
+
+    /**
+     * Records the port the address was seen on, evicting another address if
+     * the table is full
+     * @param mac
+     * @param vlan
+     * @param port
+     */
+    public void learn(long mac, short vlan, short port) {
+        learn(mac, vlan, port, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the port the address was seen on at the given time, evicting
+     * another address if the table is full
+     * @param mac
+     * @param vlan
+     * @param port
+     * @param now the time in milliseconds
+     */
+    public synchronized void learn(long mac, short vlan, short port, long now) {
+        long key = key(mac, vlan) | LIVE;
+        Slots s = slots;
+        int free = -1;
+        int i = hash(key) & s.mask;
+        while (true) {
+            long k = s.keys.get(i);
+            if (k == key) {
+                s.values.set(i, value(port, now) | (s.values.get(i) & HOT));
+                s.referenced[i] = 1;
+                return;
+            }
+            if (k == EMPTY) {
+                if (free < 0)
+                    free = i;
+                break;
+            }
+            if (k == TOMBSTONE && free < 0)
+                free = i;
+            i = (i + 1) & s.mask;
+        }
+
+        if (size >= maxEntries)
+            evict(s);
+        if (s.keys.get(free) == TOMBSTONE)
+            --tombstones;
+        // new entries are evicted first unless used before the hand comes by
+        s.values.set(free, value(port, now));
+        s.referenced[free] = 0;
+        s.keys.set(free, key);
+        ++size;
+        if (size + tombstones > s.threshold)
+            rebuild();
+    }
+
+    /**
+     * @param mac
+     * @param vlan
+     * @return true if the address was in the table
+     */
+    public synchronized boolean remove(long mac, short vlan) {
+        long key = key(mac, vlan) | LIVE;
+        Slots s = slots;
+        int i = hash(key) & s.mask;
+        for (int n = 0; n <= s.mask; ++n) {
+            long k = s.keys.get(i);
+            if (k == key) {
+                removeSlot(s, i);
+                return true;
+            }
+            if (k == EMPTY)
+                return false;
+            i = (i + 1) & s.mask;
+        }
+        return false;
+    }
+
+    /**
+     * @param mac
+     * @param vlan
+     * @return true if the address is in the table and marked hot
+     */
+    public boolean isHot(long mac, short vlan) {
+        long key = key(mac, vlan) | LIVE;
+        Slots s = slots;
+        int i = hash(key) & s.mask;
+        for (int n = 0; n <= s.mask; ++n) {
+            long k = s.keys.get(i);
+            if (k == key) {
+                long value = s.values.get(i);
+                return s.keys.get(i) == key && (value & HOT) != 0;
+            }
+            if (k == EMPTY)
+                return false;
+            i = (i + 1) & s.mask;
+        }
+        return false;
+    }
+
+    /**
+     * Makes lookups of the address miss until it is learned again
+     * @param mac
+     * @param vlan
+     * @return true if the address was in the table
+     */
+    public synchronized boolean markStale(long mac, short vlan) {
+        return setFlag(mac, vlan, STALE);
+    }
+
+    /**
+     * Marks the address hot until it is removed from the table, which a
+     * stale sweep does not do to hot entries
+     * @param mac
+     * @param vlan
+     * @return true if the address was in the table
+     */
+    public synchronized boolean markHot(long mac, short vlan) {
+        return setFlag(mac, vlan, HOT);
+    }
+
+    /**
+     * Removes the entries last seen before the given time, and the stale
+     * ones that are not hot, whose hotness would be lost with them
+     * @param seenBefore the time in milliseconds
+     * @return the number of entries removed
+     */
+    public synchronized int expire(long seenBefore) {
+        Slots s = slots;
+        int removed = 0;
+        for (int i = 0; i <= s.mask; ++i) {
+            if ((s.keys.get(i) & LIVE) == 0)
+                continue;
+            long value = s.values.get(i);
+            if ((value & (STALE | HOT)) == STALE
+                    || (value >>> TIME_SHIFT) < seenBefore) {
+                removeSlot(s, i);
+                ++removed;
+            }
+        }
+        // sweeps run off the packet path, so clear the tombstones right away
+        if (removed > 0)
+            rebuild();
+        return removed;
+    }
+
+    /**
+     * Removes every address learned on the port. The table is a flat array
+     * of a few slots per entry, so the port's entries are found by scanning
+     * it rather than keeping a port index up to date on every learn.
+     * @param port
+     * @return the keys of the removed addresses, see {@link #getMac(long)}
+     * and {@link #getVlan(long)}
+     */
+    public synchronized long[] removePort(short port) {
+        Slots s = slots;
+        long[] removed = new long[size];
+        int count = 0;
+        for (int i = 0; i <= s.mask; ++i) {
+            long key = s.keys.get(i);
+            if ((key & LIVE) == 0 || (short) s.values.get(i) != port)
+                continue;
+            removeSlot(s, i);
+            removed[count++] = key & ~LIVE;
+        }
+        if (count > 0)
+            rebuild();
+        long[] result = new long[count];
+        System.arraycopy(removed, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Removes every address
+     */
+    public synchronized void clear() {
+        slots = new Slots(slots.keys.length());
+        size = 0;
+        tombstones = 0;
+        hand = 0;
+    }
+
+    /**
+     * @return the number of addresses in the table
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of addresses kept
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    protected boolean setFlag(long mac, short vlan, long flag) {
+        long key = key(mac, vlan) | LIVE;
+        Slots s = slots;
+        int i = hash(key) & s.mask;
+        for (int n = 0; n <= s.mask; ++n) {
+            long k = s.keys.get(i);
+            if (k == key) {
+                s.values.set(i, s.values.get(i) | flag);
+                return true;
+            }
+            if (k == EMPTY)
+                return false;
+            i = (i + 1) & s.mask;
+        }
+        return false;
+    }
+
+    protected void removeSlot(Slots s, int i) {
+        s.keys.set(i, TOMBSTONE);
+        s.referenced[i] = 0;
+        --size;
+        ++tombstones;
+    }
+
+    /**
+     * Advances the hand to the first entry not referenced since the hand
+     * last passed it and removes it. The first pass over the table clears
+     * every referenced bit, so the second finds an entry unless lookups keep
+     * setting them again; the sweep then stops and removes the first entry
+     * it cleared.
+     */
+    protected void evict(Slots s) {
+        int victim = -1;
+        for (int n = 0; n < 2 * s.keys.length(); ++n) {
+            int i = hand;
+            hand = (hand + 1) & s.mask;
+            if ((s.keys.get(i) & LIVE) == 0)
+                continue;
+            if (s.referenced[i] == 0) {
+                removeSlot(s, i);
+                return;
+            }
+            s.referenced[i] = 0;
+            if (victim < 0)
+                victim = i;
+        }
+        if (victim >= 0)
+            removeSlot(s, victim);
+    }
+
+    /**
+     * Copies the live entries into a new generation without tombstones,
+     * readers still holding the old one see a consistent if stale table
+     */
+    protected void rebuild() {
+        Slots old = slots;
+        Slots s = new Slots(old.keys.length());
+        for (int j = 0; j <= old.mask; ++j) {
+            long key = old.keys.get(j);
+            if ((key & LIVE) == 0)
+                continue;
+            int i = hash(key) & s.mask;
+            while (s.keys.get(i) != EMPTY)
+                i = (i + 1) & s.mask;
+            s.values.set(i, old.values.get(j));
+            s.referenced[i] = old.referenced[j];
+            s.keys.set(i, key);
+        }
+        tombstones = 0;
+        hand = 0;
+        slots = s;
+    }
+}
@@ -239,6 +239,20 @@ public class Ethernet extends BasePacket {
         return mac;
     }
 
+    /**
+     * Accepts a MAC address held in the lower order bytes of a long and
+     * returns the corresponding byte[].
+     * @param macAddress
+     * @return
+     */
+    public static byte[] toMACAddress(long macAddress) {
+        byte[] address = new byte[6];
+        for (int i = 0; i < 6; i++) {
+          address[i] = (byte) (macAddress >>> ((5-i)*8));
+        }
+        return address;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */
@@ -5,6 +5,7 @@ package net.beaconcontroller.routing.dijkstra;
 
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -16,14 +17,15 @@ import net.beaconcontroller.routing.IRoutingEngine;
 import net.beaconcontroller.routing.Link;
 import net.beaconcontroller.routing.Route;
 import net.beaconcontroller.routing.RouteId;
-import net.beaconcontroller.topology.ITopologyAware;
+import net.beaconcontroller.topology.ITopologyBatchAware;
+import net.beaconcontroller.topology.LinkUpdate;
 
 /**
  * Beacon component to find shortest paths based on dijkstra's algorithm
  *
  * @author Mandeep Dhami (mandeep.dhami@bigswitch.com)
  */
-public class RoutingImpl implements IRoutingEngine, ITopologyAware {
+public class RoutingImpl implements IRoutingEngine, ITopologyBatchAware {
     
     public static final int MAX_LINK_WEIGHT = 1000;
     public static final int MAX_PATH_WEIGHT = Integer.MAX_VALUE - MAX_LINK_WEIGHT - 1;
@@ -144,9 +146,56 @@ public class RoutingImpl implements IRoutingEngine, ITopologyAware {
         update(srcId, srcPort.shortValue(), dstId, dstPort.shortValue(), added);
     }
 
+    /**
+     * Applies all of the link updates before recalculating the next hops
+     * once, rather than once per link
+     */
+    @Override
+    public void linkUpdates(List<LinkUpdate> updates) {
+        lock.writeLock().lock();
+        try {
+            boolean network_updated = false;
+            for (LinkUpdate update : updates) {
+                if (applyUpdate(update.getSrc().getId(), update.getSrcPort(),
+                        update.getDst().getId(), update.getDstPort(),
+                        update.isAdded()))
+                    network_updated = true;
+            }
+            if (network_updated) {
+                recalculate();
+                log.debug("linkUpdates: dijkstra recalulated for {} updates", updates.size());
+            }
+            else {
+                log.debug("linkUpdates: dijkstra not recalculated");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     @Override
     public void update(Long srcId, Short srcPort, Long dstId, Short dstPort, boolean added) {
         lock.writeLock().lock();
+        boolean network_updated = applyUpdate(srcId, srcPort, dstId, dstPort, added);
+       
+        if (network_updated) {
+        recalculate();
+            log.debug("update: dijkstra recalulated");
+        }
+        else {
+            log.debug("update: dijkstra not recalculated");
+        }
+        
+        lock.writeLock().unlock();
+        return;
+    }
+
+    /**
+     * Updates the network without recalculating the next hops, must be
+     * called with the write lock held
+     * @return true if the network changed
+     */
+    private boolean applyUpdate(Long srcId, Short srcPort, Long dstId, Short dstPort, boolean added) {
         boolean network_updated = false;
        
         HashMap<Link, Link> src = network.get(srcId);
@@ -186,17 +235,7 @@ public class RoutingImpl implements IRoutingEngine, ITopologyAware {
                 log.debug("update: current port value is being kept: {}", src.get(srcPort));
             }
         }
-       
-        if (network_updated) {
-        recalculate();
-            log.debug("update: dijkstra recalulated");
-        }
-        else {
-            log.debug("update: dijkstra not recalculated");
-        }
-        
-        lock.writeLock().unlock();
-        return;
+        return network_updated;
     }
 
     private void recalculate() {
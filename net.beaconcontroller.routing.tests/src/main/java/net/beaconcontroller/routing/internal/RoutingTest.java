@@ -30,7 +30,6 @@ import net.beaconcontroller.topology.SwitchPortTuple;
 
 import org.junit.Before;
 import org.junit.Test;
-import org.openflow.io.OFMessageInStream;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPacketIn;
@@ -39,7 +38,6 @@ import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFPacketIn.OFPacketInReason;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.factory.BasicFactory;
 
 /**
  *
@@ -95,7 +93,6 @@ public class RoutingTest extends BeaconTestCase {
 
         // Create mock switches
         IOFSwitch sw1 = createMock(IOFSwitch.class);
-        OFMessageInStream mockIn = createMock(OFMessageInStream.class);
         OFMessageSafeOutStream out1 = createMock(OFMessageSafeOutStream.class);
         IOFSwitch sw2 = createMock(IOFSwitch.class);
         expect(sw2.getId()).andReturn(2L).anyTimes();
@@ -155,8 +152,6 @@ public class RoutingTest extends BeaconTestCase {
 
         // Expected behavior
         expect(sw1.getId()).andReturn(1L).atLeastOnce();
-        expect(sw1.getInputStream()).andReturn(mockIn).atLeastOnce();
-        expect(mockIn.getMessageFactory()).andReturn(new BasicFactory()).atLeastOnce();
         expect(sw1.getOutputStream()).andReturn(out1).atLeastOnce();
         expect(sw2.getOutputStream()).andReturn(out2).atLeastOnce();
         out1.write(fm1);
@@ -166,12 +161,12 @@ public class RoutingTest extends BeaconTestCase {
         // Load routing with our mock objects and begin the replay
         routing.setDeviceManager(deviceManager);
         routing.setRoutingEngine(routingEngine);
-        replay(sw1, sw2, mockIn, deviceManager, routingEngine, out1, out2);
+        replay(sw1, sw2, deviceManager, routingEngine, out1, out2);
 
         // trigger the packet in
         routing.receive(sw1, this.packetIn);
 
         // Verify the replay matched our expectations
-        verify(sw1, sw2, mockIn, deviceManager, routingEngine, out1, out2);
+        verify(sw1, sw2, deviceManager, routingEngine, out1, out2);
     }
 }
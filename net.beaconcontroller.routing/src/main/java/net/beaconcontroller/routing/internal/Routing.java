@@ -1,14 +1,17 @@
 package net.beaconcontroller.routing.internal;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Set;
 
 import net.beaconcontroller.core.IBeaconProvider;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.OFMessageInterest.DestinationClass;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.io.FlowModWriter;
 import net.beaconcontroller.core.io.OFMessageSafeOutStream;
+import net.beaconcontroller.core.io.PacketOutBuilder;
 import net.beaconcontroller.devicemanager.Device;
 import net.beaconcontroller.devicemanager.IDeviceManager;
 import net.beaconcontroller.devicemanager.IDeviceManagerAware;
@@ -17,7 +20,6 @@ import net.beaconcontroller.routing.Link;
 import net.beaconcontroller.routing.Route;
 import net.beaconcontroller.topology.SwitchPortTuple;
 
-import org.openflow.io.OFMessageInStream;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
@@ -25,9 +27,6 @@ import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
-import org.openflow.protocol.action.OFAction;
-import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.factory.OFMessageFactory;
 import org.openflow.util.HexString;
 import org.openflow.util.U16;
 import org.slf4j.Logger;
@@ -52,7 +51,10 @@ public class Routing implements IOFMessageListener, IDeviceManagerAware {
     public static final int APP_ID_SHIFT = (64 - APP_ID_BITS);
 
     public void startUp() {
-        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        // devices are only learned by unicast address, so nothing else can route
+        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this,
+                new OFMessageInterest().setDestinationClasses(
+                        DestinationClass.UNICAST));
     }
 
     public void shutDown() {
@@ -67,8 +69,8 @@ public class Routing implements IOFMessageListener, IDeviceManagerAware {
     @Override
     public Command receive(IOFSwitch sw, OFMessage msg) {
         OFPacketIn pi = (OFPacketIn) msg;
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pi.getPacketData(), pi.getInPort());
+        // shared with other listeners, pushRoute copies it into its flow mod
+        OFMatch match = PacketContext.get(pi).getMatch();
 
         // Check if we have the location of the destination
         Device dstDevice = deviceManager.getDeviceByDataLayerAddress(match.getDataLayerDestination());
@@ -88,12 +90,11 @@ public class Routing implements IOFMessageListener, IDeviceManagerAware {
                 // set the route
                 if (log.isTraceEnabled())
                     log.trace("Pushing route match={} route={} destination={}:{}", new Object[] {match, route, dstSwPort.getSw(), dstSwPort.getPort()});
-                OFMessageInStream in = sw.getInputStream();
-                pushRoute(in.getMessageFactory(), match, route, dstSwPort, pi.getBufferId());
+                pushRoute(match, route, dstSwPort, pi.getBufferId());
 
                 // send the packet if its not buffered
                 if (pi.getBufferId() == 0xffffffff) {
-                    pushPacket(in.getMessageFactory(), sw, match, pi);
+                    pushPacket(sw, match, pi);
                 }
                 return Command.STOP;
             } else {
@@ -119,43 +120,34 @@ public class Routing implements IOFMessageListener, IDeviceManagerAware {
 
     /**
      * Push routes from back to front
-     * @param factory
      * @param match
      * @param route
      * @param dstDevice
      */
-    public void pushRoute(OFMessageFactory factory, OFMatch match, Route route, SwitchPortTuple dstSwPort, int bufferId) {
-        OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
-        OFActionOutput action = new OFActionOutput();
-        List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(action);
-        match.setWildcards(OFMatch.OFPFW_NW_TOS);
-        fm.setIdleTimeout((short)5)
+    public void pushRoute(OFMatch match, Route route, SwitchPortTuple dstSwPort, int bufferId) {
+        // the same flow mod is rewritten for each hop, it is serialized as
+        // soon as it is written
+        FlowModWriter writer = FlowModWriter.get();
+        writer.setMatch(match)
+            .setIdleTimeout((short)5)
             .setBufferId(0xffffffff)
             .setCookie((ROUTING_APP_ID & ((1L << APP_ID_BITS) - 1)) << APP_ID_SHIFT)
-            .setMatch(match.clone())
-            .setActions(actions)
-            .setLengthU(OFFlowMod.MINIMUM_LENGTH+OFActionOutput.MINIMUM_LENGTH);
+            .setOutput(dstSwPort.getPort());
+        writer.getMatch().setWildcards(OFMatch.OFPFW_NW_TOS);
         IOFSwitch sw = dstSwPort.getSw();
         OFMessageSafeOutStream out = sw.getOutputStream(); // to prevent NoClassDefFoundError
-        ((OFActionOutput)fm.getActions().get(0)).setPort(dstSwPort.getPort());
 
         for (int i = route.getPath().size() - 1; i >= 0; --i) {
             Link link = route.getPath().get(i);
-            fm.getMatch().setInputPort(link.getInPort());
+            writer.getMatch().setInputPort(link.getInPort());
             try {
-                out.write(fm);
+                writer.write(out);
             } catch (IOException e) {
                 log.error("Failure writing flow mod", e);
             }
-            try {
-                fm = fm.clone();
-            } catch (CloneNotSupportedException e) {
-                log.error("Failure cloning flow mod", e);
-            }
 
             // setup for the next loop iteration
-            ((OFActionOutput)fm.getActions().get(0)).setPort(link.getOutPort());
+            writer.setOutput(link.getOutPort());
             if (i > 0) {
                 sw = beaconProvider.getSwitches().get(route.getPath().get(i-1).getDst());
             } else {
@@ -174,31 +166,22 @@ public class Routing implements IOFMessageListener, IDeviceManagerAware {
             out = sw.getOutputStream();
         }
         // set the original match for the first switch, and buffer id
-        fm.setMatch(match)
-            .setBufferId(bufferId);
+        writer.setMatch(match)
+            .setBufferId(bufferId)
+            .getMatch().setWildcards(OFMatch.OFPFW_NW_TOS);
 
         try {
-            out.write(fm);
+            writer.write(out);
         } catch (IOException e) {
             log.error("Failure writing flow mod", e);
         }
     }
 
-    public void pushPacket(OFMessageFactory factory, IOFSwitch sw, OFMatch match, OFPacketIn pi) {
-        OFPacketOut po = (OFPacketOut) factory.getMessage(OFType.PACKET_OUT);
-        po.setBufferId(pi.getBufferId());
-        po.setInPort(pi.getInPort());
-
-        // set actions
-        List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(new OFActionOutput(OFPort.OFPP_TABLE.getValue(), (short) 0));
-        po.setActions(actions)
-            .setActionsLength((short) OFActionOutput.MINIMUM_LENGTH);
-
-        byte[] packetData = pi.getPacketData();
-        po.setLength(U16.t(OFPacketOut.MINIMUM_LENGTH
-                + po.getActionsLength() + packetData.length));
-        po.setPacketData(packetData);
+    public void pushPacket(IOFSwitch sw, OFMatch match, OFPacketIn pi) {
+        // the packet data is referenced rather than copied
+        OFPacketOut po = PacketOutBuilder.forPacketIn(pi)
+            .addOutput(OFPort.OFPP_TABLE.getValue())
+            .build();
 
         try {
             sw.getOutputStream().write(po);
@@ -9,14 +9,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.beaconcontroller.core.IBeaconProvider;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.io.OFWritePriority;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
@@ -51,7 +52,7 @@ public class StaticFlowEntryPusher implements IStaticFlowEntryPusher, IOFSwitchL
     protected ArrayList<IOFSwitch> activeSwitches;
     protected HashMap<Long, HashMap<String, OFFlowMod>> flowmods;
     protected Long pushEntriesFrequency = 10L * 1000;
-    protected Timer pushEntriesTimer;
+    protected IScheduledTask pushEntriesTask;
 
     @Override
     public String getName() {
@@ -106,7 +107,8 @@ public class StaticFlowEntryPusher implements IStaticFlowEntryPusher, IOFSwitchL
         fm.setFlags((short) 0);
         
         try {
-            sw.getOutputStream().write(fm);
+            // static entries are not answering a packet, let flow setup go first
+            sw.getOutputStream().write(fm, OFWritePriority.BULK);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -587,16 +589,17 @@ public class StaticFlowEntryPusher implements IStaticFlowEntryPusher, IOFSwitchL
 
         beaconProvider.addOFSwitchListener(this);
 
-        pushEntriesTimer = new Timer();
-        pushEntriesTimer.scheduleAtFixedRate(new TimerTask() {
+        pushEntriesTask = beaconProvider.getScheduler().scheduleAtFixedRate(
+                new Runnable() {
             @Override
             public void run() {
                 pushAllEntries();
-            }}, 1000, pushEntriesFrequency);
+            }}, 1000, pushEntriesFrequency, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Pushes all entries associated with all switches (from the store)
+     * Pushes all entries associated with all switches (from the store),
+     * run on a scheduler worker; the writes only buffer, so never block it
      */
     protected void pushAllEntries() {
         for (IOFSwitch sw : activeSwitches) {
@@ -608,7 +611,7 @@ public class StaticFlowEntryPusher implements IStaticFlowEntryPusher, IOFSwitchL
     
     public void shutDown() {
         log.info("shutdown");
-            pushEntriesTimer.cancel();
+            pushEntriesTask.cancel();
         beaconProvider.removeOFSwitchListener(this);
     }
 
@@ -0,0 +1,19 @@
+package net.beaconcontroller.topology;
+
+import java.util.List;
+
+/**
+ * Implemented by ITopologyAware listeners that would rather receive the link
+ * updates queued since their last call together, for instance to recompute
+ * routes once after a burst of link changes instead of once per link. These
+ * listeners are not passed to {@link ITopologyAware#linkUpdate}.
+ */
+public interface ITopologyBatchAware extends ITopologyAware {
+    /**
+     * @param updates the link updates in the order they occurred, a link added
+     * and removed again before it was delivered is passed as both. After
+     * updates were discarded, the batch instead holds the differences between
+     * the links last announced and the current ones.
+     */
+    public void linkUpdates(List<LinkUpdate> updates);
+}
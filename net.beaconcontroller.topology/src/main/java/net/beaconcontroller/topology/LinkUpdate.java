@@ -0,0 +1,71 @@
+package net.beaconcontroller.topology;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+/**
+ * A link that was added to or removed from the topology, delivered to
+ * {@link ITopologyBatchAware} listeners
+ */
+public class LinkUpdate {
+    protected boolean added;
+    protected LinkTuple link;
+
+    /**
+     * @param link
+     * @param added
+     */
+    public LinkUpdate(LinkTuple link, boolean added) {
+        this.link = link;
+        this.added = added;
+    }
+
+    /**
+     * @return the link
+     */
+    public LinkTuple getLink() {
+        return link;
+    }
+
+    /**
+     * @return true if the link was added, false if removed
+     */
+    public boolean isAdded() {
+        return added;
+    }
+
+    /**
+     * @return the source switch
+     */
+    public IOFSwitch getSrc() {
+        return link.getSrc().getSw();
+    }
+
+    /**
+     * @return the source port from the source switch
+     */
+    public short getSrcPort() {
+        return link.getSrc().getPort();
+    }
+
+    /**
+     * @return the destination switch
+     */
+    public IOFSwitch getDst() {
+        return link.getDst().getSw();
+    }
+
+    /**
+     * @return the destination port on the destination switch
+     */
+    public short getDstPort() {
+        return link.getDst().getPort();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "LinkUpdate [link=" + link + ", added=" + added + "]";
+    }
+}
@@ -3,6 +3,7 @@ package net.beaconcontroller.topology.internal;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,21 +11,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IEventChannel;
+import net.beaconcontroller.core.IEventCoalescer;
+import net.beaconcontroller.core.IEventResyncSubscriber;
 import net.beaconcontroller.core.IOFMessageListener;
 import net.beaconcontroller.core.IOFSwitch;
 import net.beaconcontroller.core.IOFSwitchListener;
+import net.beaconcontroller.core.IScheduledTask;
+import net.beaconcontroller.core.OFMessageInterest;
+import net.beaconcontroller.core.PacketContext;
+import net.beaconcontroller.core.io.OFWritePriority;
 import net.beaconcontroller.packet.Ethernet;
 import net.beaconcontroller.packet.LLDP;
 import net.beaconcontroller.packet.LLDPTLV;
 import net.beaconcontroller.topology.ITopology;
+import net.beaconcontroller.topology.ITopologyBatchAware;
 import net.beaconcontroller.topology.LinkTuple;
+import net.beaconcontroller.topology.LinkUpdate;
 import net.beaconcontroller.topology.SwitchPortTuple;
 import net.beaconcontroller.topology.ITopologyAware;
 import net.beaconcontroller.topology.dao.ITopologyDao;
@@ -62,20 +69,24 @@ import org.slf4j.LoggerFactory;
  *  -switchLinks contains LinkTuples where one of the src or dst SwitchPortTuple's id matches the switch id
  *  -Each LinkTuple will be indexed into switchLinks for both src.id and dst.id,
  *    and portLinks for each src and dst
- *  -The updates queue is only added to from within a held write lock
+ *  -The updates channel is only offered to from within a held write lock,
+ *    which never blocks
  *
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITopology {
     protected static Logger log = LoggerFactory.getLogger(TopologyImpl.class);
 
+    // links the ITopologyAware listeners have been told about, only used
+    // while delivering link updates
+    protected Set<LinkTuple> announcedLinks;
     protected IBeaconProvider beaconProvider;
 
     /**
      * Map from link to the most recent time it was verified functioning
      */
     protected Map<LinkTuple, Long> links;
-    protected Timer lldpSendTimer;
+    protected IScheduledTask lldpSendTask;
     protected Long lldpFrequency = 15L * 1000; // sending frequency
     protected Long lldpTimeout = 35L * 1000; // timeout
     protected ReentrantReadWriteLock lock;
@@ -90,100 +101,141 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
      * Map from switch id to a set of all links with it as an endpoint
      */
     protected Map<IOFSwitch, Set<LinkTuple>> switchLinks;
-    protected Timer timeoutLinksTimer;
+    protected IScheduledTask timeoutLinksTask;
     protected Set<ITopologyAware> topologyAware;
-    protected BlockingQueue<Update> updates;
-    protected Thread updatesThread;
+    protected IEventChannel<LinkUpdate> updates;
+    protected int updatesCapacity = 1024;
     protected ITopologyDao topologyDao;
 
-    protected class Update {
-        public IOFSwitch src;
-        public short srcPort;
-        public IOFSwitch dst;
-        public short dstPort;
-        public boolean added;
-
-        public Update(IOFSwitch src, short srcPort, IOFSwitch dst,
-                short dstPort, boolean added) {
-            this.src = src;
-            this.srcPort = srcPort;
-            this.dst = dst;
-            this.dstPort = dstPort;
-            this.added = added;
-        }
-
-        public Update(LinkTuple lt, boolean added) {
-            this.src = lt.getSrc().getSw();
-            this.srcPort = lt.getSrc().getPort();
-            this.dst = lt.getDst().getSw();
-            this.dstPort = lt.getDst().getPort();
-            this.added = added;
-        }
-    }
-
     public TopologyImpl() {
+        this.announcedLinks = new HashSet<LinkTuple>();
         this.lock = new ReentrantReadWriteLock();
-        this.updates = new LinkedBlockingQueue<Update>();
     }
 
     protected void startUp() {
-        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        updates = beaconProvider.getEventBus().createChannel("Link Updates",
+                updatesCapacity, new IEventResyncSubscriber<LinkUpdate>() {
+            @Override
+            public void handleEvents(List<LinkUpdate> events) {
+                updateTopologyAware(events);
+            }
+
+            @Override
+            public void resync() {
+                resyncLinks();
+            }}, new IEventCoalescer<LinkUpdate>() {
+            @Override
+            public Object getKey(LinkUpdate update) {
+                return update.getLink();
+            }
+
+            @Override
+            public LinkUpdate coalesce(LinkUpdate pending, LinkUpdate next) {
+                // listeners may have routed over the link in between, so an
+                // add and a remove are both delivered
+                return (pending.isAdded() == next.isAdded()) ? next : null;
+            }});
+
+        beaconProvider.addOFMessageListener(OFType.PACKET_IN, this,
+                new OFMessageInterest().setEtherTypes(Ethernet.TYPE_LLDP));
         beaconProvider.addOFMessageListener(OFType.PORT_STATUS, this);
         beaconProvider.addOFSwitchListener(this);
         links = new HashMap<LinkTuple, Long>();
         portLinks = new HashMap<SwitchPortTuple, Set<LinkTuple>>();
         switchLinks = new HashMap<IOFSwitch, Set<LinkTuple>>();
 
-        lldpSendTimer = new Timer();
-        lldpSendTimer.scheduleAtFixedRate(new TimerTask() {
+        lldpSendTask = beaconProvider.getScheduler().scheduleAtFixedRate(
+                new Runnable() {
             @Override
             public void run() {
                 sendLLDPs();
-            }}, 1000, lldpFrequency);
+            }}, 1000, lldpFrequency, TimeUnit.MILLISECONDS);
 
-        timeoutLinksTimer = new Timer();
-        timeoutLinksTimer.scheduleAtFixedRate(new TimerTask() {
+        timeoutLinksTask = beaconProvider.getScheduler().scheduleAtFixedRate(
+                new Runnable() {
             @Override
             public void run() {
                 timeoutLinks();
-            }}, 1000, lldpTimeout);
-
-        updatesThread = new Thread(new Runnable () {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        Update update = updates.take();
-                        if (topologyAware != null) {
-                            for (ITopologyAware ta : topologyAware) {
-                                try {
-                                    ta.linkUpdate(update.src, update.srcPort,
-                                            update.dst, update.dstPort,
-                                            update.added);
-                                } catch (Exception e) {
-                                    log.error("Exception on callback", e);
-                                }
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        log.warn("Topology Updates thread interrupted", e);
-                        if (shuttingDown)
-                            return;
-                    }
-                }
-            }}, "Topology Updates");
-        updatesThread.start();
+            }}, 1000, lldpTimeout, TimeUnit.MILLISECONDS);
     }
 
     protected void shutDown() {
         shuttingDown = true;
-        lldpSendTimer.cancel();
+        lldpSendTask.cancel();
+        timeoutLinksTask.cancel();
         beaconProvider.removeOFSwitchListener(this);
         beaconProvider.removeOFMessageListener(OFType.PACKET_IN, this);
         beaconProvider.removeOFMessageListener(OFType.PORT_STATUS, this);
-        updatesThread.interrupt();
+        beaconProvider.getEventBus().removeChannel(updates);
+    }
+
+    /**
+     * Passes a batch of link updates to the ITopologyAware listeners, less
+     * any they have already been told of by a resync, called on an event bus
+     * thread
+     * @param batch
+     */
+    protected void updateTopologyAware(List<LinkUpdate> batch) {
+        List<LinkUpdate> changes = new ArrayList<LinkUpdate>(batch.size());
+        for (LinkUpdate update : batch) {
+            if (update.isAdded() ? announcedLinks.add(update.getLink())
+                    : announcedLinks.remove(update.getLink()))
+                changes.add(update);
+        }
+        if (topologyAware == null || changes.isEmpty())
+            return;
+        List<LinkUpdate> delivered = Collections.unmodifiableList(changes);
+        for (ITopologyAware ta : topologyAware) {
+            if (ta instanceof ITopologyBatchAware) {
+                try {
+                    ((ITopologyBatchAware) ta).linkUpdates(delivered);
+                } catch (Exception e) {
+                    log.error("Exception on callback", e);
+                }
+                continue;
+            }
+            for (LinkUpdate update : delivered) {
+                try {
+                    ta.linkUpdate(update.getSrc(), update.getSrcPort(),
+                            update.getDst(), update.getDstPort(),
+                            update.isAdded());
+                } catch (Exception e) {
+                    log.error("Exception on callback", e);
+                }
+            }
+        }
     }
 
+    /**
+     * Brings the ITopologyAware listeners up to date with the current links
+     * after link updates were discarded, called on an event bus thread
+     */
+    protected void resyncLinks() {
+        log.warn("Link updates overflowed, resyncing topology listeners");
+        Set<LinkTuple> current;
+        lock.readLock().lock();
+        try {
+            current = new HashSet<LinkTuple>(links.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<LinkUpdate> changes = new ArrayList<LinkUpdate>();
+        for (LinkTuple lt : announcedLinks) {
+            if (!current.contains(lt))
+                changes.add(new LinkUpdate(lt, false));
+        }
+        for (LinkTuple lt : current) {
+            if (!announcedLinks.contains(lt))
+                changes.add(new LinkUpdate(lt, true));
+        }
+        updateTopologyAware(changes);
+    }
+
+    /**
+     * Sends an LLDP out each port of each switch, run on a scheduler worker.
+     * The writes only buffer the packets for the IO loops, so they never
+     * block the worker.
+     */
     protected void sendLLDPs() {
         Ethernet ethernet = new Ethernet()
             .setSourceMACAddress(new byte[6])
@@ -244,7 +296,7 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
 
                 // send
                 try {
-                    sw.getOutputStream().write(po);
+                    sw.getOutputStream().write(po, OFWritePriority.CONTROL);
                 } catch (IOException e) {
                     log.error("Failure sending LLDP", e);
                 }
@@ -272,8 +324,7 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
     }
 
     protected Command handlePacketIn(IOFSwitch sw, OFPacketIn pi) {
-        Ethernet eth = new Ethernet();
-        eth.deserialize(pi.getPacketData(), 0, pi.getPacketData().length);
+        Ethernet eth = PacketContext.get(pi).getEthernet();
 
         if (!(eth.getPayload() instanceof LLDP))
             return Command.CONTINUE;
@@ -358,7 +409,7 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
                     portLinks.put(lt.getDst(), new HashSet<LinkTuple>());
                 portLinks.get(lt.getDst()).add(lt);
 
-                updates.add(new Update(lt, true));
+                updates.offer(new LinkUpdate(lt, true));
 
                 DaoLinkTuple daoLt = new DaoLinkTuple(lt.getSrc().getSw().getId(), lt.getSrc().getPort(),
                                                       lt.getDst().getSw().getId(), lt.getDst().getPort());
@@ -404,7 +455,7 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
                     this.portLinks.remove(lt.getDst());
 
                 this.links.remove(lt);
-                updates.add(new Update(lt, false));
+                updates.offer(new LinkUpdate(lt, false));
 
                 DaoLinkTuple daoLt = new DaoLinkTuple(lt.getSrc().getSw().getId(), lt.getSrc().getPort(),
                                                       lt.getDst().getSw().getId(), lt.getDst().getPort());
@@ -558,4 +609,12 @@ public class TopologyImpl implements IOFMessageListener, IOFSwitchListener, ITop
     public void setTopologyDao(ITopologyDao topologyDao) {
         this.topologyDao = topologyDao;
     }
+
+    /**
+     * @param updatesCapacity maximum link updates waiting for the
+     * ITopologyAware listeners
+     */
+    public void setUpdatesCapacity(int updatesCapacity) {
+        this.updatesCapacity = updatesCapacity;
+    }
 }